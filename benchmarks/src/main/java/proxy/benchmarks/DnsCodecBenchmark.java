@@ -0,0 +1,59 @@
+package proxy.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+import proxy.dns.DnsCodec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query encoding and response decoding as done by DnsHandler when writing and reading datagrams.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DnsCodecBenchmark {
+    private Name name;
+    private ByteBuffer queryBuffer;
+    private ByteBuffer responseBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        name = Name.fromString("www.example.com.");
+        queryBuffer = ByteBuffer.allocateDirect(512);
+
+        Message response = new Message(0x1234);
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RD);
+        response.getHeader().setFlag(Flags.RA);
+        response.addRecord(Record.newRecord(name, Type.A, DClass.IN), Section.QUESTION);
+        response.addRecord(new CNAMERecord(name, DClass.IN, 300, Name.fromString("edge.example.net.")),
+                Section.ANSWER);
+        response.addRecord(new ARecord(Name.fromString("edge.example.net."), DClass.IN, 60,
+                InetAddress.getByAddress(new byte[] { 93, (byte) 184, (byte) 216, 34 })), Section.ANSWER);
+        byte[] wire = response.toWire();
+        responseBuffer = ByteBuffer.allocateDirect(512);
+        responseBuffer.put(wire).flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeQuery() {
+        queryBuffer.clear();
+        DnsCodec.encodeQuery(0x1234, name, queryBuffer);
+        queryBuffer.flip();
+        return queryBuffer;
+    }
+
+    @Benchmark
+    public DnsCodec.Response decodeResponse() throws IOException {
+        responseBuffer.rewind();
+        return DnsCodec.decodeResponse(responseBuffer);
+    }
+}
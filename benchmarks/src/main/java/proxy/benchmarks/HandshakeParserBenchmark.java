@@ -0,0 +1,69 @@
+package proxy.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import proxy.exceptions.Socks5ProtocolException;
+import proxy.protocol.HandshakeParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Greeting and CONNECT parsing as done by ClientHandler: both messages in one read, and one byte per read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeParserBenchmark {
+    @Param({ "ipv4", "host" })
+    public String addressType;
+
+    private ByteBuffer handshake;
+
+    @Setup
+    public void setUp() {
+        byte[] greeting = { 0x05, 0x02, 0x00, 0x02 };
+        byte[] request;
+        if (addressType.equals("ipv4")) {
+            request = new byte[] { 0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, 0x1F, (byte) 0x90 };
+        }
+        else {
+            byte[] host = "www.example.com".getBytes(StandardCharsets.US_ASCII);
+            request = new byte[7 + host.length];
+            request[0] = 0x05;
+            request[1] = 0x01;
+            request[3] = 0x03;
+            request[4] = (byte) host.length;
+            System.arraycopy(host, 0, request, 5, host.length);
+            request[request.length - 2] = 0x01;
+            request[request.length - 1] = (byte) 0xBB;
+        }
+        handshake = ByteBuffer.allocateDirect(greeting.length + request.length);
+        handshake.put(greeting).put(request).flip();
+    }
+
+    @Benchmark
+    public void pipelined(Blackhole blackhole) throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        handshake.rewind();
+        blackhole.consume(parser.parse(handshake));
+        blackhole.consume(parser.parse(handshake));
+        blackhole.consume(parser.getPort());
+    }
+
+    @Benchmark
+    public void bytePerRead(Blackhole blackhole) throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        int limit = handshake.capacity();
+        for (int i = 0; i < limit; ++i) {
+            handshake.limit(i + 1).position(i);
+            blackhole.consume(parser.parse(handshake));
+        }
+        handshake.limit(limit);
+        blackhole.consume(parser.getPort());
+    }
+}
@@ -0,0 +1,134 @@
+package proxy.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import proxy.buffers.BufferChain;
+import proxy.config.ProxyConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One readable event worth of relay work: the pooled segment chain used by the handlers against the
+ * single buffer read/flip/write/compact cycle it replaced. The channels copy to and from direct
+ * memory like a socket would, without the syscall.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dproxy.accessLog.file=")
+@State(Scope.Thread)
+public class RelayBenchmark {
+    private static class FakeSocket implements ScatteringByteChannel, GatheringByteChannel {
+        private final ByteBuffer payload;
+        private final ByteBuffer sink;
+        private long readable;
+
+        private FakeSocket(int size) {
+            payload = ByteBuffer.allocateDirect(size);
+            sink = ByteBuffer.allocateDirect(size);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && readable > 0; ++i) {
+                total += read(dsts[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int len = (int) Math.min(readable, dst.remaining());
+            payload.limit(len).position(0);
+            dst.put(payload);
+            readable -= len;
+            return len;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int len = Math.min(src.remaining(), sink.capacity());
+            int limit = src.limit();
+            src.limit(src.position() + len);
+            sink.clear();
+            sink.put(src);
+            src.limit(limit);
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    @Param({ "1024", "16384", "262144" })
+    public int eventBytes;
+
+    private FakeSocket socket;
+    private BufferChain chain;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        socket = new FakeSocket(Math.max(eventBytes, ProxyConfig.RELAY_SEGMENT_SIZE));
+        chain = new BufferChain(ProxyConfig.RELAY_SEGMENT_SIZE, ProxyConfig.RELAY_MAX_SEGMENTS_PER_IO);
+        buffer = ByteBuffer.allocateDirect(ProxyConfig.RELAY_SEGMENT_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        chain.release();
+    }
+
+    @Benchmark
+    public long bufferChain() throws IOException {
+        socket.readable = eventBytes;
+        long relayed = 0;
+        while (socket.readable > 0) {
+            chain.readFrom(socket);
+            relayed += chain.writeTo(socket);
+        }
+        return relayed;
+    }
+
+    @Benchmark
+    public long copyFlipCompact() {
+        socket.readable = eventBytes;
+        long relayed = 0;
+        while (socket.readable > 0) {
+            socket.read(buffer);
+            buffer.flip();
+            relayed += socket.write(buffer);
+            buffer.compact();
+        }
+        return relayed;
+    }
+}
@@ -0,0 +1,154 @@
+package proxy.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import proxy.Proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The proxy's boss and reactor loops against loopback sockets: a small request/response through an
+ * established tunnel, and a full accept/handshake/connect/close cycle. The destination is a blocking
+ * echo server in the same JVM.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dproxy.accessLog.file=", "-Dproxy.reactors=1" })
+@State(Scope.Thread)
+public class SelectorLoopBenchmark {
+    private static final String HOST = "127.0.0.1";
+
+    @Param({ "64", "16384" })
+    public int messageSize;
+
+    private int proxyPort;
+    private int echoPort;
+    private SocketChannel tunnel;
+    private ByteBuffer message;
+    private ByteBuffer response;
+    private ByteBuffer handshake;
+    private ByteBuffer reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        echoPort = startEchoServer();
+        proxyPort = freePort();
+        Thread boss = new Thread(() -> Proxy.getInstance().start(HOST, proxyPort, 0), "boss");
+        boss.setDaemon(true);
+        boss.start();
+        waitForPort(proxyPort);
+
+        handshake = ByteBuffer.allocateDirect(13);
+        handshake.put(new byte[] { 0x05, 0x01, 0x00, 0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1 })
+                .putShort((short) echoPort).flip();
+        reply = ByteBuffer.allocateDirect(12);
+        message = ByteBuffer.allocateDirect(messageSize);
+        response = ByteBuffer.allocateDirect(messageSize);
+        tunnel = openTunnel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tunnel.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        message.clear();
+        while (message.hasRemaining()) {
+            tunnel.write(message);
+        }
+        response.clear();
+        while (response.hasRemaining()) {
+            if (tunnel.read(response) < 0) {
+                throw new IOException("Tunnel closed");
+            }
+        }
+        return response.position();
+    }
+
+    @Benchmark
+    public int connectAndClose() throws IOException {
+        try (SocketChannel channel = openTunnel()) {
+            return channel.socket().getLocalPort();
+        }
+    }
+
+    private SocketChannel openTunnel() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, proxyPort));
+        channel.socket().setTcpNoDelay(true);
+        handshake.rewind();
+        while (handshake.hasRemaining()) {
+            channel.write(handshake);
+        }
+        reply.clear();
+        while (reply.hasRemaining()) {
+            if (channel.read(reply) < 0) {
+                throw new IOException("Proxy closed connection during handshake");
+            }
+        }
+        if (reply.get(1) != 0x00 || reply.get(3) != 0x00) {
+            throw new IOException("Proxy refused CONNECT");
+        }
+        return channel;
+    }
+
+    private static int startEchoServer() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1024, InetAddress.getByName(HOST));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread echo = new Thread(() -> echo(socket), "echo");
+                    echo.setDaemon(true);
+                    echo.start();
+                }
+                catch (IOException e) {
+                    return;
+                }
+            }
+        }, "echo-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    private static void echo(Socket socket) {
+        byte[] buffer = new byte[65536];
+        try (socket) {
+            int len;
+            while ((len = socket.getInputStream().read(buffer)) > 0) {
+                socket.getOutputStream().write(buffer, 0, len);
+            }
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; ++i) {
+            try (Socket ignored = new Socket(HOST, port)) {
+                return;
+            }
+            catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Proxy didn't start on port " + port);
+    }
+}
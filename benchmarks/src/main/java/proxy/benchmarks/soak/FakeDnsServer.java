@@ -0,0 +1,131 @@
+package proxy.benchmarks.soak;
+
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process authoritative stand-in for any name: A queries get 127.0.0.1, AAAA queries get ::1 and
+ * names whose first label starts with "nx" get NXDOMAIN. Latency, loss and TTL can be changed while
+ * it runs, so one instance serves every scenario.
+ */
+public class FakeDnsServer implements Runnable {
+    private final DatagramChannel channel;
+    private final ScheduledExecutorService delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fake-dns-replies");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final InetAddress ipv4Address;
+    private final InetAddress ipv6Address;
+    private volatile long latencyMillis;
+    private volatile double lossRate;
+    private volatile long ttlSeconds = 60;
+
+    public FakeDnsServer() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        ipv4Address = InetAddress.getByName("127.0.0.1");
+        ipv6Address = InetAddress.getByName("::1");
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "fake-dns");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void configure(long latencyMillis, double lossRate, long ttlSeconds) {
+        this.latencyMillis = latencyMillis;
+        this.lossRate = lossRate;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        while (true) {
+            try {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                buffer.flip();
+                queries.incrementAndGet();
+                if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                byte[] response = answer(new Message(buffer));
+                if (latencyMillis > 0) {
+                    delayedReplies.schedule(() -> send(response, client), latencyMillis, TimeUnit.MILLISECONDS);
+                }
+                else {
+                    send(response, client);
+                }
+            }
+            catch (IOException e) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private byte[] answer(Message query) {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AA);
+        if (query.getHeader().getFlag(Flags.RD)) {
+            response.getHeader().setFlag(Flags.RD);
+        }
+        Record question = query.getQuestion();
+        if (question == null) {
+            response.getHeader().setRcode(Rcode.FORMERR);
+            return response.toWire();
+        }
+        response.addRecord(question, Section.QUESTION);
+        Name name = question.getName();
+        if (name.labels() > 1 && name.getLabelString(0).startsWith("nx")) {
+            response.getHeader().setRcode(Rcode.NXDOMAIN);
+        }
+        else if (question.getType() == Type.A) {
+            response.addRecord(new ARecord(name, DClass.IN, ttlSeconds, ipv4Address), Section.ANSWER);
+        }
+        else if (question.getType() == Type.AAAA) {
+            response.addRecord(new AAAARecord(name, DClass.IN, ttlSeconds, ipv6Address), Section.ANSWER);
+        }
+        return response.toWire();
+    }
+
+    private void send(byte[] response, SocketAddress client) {
+        try {
+            channel.send(ByteBuffer.wrap(response), client);
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package proxy.benchmarks.soak;
+
+import client.Client;
+import client.LoadConfig;
+import client.LoadStats;
+import proxy.Proxy;
+import proxy.buffers.BufferPool;
+import proxy.metrics.ProxyMetrics;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hermetic soak suite: the proxy, a fake DNS server and the loopback destinations all run in this JVM.
+ * Every scenario's results are compared with a baseline file; the run exits with status 1 when a metric
+ * regresses by more than soak.threshold. Without a baseline file, or with -Dsoak.record=true, the
+ * results are written as the new baseline.
+ *
+ * <pre>java -cp target/benchmarks.jar proxy.benchmarks.soak.SoakSuite</pre>
+ *
+ * The proxy runs the engine chosen by proxy.engine, so both engines can be compared under the same
+ * scenarios, each against its own baseline:
+ *
+ * <pre>java -Dproxy.engine=virtual -Dsoak.baseline=soak-baseline-virtual.properties -cp target/benchmarks.jar proxy.benchmarks.soak.SoakSuite</pre>
+ */
+public class SoakSuite {
+    private static final String HOST = "127.0.0.1";
+    private static final int DURATION_SECONDS = Integer.getInteger("soak.duration", 10);
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("soak.threshold", "0.2"));
+    private static final String BASELINE_FILE = System.getProperty("soak.baseline", "soak-baseline.properties");
+    private static final boolean RECORD = Boolean.getBoolean("soak.record");
+    private static final String SCENARIOS = System.getProperty("soak.scenarios", "");
+
+    private enum Metric {
+        CONNECTIONS_PER_SECOND(true, 0),
+        REQUESTS_PER_SECOND(true, 0),
+        THROUGHPUT_MBPS(true, 0),
+        CONNECT_P99_MICROS(false, 2000),
+        REQUEST_P99_MICROS(false, 2000),
+        ERROR_RATE(false, 0.01),
+        PEAK_BORROWED_MB(false, 4);
+
+        final boolean higherIsBetter;
+        final double slack;
+
+        Metric(boolean higherIsBetter, double slack) {
+            this.higherIsBetter = higherIsBetter;
+            this.slack = slack;
+        }
+
+        String key(String scenario) {
+            return scenario + "." + name().toLowerCase();
+        }
+    }
+
+    private record Scenario(String name, LoadConfig load, long dnsLatencyMillis, double dnsLossRate, long dnsTtl) {}
+
+    public static void main(String[] args) throws Exception {
+        FakeDnsServer dns = new FakeDnsServer();
+        dns.start();
+        System.setProperty("proxy.dns.server", HOST + ":" + dns.getPort());
+        System.setProperty("proxy.accessLog.file", "");
+        System.setProperty("proxy.metrics.jmx", "false");
+        int proxyPort = startProxy();
+
+        Properties baseline = loadBaseline();
+        Properties results = new Properties();
+        List<String> regressions = new ArrayList<>();
+        for (Scenario scenario : scenarios(proxyPort)) {
+            if (!SCENARIOS.isEmpty() && !List.of(SCENARIOS.split(",")).contains(scenario.name())) {
+                continue;
+            }
+            Map<Metric, Double> values = run(scenario, dns);
+            for (Map.Entry<Metric, Double> entry : values.entrySet()) {
+                String key = entry.getKey().key(scenario.name());
+                results.setProperty(key, String.valueOf(entry.getValue()));
+                String regression = compare(entry.getKey(), key, entry.getValue(), baseline);
+                if (regression != null) {
+                    regressions.add(regression);
+                }
+            }
+        }
+
+        if (baseline == null || RECORD) {
+            try (OutputStream out = new FileOutputStream(BASELINE_FILE)) {
+                results.store(out, "Soak suite baseline");
+            }
+            System.out.println("Baseline written to " + BASELINE_FILE);
+            System.exit(0);
+        }
+        if (!regressions.isEmpty()) {
+            System.out.println("Regressions past " + (int) (THRESHOLD * 100) + "% :");
+            regressions.forEach(regression -> System.out.println("  " + regression));
+            System.exit(1);
+        }
+        System.out.println("No regressions against " + BASELINE_FILE);
+        System.exit(0);
+    }
+
+    private static List<Scenario> scenarios(int proxyPort) {
+        return List.of(
+                new Scenario("connection-storm", load(proxyPort).setConnections(500).setRequestsPerConnection(1)
+                        .setDomainRatio(0.5).setDomainCount(50), 0, 0, 60),
+                new Scenario("steady-rr", load(proxyPort).setConnections(200).setRequestsPerConnection(0), 0, 0, 60),
+                new Scenario("slow-resolver", load(proxyPort).setConnections(200).setRequestsPerConnection(1)
+                        .setDomainRatio(1).setDomainCount(100_000).setDomain("slow.test"), 150, 0, 1),
+                new Scenario("dns-loss", load(proxyPort).setConnections(200).setRequestsPerConnection(1)
+                        .setDomainRatio(1).setDomainCount(100_000).setDomain("lossy.test"), 5, 0.2, 1),
+                new Scenario("bulk-stream", load(proxyPort).setConnections(20).setPattern(LoadConfig.Pattern.STREAM)
+                        .setMessageSize(16 * 1024).setStreamBytes(0), 0, 0, 60),
+                new Scenario("slow-readers", load(proxyPort).setConnections(200)
+                        .setPattern(LoadConfig.Pattern.DOWNLOAD).setMessageSize(16 * 1024)
+                        .setReadRate(64 * 1024), 0, 0, 60));
+    }
+
+    private static LoadConfig load(int proxyPort) {
+        return new LoadConfig().setProxyHost(HOST).setProxyPort(proxyPort).setTargetHost(HOST).setTargetPort(0)
+                .setDurationSeconds(DURATION_SECONDS).setThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))
+                .setPattern(LoadConfig.Pattern.RR).setMessageSize(256).setDomainRatio(0).setDomainCount(0)
+                .setReadRate(0).setReconnectDelayMillis(100);
+    }
+
+    private static Map<Metric, Double> run(Scenario scenario, FakeDnsServer dns) throws Exception {
+        System.out.println("== " + scenario.name());
+        dns.configure(scenario.dnsLatencyMillis(), scenario.dnsLossRate(), scenario.dnsTtl());
+        InetSocketAddress target = Client.startTarget(scenario.load());
+
+        AtomicLong peakBorrowed = new AtomicLong();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakBorrowed.accumulateAndGet(BufferPool.getInstance().getBorrowedBytes(), Math::max);
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "soak-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long start = System.nanoTime();
+        LoadStats stats = Client.run(scenario.load(), target, null);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        sampler.join();
+        Client.report(stats, seconds, System.out);
+        waitForDrain();
+
+        Map<Metric, Double> values = new EnumMap<>(Metric.class);
+        values.put(Metric.CONNECTIONS_PER_SECOND, stats.getConnectionsOpened() / seconds);
+        values.put(Metric.REQUESTS_PER_SECOND, stats.getRequests() / seconds);
+        values.put(Metric.THROUGHPUT_MBPS, (stats.getBytesSent() + stats.getBytesReceived()) / seconds / 1e6);
+        values.put(Metric.CONNECT_P99_MICROS, (double) stats.getConnectLatency().getValueAtQuantile(0.99));
+        values.put(Metric.REQUEST_P99_MICROS, (double) stats.getRequestLatency().getValueAtQuantile(0.99));
+        values.put(Metric.ERROR_RATE,
+                stats.getErrors() / (double) Math.max(1, stats.getConnectionsOpened() + stats.getConnectionsFailed()));
+        values.put(Metric.PEAK_BORROWED_MB, peakBorrowed.get() / 1e6);
+        return values;
+    }
+
+    private static String compare(Metric metric, String key, double value, Properties baseline) {
+        if (baseline == null || baseline.getProperty(key) == null) {
+            return null;
+        }
+        double expected = Double.parseDouble(baseline.getProperty(key));
+        boolean regressed = metric.higherIsBetter
+                ? expected > 0 && value < expected * (1 - THRESHOLD)
+                : value > expected * (1 + THRESHOLD) + metric.slack;
+        if (!regressed) {
+            return null;
+        }
+        return String.format("%s : %.2f, baseline %.2f", key, value, expected);
+    }
+
+    private static Properties loadBaseline() throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(BASELINE_FILE)) {
+            baseline.load(in);
+            return baseline;
+        }
+        catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits until the proxy has closed the previous scenario's connections, so scenarios don't overlap.
+     */
+    private static void waitForDrain() throws InterruptedException {
+        for (int i = 0; i < 100 && ProxyMetrics.getInstance().getActiveConnections() > 0; ++i) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static int startProxy() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Thread boss = new Thread(() -> Proxy.getInstance().start(HOST, port, 0), "boss");
+        boss.setDaemon(true);
+        boss.start();
+        for (int i = 0; i < 100; ++i) {
+            try (Socket ignored = new Socket(HOST, port)) {
+                return port;
+            }
+            catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Proxy didn't start on port " + port);
+    }
+}
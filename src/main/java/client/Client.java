@@ -1,100 +1,108 @@
 package client;
 
+import proxy.metrics.LatencyHistogram;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
+/**
+ * SOCKS5 load generator. Opens load.connections concurrent sessions through the proxy to an embedded
+ * loopback server: echo for pattern rr (request/response of load.messageSize bytes), sink for pattern
+ * stream (bulk upload of load.streamBytes per session) and source for pattern download (reads limited
+ * to load.readRate bytes per second). Reports connections per second, throughput and latency
+ * percentiles. All settings are described in {@link LoadConfig}.
+ */
 public class Client {
-    public static void main(String[] args) throws IOException {
-        String proxyHost = "localhost";
-        int proxyPort = 5000;
-
-        // Создаем сокет и подключаемся к прокси
-        Socket proxySocket = new Socket(proxyHost, proxyPort);
-
-        // Отправляем сообщение о начале проксирования (версия SOCKS5, один метод - без аутентификации)
-        OutputStream proxyOut = proxySocket.getOutputStream();
-        proxyOut.write(new byte[]{ 0x05, 0x01, 0x00 });
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadConfig config = new LoadConfig();
+        InetSocketAddress target = startTarget(config);
+        System.out.println("Proxy " + config.getProxyHost() + ":" + config.getProxyPort() + ", target " + target
+                + ", pattern " + config.getPattern() + ", " + config.getConnections() + " connections on "
+                + config.getThreads() + " threads for " + config.getDurationSeconds() + " s");
+        long start = System.nanoTime();
+        LoadStats stats = run(config, target, System.out);
+        report(stats, (System.nanoTime() - start) / 1e9, System.out);
+    }
 
-        // Читаем ответ от прокси
-        InputStream proxyIn = proxySocket.getInputStream();
-        byte[] response = new byte[2];
-        proxyIn.read(response);
-        System.out.println(response[0] + " " + response[1]);
-        if (response[0] != 0x05 || response[1] != 0x00) {
-            throw new IOException("Прокси не поддерживает требуемый метод");
+    /**
+     * Starts the embedded loopback server matching the pattern, unless load.targetPort points elsewhere.
+     */
+    public static InetSocketAddress startTarget(LoadConfig config) throws IOException {
+        if (config.getTargetPort() > 0) {
+            return new InetSocketAddress(InetAddress.getByName(config.getTargetHost()), config.getTargetPort());
         }
-
-        // Резолвим ipv4 адрес хоста example.com
-//        byte[] hostAddress = {(byte) 93, (byte) 184, (byte) 216, (byte) 34}; // IPv4 адрес example.com
-//
-//        // Отправляем запрос на подключение к example.com на порт 80
-//        byte[] request = new byte[]{
-//                0x05, // Версия SOCKS5
-//                0x01, // Команда - установка TCP-соединения
-//                0x00, // Зарезервировано
-//                0x01, // Тип адреса - IPv4
-//                hostAddress[0], hostAddress[1], hostAddress[2], hostAddress[3], // Адрес example.com в виде байтов
-//                (byte) (80 >> 8), (byte) 80 // Порт (80) в виде байтов
-//        };
-
-//        String host = "lib.ru";
-        String host = "example.com";
-        //String host = "speedtest.tele2.net";
-        byte[] request = new byte[]{
-                0x05, // Версия SOCKS5
-                0x01, // Команда - установка TCP-соединения
-                0x00, // Зарезервировано
-                0x03,
-                (byte) host.length(), // Длина адреса
-                // Адрес example.com в виде байтов
-                'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm',
-                //'l', 'i', 'b', '.', 'r', 'u',
-                //'s', 'p', 'e', 'e', 'd', 't', 'e', 's', 't', '.', 't', 'e', 'l', 'e', '2', '.', 'n', 'e', 't',
-                (byte) (80 >> 8), (byte) 80 // Порт (80) в виде байтов
+        EchoServer.Mode mode = switch (config.getPattern()) {
+            case RR -> EchoServer.Mode.ECHO;
+            case STREAM -> EchoServer.Mode.SINK;
+            case DOWNLOAD -> EchoServer.Mode.SOURCE;
         };
-        proxyOut.write(request);
-
-        // Читаем ответ от прокси
-        byte[] response2 = new byte[18];
-        int readBytes = proxyIn.read(response2);
+        EchoServer server = new EchoServer(config.getTargetHost(), 0, mode);
+        server.start();
+        return new InetSocketAddress(InetAddress.getByName(config.getTargetHost()), server.getPort());
+    }
 
-        // Печатаем ответ от прокси
-        for(int i = 0; i < readBytes; ++i) {
-            System.out.println(response2[i]);
+    /**
+     * Runs the sessions for the configured duration, printing a line per second when progress isn't null.
+     */
+    public static LoadStats run(LoadConfig config, InetSocketAddress target, PrintStream progress)
+            throws IOException, InterruptedException {
+        LoadStats stats = new LoadStats();
+        LoadWorker[] workers = new LoadWorker[Math.max(1, config.getThreads())];
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; ++i) {
+            int sessions = config.getConnections() / workers.length
+                    + (i < config.getConnections() % workers.length ? 1 : 0);
+            workers[i] = new LoadWorker(config, sessions, stats, target);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
         }
 
-        if (response2[1] != 0) {
-            proxySocket.close();
-            System.out.println("Proxy can't establish the connection with server. Close...");
-            return;
+        long lastOpened = 0;
+        long lastRequests = 0;
+        long lastBytes = 0;
+        for (int second = 1; second <= config.getDurationSeconds(); ++second) {
+            Thread.sleep(1000);
+            if (progress == null) {
+                continue;
+            }
+            long opened = stats.getConnectionsOpened();
+            long requests = stats.getRequests();
+            long bytes = stats.getBytesSent() + stats.getBytesReceived();
+            progress.printf("%3d s  conn/s %8d  req/s %9d  MB/s %9.1f  errors %d%n", second, opened - lastOpened,
+                    requests - lastRequests, (bytes - lastBytes) / 1e6, stats.getErrors());
+            lastOpened = opened;
+            lastRequests = requests;
+            lastBytes = bytes;
         }
-//        int port = ((response2[8] & 0xFF) << 8) + (response2[9] & 0xFF);
-//        System.out.println("port: " + port);
-
-        // Отправляем HTTP-запрос на example.com
-        String httpRequest = "GET / HTTP/1.0\r\nHost: example.com\r\n\r\n";
-        //String httpRequest = "GET /10MB.zip HTTP/1.0\r\nHost: speedtest.tele2.net\r\n\r\n";
-        proxyOut.write(httpRequest.getBytes());
+        for (LoadWorker worker : workers) {
+            worker.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return stats;
+    }
 
-        System.out.println("Request was sent");
+    public static void report(LoadStats stats, double seconds, PrintStream out) {
+        out.println();
+        out.printf("connections  %d opened, %d failed, %.0f/s%n", stats.getConnectionsOpened(),
+                stats.getConnectionsFailed(), stats.getConnectionsOpened() / seconds);
+        out.printf("requests     %d, %.0f/s%n", stats.getRequests(), stats.getRequests() / seconds);
+        out.printf("throughput   sent %.1f MB/s, received %.1f MB/s%n", stats.getBytesSent() / seconds / 1e6,
+                stats.getBytesReceived() / seconds / 1e6);
+        out.printf("errors       %d%n", stats.getErrors());
+        printLatency("connect", stats.getConnectLatency(), out);
+        printLatency("request", stats.getRequestLatency(), out);
+    }
 
-        // Читаем ответ от прокси
-        byte[] response3 = new byte[1024];
-        System.out.println("reading...");
-        while (true) {
-            int bytesRead = proxyIn.read(response3);
-            if (bytesRead == -1) {
-//                System.out.println("return -1");
-//                continue;
-                break;
-            }
-            // Печатаем ответ от прокси
-            System.out.println(new String(response3, 0, bytesRead));
+    private static void printLatency(String name, LatencyHistogram histogram, PrintStream out) {
+        if (histogram.getCount() == 0) {
+            return;
         }
-
-        // Закрываем соединение с прокси
-        proxySocket.close();//
+        out.printf("%-12s p50 %d us, p99 %d us, p999 %d us, mean %d us%n", name,
+                histogram.getValueAtQuantile(0.5), histogram.getValueAtQuantile(0.99),
+                histogram.getValueAtQuantile(0.999), histogram.getSumMicros() / histogram.getCount());
     }
 }
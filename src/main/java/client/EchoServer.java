@@ -0,0 +1,155 @@
+package client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Loopback destination for the load generator. In echo mode every byte is sent back, in sink mode
+ * everything is read and discarded, in source mode data is written as fast as the client takes it.
+ * One selector thread serves all connections.
+ */
+public class EchoServer implements Runnable {
+    public enum Mode {
+        ECHO,
+        SINK,
+        SOURCE
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EchoServer.class);
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private final Mode mode;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    public EchoServer(String host, int port, Mode mode) throws IOException {
+        this.mode = mode;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(host, port), 4096);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, mode.name().toLowerCase() + "-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer sharedBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    try {
+                        switch (mode) {
+                            case ECHO -> echo(key);
+                            case SINK -> drain(key, sharedBuffer);
+                            case SOURCE -> fill(key, sharedBuffer);
+                        }
+                    }
+                    catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            switch (mode) {
+                case ECHO -> channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFFER_SIZE));
+                case SINK -> channel.register(selector, SelectionKey.OP_READ);
+                case SOURCE -> channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void drain(SelectionKey key, ByteBuffer buffer) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        int len;
+        do {
+            buffer.clear();
+            len = channel.read(buffer);
+        } while (len > 0);
+        if (len < 0) {
+            close(key);
+        }
+    }
+
+    private void fill(SelectionKey key, ByteBuffer buffer) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (key.isReadable()) {
+            drain(key, buffer);
+            if (!key.isValid()) {
+                return;
+            }
+        }
+        if (key.isWritable()) {
+            buffer.clear();
+            channel.write(buffer);
+        }
+    }
+
+    private void echo(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        if (key.isReadable() && channel.read(buffer) < 0) {
+            close(key);
+            return;
+        }
+        buffer.flip();
+        channel.write(buffer);
+        buffer.compact();
+        int ops = 0;
+        if (buffer.hasRemaining()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (buffer.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
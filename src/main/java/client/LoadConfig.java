@@ -0,0 +1,189 @@
+package client;
+
+/**
+ * Settings of one load run. Defaults come from load.* system properties, setters allow a harness
+ * to run several differently configured scenarios in one JVM.
+ */
+public class LoadConfig {
+    public enum Pattern {
+        RR,
+        STREAM,
+        DOWNLOAD
+    }
+
+    private String proxyHost = System.getProperty("load.proxyHost", "127.0.0.1");
+    private int proxyPort = Integer.getInteger("load.proxyPort", 5000);
+    private int connections = Integer.getInteger("load.connections", 1000);
+    private int threads = Integer.getInteger("load.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private int durationSeconds = Integer.getInteger("load.duration", 30);
+    private Pattern pattern = Pattern.valueOf(System.getProperty("load.pattern", "rr").toUpperCase());
+    private int messageSize = Integer.getInteger("load.messageSize", 256);
+    private int requestsPerConnection = Integer.getInteger("load.requestsPerConnection", 100);
+    private long streamBytes = Long.getLong("load.streamBytes", 64L * 1024 * 1024);
+    private long readRate = Long.getLong("load.readRate", 0L);
+    private double domainRatio = Double.parseDouble(System.getProperty("load.domainRatio", "0"));
+    private String domain = System.getProperty("load.domain", "localhost");
+    private int domainCount = Integer.getInteger("load.domainCount", 0);
+    private String targetHost = System.getProperty("load.targetHost", "127.0.0.1");
+    private int targetPort = Integer.getInteger("load.targetPort", 0);
+    private long reconnectDelayMillis = Long.getLong("load.reconnectDelay", 100L);
+
+    public String getProxyHost() {
+        return proxyHost;
+    }
+
+    public LoadConfig setProxyHost(String proxyHost) {
+        this.proxyHost = proxyHost;
+        return this;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public LoadConfig setProxyPort(int proxyPort) {
+        this.proxyPort = proxyPort;
+        return this;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public LoadConfig setConnections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public LoadConfig setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public LoadConfig setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public LoadConfig setPattern(Pattern pattern) {
+        this.pattern = pattern;
+        return this;
+    }
+
+    /**
+     * Request size for rr, write chunk for stream and read chunk for download.
+     */
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public LoadConfig setMessageSize(int messageSize) {
+        this.messageSize = messageSize;
+        return this;
+    }
+
+    /**
+     * Exchanges before a rr session closes and reconnects, 0 keeps it open for the whole run.
+     */
+    public int getRequestsPerConnection() {
+        return requestsPerConnection;
+    }
+
+    public LoadConfig setRequestsPerConnection(int requestsPerConnection) {
+        this.requestsPerConnection = requestsPerConnection;
+        return this;
+    }
+
+    /**
+     * Bytes uploaded by a stream session before it reconnects, 0 streams for the whole run.
+     */
+    public long getStreamBytes() {
+        return streamBytes;
+    }
+
+    public LoadConfig setStreamBytes(long streamBytes) {
+        this.streamBytes = streamBytes;
+        return this;
+    }
+
+    /**
+     * Bytes per second a download session reads, 0 reads as fast as possible.
+     */
+    public long getReadRate() {
+        return readRate;
+    }
+
+    public LoadConfig setReadRate(long readRate) {
+        this.readRate = readRate;
+        return this;
+    }
+
+    public double getDomainRatio() {
+        return domainRatio;
+    }
+
+    public LoadConfig setDomainRatio(double domainRatio) {
+        this.domainRatio = domainRatio;
+        return this;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public LoadConfig setDomain(String domain) {
+        this.domain = domain;
+        return this;
+    }
+
+    /**
+     * Distinct host names h0.domain ... h(n-1).domain to spread CONNECTs over, 0 uses the domain itself.
+     */
+    public int getDomainCount() {
+        return domainCount;
+    }
+
+    public LoadConfig setDomainCount(int domainCount) {
+        this.domainCount = domainCount;
+        return this;
+    }
+
+    public String getTargetHost() {
+        return targetHost;
+    }
+
+    public LoadConfig setTargetHost(String targetHost) {
+        this.targetHost = targetHost;
+        return this;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    public LoadConfig setTargetPort(int targetPort) {
+        this.targetPort = targetPort;
+        return this;
+    }
+
+    public long getReconnectDelayMillis() {
+        return reconnectDelayMillis;
+    }
+
+    public LoadConfig setReconnectDelayMillis(long reconnectDelayMillis) {
+        this.reconnectDelayMillis = reconnectDelayMillis;
+        return this;
+    }
+}
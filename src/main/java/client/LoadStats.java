@@ -0,0 +1,51 @@
+package client;
+
+import proxy.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by all load workers.
+ */
+public class LoadStats {
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsFailed = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+    final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getConnectionsFailed() {
+        return connectionsFailed.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+}
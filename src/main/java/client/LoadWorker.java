@@ -0,0 +1,359 @@
+package client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.handlers.Handler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One selector thread driving a share of the SOCKS5 sessions. A session connects, does the greeting
+ * and the CONNECT, then runs the configured pattern and reconnects when it is done or fails.
+ * Reconnects and rate-limited reads wait in a queue that is checked on every loop iteration.
+ */
+public class LoadWorker implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(LoadWorker.class);
+
+    private enum Phase {
+        CONNECTING,
+        GREETING,
+        REQUEST,
+        RUNNING
+    }
+
+    private class Session {
+        private final ByteBuffer output;
+        private final ByteBuffer input;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private Phase phase;
+        private long startTime;
+        private long requestTime;
+        private int requestsDone;
+        private long streamed;
+        private long wakeupTime;
+        private boolean reading;
+
+        private Session() {
+            output = ByteBuffer.allocateDirect(Math.max(MAX_REQUEST_SIZE, config.getMessageSize()));
+            input = ByteBuffer.allocateDirect(Math.max(MAX_REPLY_SIZE, config.getMessageSize()));
+        }
+
+        private void wakeUp() throws IOException {
+            if (reading) {
+                reading = false;
+                Handler.addInterest(key, SelectionKey.OP_READ);
+            }
+            else {
+                open();
+            }
+        }
+
+        private void open() throws IOException {
+            phase = Phase.CONNECTING;
+            requestsDone = 0;
+            streamed = 0;
+            startTime = System.nanoTime();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(proxyAddress)) {
+                onConnected();
+            }
+        }
+
+        private void handleKey() throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                onConnected();
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+
+        private void onConnected() throws IOException {
+            phase = Phase.GREETING;
+            output.clear();
+            output.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00).flip();
+            expect(2);
+            write();
+        }
+
+        private void expect(int bytes) {
+            input.clear().limit(bytes);
+        }
+
+        private void read() throws IOException {
+            if (channel.read(input) < 0) {
+                throw new IOException("Connection closed by proxy in phase " + phase);
+            }
+            if (phase == Phase.RUNNING && config.getPattern() != LoadConfig.Pattern.RR) {
+                int len = input.position();
+                stats.bytesReceived.add(len);
+                input.clear();
+                if (config.getReadRate() > 0 && len > 0) {
+                    Handler.removeInterest(key, SelectionKey.OP_READ);
+                    reading = true;
+                    wakeupTime = System.currentTimeMillis() + len * 1000L / config.getReadRate();
+                    pending.add(this);
+                }
+                return;
+            }
+            if (input.hasRemaining()) {
+                return;
+            }
+            switch (phase) {
+                case GREETING -> {
+                    if (input.get(0) != 0x05 || input.get(1) != 0x00) {
+                        throw new IOException("No authentication method was rejected");
+                    }
+                    phase = Phase.REQUEST;
+                    writeRequest();
+                }
+                case REQUEST -> readReply();
+                case RUNNING -> {
+                    stats.bytesReceived.add(input.position());
+                    stats.requests.increment();
+                    stats.requestLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestTime));
+                    if (++requestsDone == config.getRequestsPerConnection()) {
+                        finish();
+                        return;
+                    }
+                    sendMessage();
+                }
+                default -> throw new IOException("Unexpected data in phase " + phase);
+            }
+        }
+
+        private void writeRequest() throws IOException {
+            output.clear();
+            output.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < config.getDomainRatio()) {
+                byte[] host = config.getDomainCount() > 0 ? domains[random.nextInt(domains.length)] : domain;
+                output.put((byte) 0x03).put((byte) host.length).put(host);
+            }
+            else {
+                output.put((byte) 0x01).put(targetAddress);
+            }
+            output.putShort((short) targetPort).flip();
+            expect(4);
+            write();
+        }
+
+        private void readReply() throws IOException {
+            if (input.limit() == 4) {
+                if (input.get(1) != 0x00) {
+                    throw new IOException("CONNECT failed with reply " + input.get(1));
+                }
+                int addressLength = switch (input.get(3)) {
+                    case 0x01 -> 4;
+                    case 0x04 -> 16;
+                    default -> throw new IOException("Unexpected address type in reply " + input.get(3));
+                };
+                input.limit(4 + addressLength + 2);
+                return;
+            }
+            phase = Phase.RUNNING;
+            stats.connectionsOpened.increment();
+            stats.connectLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+            if (config.getPattern() == LoadConfig.Pattern.STREAM) {
+                input.clear();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            else if (config.getPattern() == LoadConfig.Pattern.DOWNLOAD) {
+                input.clear();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            else {
+                sendMessage();
+            }
+        }
+
+        private void sendMessage() throws IOException {
+            output.clear().limit(config.getMessageSize());
+            expect(config.getMessageSize());
+            requestTime = System.nanoTime();
+            write();
+        }
+
+        private void write() throws IOException {
+            if (phase == Phase.RUNNING && config.getPattern() == LoadConfig.Pattern.STREAM) {
+                stream();
+                return;
+            }
+            int len = channel.write(output);
+            if (phase == Phase.RUNNING) {
+                stats.bytesSent.add(len);
+            }
+            key.interestOps(output.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void stream() throws IOException {
+            for (int i = 0; i < MAX_WRITES_PER_EVENT; ++i) {
+                if (!output.hasRemaining()) {
+                    long left = config.getStreamBytes() == 0 ? output.capacity() : config.getStreamBytes() - streamed;
+                    if (left == 0) {
+                        finish();
+                        return;
+                    }
+                    output.clear().limit((int) Math.min(output.capacity(), left));
+                }
+                int len = channel.write(output);
+                streamed += len;
+                stats.bytesSent.add(len);
+                if (len == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void finish() {
+            closeChannel();
+            wakeupTime = 0;
+            pending.add(this);
+        }
+
+        private void fail(Exception e) {
+            stats.errors.increment();
+            if (phase != Phase.RUNNING) {
+                stats.connectionsFailed.increment();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Session failed : " + e);
+            }
+            closeChannel();
+            boolean queued = reading;
+            reading = false;
+            wakeupTime = System.currentTimeMillis() + config.getReconnectDelayMillis();
+            if (!queued) {
+                pending.add(this);
+            }
+        }
+
+        private void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+            }
+        }
+    }
+
+    private static final int MAX_REQUEST_SIZE = 262;
+    private static final int MAX_REPLY_SIZE = 22;
+    private static final int MAX_WRITES_PER_EVENT = 16;
+    private final Selector selector;
+    private final LoadConfig config;
+    private final LoadStats stats;
+    private final InetSocketAddress proxyAddress;
+    private final byte[] targetAddress;
+    private final byte[] domain;
+    private final byte[][] domains;
+    private final int targetPort;
+    private final Queue<Session> pending = new ArrayDeque<>();
+    private volatile boolean running = true;
+
+    public LoadWorker(LoadConfig config, int sessions, LoadStats stats, InetSocketAddress targetAddress)
+            throws IOException {
+        this.config = config;
+        this.stats = stats;
+        selector = Selector.open();
+        proxyAddress = new InetSocketAddress(config.getProxyHost(), config.getProxyPort());
+        this.targetAddress = targetAddress.getAddress().getAddress();
+        targetPort = targetAddress.getPort();
+        domain = config.getDomain().getBytes(StandardCharsets.US_ASCII);
+        domains = new byte[config.getDomainCount()][];
+        for (int i = 0; i < domains.length; ++i) {
+            domains[i] = ("h" + i + "." + config.getDomain()).getBytes(StandardCharsets.US_ASCII);
+        }
+        for (int i = 0; i < sessions; ++i) {
+            pending.add(new Session());
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                long nextWakeup = wakeUpSessions(now);
+                selector.select(nextWakeup == 0 ? 0 : Math.max(1, nextWakeup - now));
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            session.handleKey();
+                        }
+                    }
+                    catch (IOException e) {
+                        session.fail(e);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Session) key.attachment()).closeChannel();
+            }
+        }
+    }
+
+    /**
+     * Reconnects or resumes reading of every session whose time has come, returns the time of the
+     * next pending one or 0.
+     */
+    private long wakeUpSessions(long now) {
+        int count = pending.size();
+        long nextWakeup = 0;
+        for (int i = 0; i < count; ++i) {
+            Session session = pending.poll();
+            if (session.wakeupTime > now) {
+                pending.add(session);
+                nextWakeup = nextWakeup == 0 ? session.wakeupTime : Math.min(nextWakeup, session.wakeupTime);
+                continue;
+            }
+            try {
+                session.wakeUp();
+            }
+            catch (IOException e) {
+                session.fail(e);
+            }
+        }
+        return nextWakeup;
+    }
+}
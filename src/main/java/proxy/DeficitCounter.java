@@ -0,0 +1,48 @@
+package proxy;
+
+import proxy.config.ProxyConfig;
+
+/**
+ * Deficit round-robin state of one relay direction. Each round the direction takes part in adds
+ * proxy.relay.quantum bytes of credit and a read may take the whole credit. A direction that read
+ * all it could take may have more pending, so it is deferred to another round of the same loop
+ * iteration while the iteration budget lasts; one that read less was drained and starts from zero.
+ * So does one whose read was held back by a smaller limit, such as bandwidth shaping, so that it
+ * doesn't pile up credit it couldn't use.
+ */
+public final class DeficitCounter {
+    private final Reactor reactor;
+    private final Runnable resume;
+    private long deficit;
+    private long round = -1;
+
+    public DeficitCounter(Reactor reactor, Runnable resume) {
+        this.reactor = reactor;
+        this.resume = resume;
+    }
+
+    public long allowance() {
+        if (round != reactor.getRound()) {
+            round = reactor.getRound();
+            deficit += ProxyConfig.RELAY_QUANTUM;
+        }
+        return deficit;
+    }
+
+    /**
+     * Accounts a read of len bytes that was allowed up to allowance bytes.
+     */
+    public void used(long len, long allowance) {
+        reactor.relayed(len);
+        if (len < allowance || allowance < deficit) {
+            deficit = 0;
+            return;
+        }
+        deficit = Math.max(0, deficit - len);
+        reactor.defer(this);
+    }
+
+    void resume() {
+        resume.run();
+    }
+}
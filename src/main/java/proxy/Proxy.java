@@ -2,25 +2,30 @@ package proxy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import proxy.handlers.ClientHandler;
-import proxy.handlers.DnsHandler;
+import proxy.admission.AdmissionControl;
+import proxy.admission.Rejection;
+import proxy.config.ProxyConfig;
+import proxy.egress.EgressPool;
+import proxy.upstream.UpstreamRules;
+import proxy.handlers.BindListenerPool;
 import proxy.handlers.Handler;
+import proxy.metrics.MetricsServer;
+import proxy.metrics.ProxyMetrics;
+import proxy.vthread.VirtualThreadEngine;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class Proxy {
     private static final Logger log = LoggerFactory.getLogger(Proxy.class);
-    private static final long DNS_TIMEOUT = 1000;
     private static Proxy instance;
     private Selector selector;
-    private Map<SelectableChannel, Handler> channelHandlers;
-    private DnsHandler dnsHandler;
+    private Reactor[] reactors;
+    private int nextReactor;
 
     private Proxy() {}
     public static Proxy getInstance() {
@@ -31,45 +36,59 @@ public class Proxy {
     }
 
     public void start(String host, int proxyPort, int dnsPort) {
-        channelHandlers = new ConcurrentHashMap<>();
-
+        if (ProxyConfig.ENGINE.equals("virtual")) {
+            new VirtualThreadEngine().start(host, proxyPort);
+            return;
+        }
         try {
             selector = SelectorProvider.provider().openSelector();
             ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
             serverSocketChannel.configureBlocking(false);
-            serverSocketChannel.socket().bind(new InetSocketAddress(host, proxyPort));
+            serverSocketChannel.socket().bind(new InetSocketAddress(host, proxyPort), ProxyConfig.ACCEPT_BACKLOG);
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-            dnsHandler = DnsHandler.getInstance();
-            dnsHandler.start(host, dnsPort, selector);
+            UpstreamRules.getInstance().start();
+            reactors = new Reactor[Math.max(1, ProxyConfig.REACTOR_THREADS)];
+            for (int i = 0; i < reactors.length; ++i) {
+                reactors[i] = new Reactor(i, host, dnsPort);
+            }
+            BindListenerPool.getInstance().start(host);
+            EgressPool.getInstance().start();
+            if (ProxyConfig.METRICS_PORT >= 0) {
+                new MetricsServer(selector, ProxyConfig.METRICS_HOST, ProxyConfig.METRICS_PORT);
+            }
+            if (ProxyConfig.METRICS_JMX) {
+                ProxyMetrics.getInstance().registerMBean();
+            }
         }
         catch (IOException e) {
             log.error(e.toString());
             System.exit(1);
         }
 
-        log.info("Proxy server started. Host : " + host + ". Port : " + proxyPort);
+        for (Reactor reactor : reactors) {
+            Thread thread = new Thread(reactor, "reactor-" + reactor.getId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        log.info("Proxy server started. Host : " + host + ". Port : " + proxyPort
+                + ". Reactors : " + reactors.length);
         try {
             while (true) {
-                long currentTimeout = 0;
-                if (dnsHandler.isWaitingForResponse()) {
-                    currentTimeout = DNS_TIMEOUT;
-                }
-                selector.select(currentTimeout);
+                selector.select();
                 Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                if (currentTimeout > 0 && !iterator.hasNext()) {
-                    dnsHandler.handleLostDatagram();
-                }
                 while (iterator.hasNext()) {
                     SelectionKey key = iterator.next();
                     iterator.remove();
-                    if (key.isValid()) {
-                        if (key.isAcceptable()) {
-                            accept(key);
-                        }
-                        else {
-                            channelHandlers.get(key.channel()).handleKey();
-                        }
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof Handler handler) {
+                        handler.handleKey();
+                    }
+                    else if (key.isAcceptable()) {
+                        accept(key);
                     }
                 }
             }
@@ -79,22 +98,77 @@ public class Proxy {
         }
     }
 
+    /**
+     * Accepts up to proxy.accept.batch connections per wakeup and wakes each reactor that got one
+     * once. Connections refused by admission control are reset right away; a connection that fails
+     * before it reaches a reactor is closed without ending the batch.
+     */
     private void accept(SelectionKey key) {
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+        boolean[] woken = new boolean[reactors.length];
+        for (int i = 0; i < ProxyConfig.ACCEPT_BATCH; ++i) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverSocketChannel.accept();
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+                break;
+            }
+            if (clientChannel == null) {
+                break;
+            }
+            InetSocketAddress remoteAddress;
+            try {
+                remoteAddress = (InetSocketAddress) clientChannel.getRemoteAddress();
+                Rejection rejection = AdmissionControl.getInstance().admit(remoteAddress.getAddress());
+                if (rejection != null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Connection from " + remoteAddress.getAddress().getHostAddress() + " rejected : "
+                                + rejection.label());
+                    }
+                    reset(clientChannel);
+                    continue;
+                }
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+                reset(clientChannel);
+                continue;
+            }
+            try {
+                clientChannel.configureBlocking(false);
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+                AdmissionControl.getInstance().release(remoteAddress.getAddress());
+                reset(clientChannel);
+                continue;
+            }
+            ProxyMetrics.getInstance().connectionAccepted();
+            reactors[nextReactor].addClient(clientChannel, remoteAddress);
+            woken[nextReactor] = true;
+            nextReactor = (nextReactor + 1) % reactors.length;
+        }
+        for (int i = 0; i < reactors.length; ++i) {
+            if (woken[i]) {
+                reactors[i].wakeup();
+            }
+        }
+    }
+
+    private static void reset(SocketChannel channel) {
         try {
-            ClientHandler clientHandler = new ClientHandler(key);
-            putNewChannel(clientHandler.getClientChannel(), clientHandler);
-            log.info("New client accepted.");
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        try {
+            channel.close();
         }
         catch (IOException e) {
             log.error(e.toString());
         }
     }
-
-    public void putNewChannel(SelectableChannel channel, Handler handler) {
-        channelHandlers.put(channel, handler);
-    }
-
-    public void removeChannelFromMap(SelectableChannel channel) {
-        channelHandlers.remove(channel);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,216 @@
+package proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.admission.AdmissionControl;
+import proxy.config.ProxyConfig;
+import proxy.handlers.ClientHandler;
+import proxy.handlers.DnsHandler;
+import proxy.handlers.Handler;
+import proxy.handlers.TunnelPool;
+import proxy.metrics.ProxyMetrics;
+import proxy.timer.TimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Worker event loop. Every accepted client and its server side stay on the reactor
+ * that received the client, so handlers and the channel map are confined to one thread.
+ * Relay reads are scheduled by deficit round-robin, see DeficitCounter: after the selected keys
+ * are handled, directions that used their whole quantum get further rounds until
+ * proxy.relay.iterationBudget bytes were relayed in the iteration. The constructor hands itself to
+ * its DnsHandler and TunnelPool, which only keep the reference until the reactor runs.
+ */
+public final class Reactor implements Runnable {
+    private record AcceptedChannel(SocketChannel channel, InetSocketAddress remoteAddress, long acceptTime) {}
+
+    private static final Logger log = LoggerFactory.getLogger(Reactor.class);
+    private final int id;
+    private final Selector selector;
+    private final Map<SelectableChannel, Handler> channelHandlers = new HashMap<>();
+    private final Queue<AcceptedChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<DeficitCounter> deferredReads = new ArrayDeque<>();
+    private long round;
+    private long iterationBytes;
+    private final DnsHandler dnsHandler;
+    private final TunnelPool tunnelPool;
+    private final TimingWheel timingWheel;
+    private long loopTime;
+
+    public Reactor(int id, String host, int dnsPort) throws IOException {
+        this.id = id;
+        selector = SelectorProvider.provider().openSelector();
+        loopTime = System.currentTimeMillis();
+        timingWheel = new TimingWheel(ProxyConfig.TIMER_TICK_MILLIS, ProxyConfig.TIMER_WHEEL_SIZE, loopTime);
+        dnsHandler = new DnsHandler(this);
+        dnsHandler.start(host, dnsPort);
+        tunnelPool = new TunnelPool(this);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public DnsHandler getDnsHandler() {
+        return dnsHandler;
+    }
+
+    public TunnelPool getTunnelPool() {
+        return tunnelPool;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Time taken at the start of the current loop iteration, cheap enough for per-read bookkeeping.
+     */
+    public long getLoopTime() {
+        return loopTime;
+    }
+
+    /**
+     * Number of the current relay round; it changes at least once per loop iteration.
+     */
+    public long getRound() {
+        return round;
+    }
+
+    void defer(DeficitCounter counter) {
+        deferredReads.add(counter);
+    }
+
+    void relayed(long len) {
+        iterationBytes += len;
+    }
+
+    /**
+     * Hands over an admitted connection; the address it was admitted for is released when it closes.
+     */
+    public void addClient(SocketChannel clientChannel, InetSocketAddress remoteAddress) {
+        acceptedChannels.add(new AcceptedChannel(clientChannel, remoteAddress, System.nanoTime()));
+    }
+
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void putNewChannel(SelectableChannel channel, Handler handler) {
+        channelHandlers.put(channel, handler);
+    }
+
+    public void removeChannelFromMap(SelectableChannel channel) {
+        channelHandlers.remove(channel);
+    }
+
+    @Override
+    public void run() {
+        log.info("Reactor " + id + " started");
+        tunnelPool.start();
+        try {
+            while (true) {
+                selector.select(nextSelectTimeout(System.currentTimeMillis()));
+                long loopStart = System.nanoTime();
+                loopTime = System.currentTimeMillis();
+                registerAcceptedChannels();
+                runTasks();
+                round++;
+                iterationBytes = 0;
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        Handler handler = channelHandlers.get(key.channel());
+                        if (handler != null) {
+                            handler.handleKey();
+                        }
+                    }
+                }
+                runDeferredReads();
+                loopTime = System.currentTimeMillis();
+                dnsHandler.handleTimeouts(loopTime);
+                timingWheel.advance(loopTime);
+                ProxyMetrics.getInstance().loopIteration(System.nanoTime() - loopStart);
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+
+    private long nextSelectTimeout(long now) {
+        long dnsTimeout = dnsHandler.getNextTimeout(now);
+        long timerTimeout = timingWheel.getNextTimeout(now);
+        if (dnsTimeout == 0 || timerTimeout == 0) {
+            return Math.max(dnsTimeout, timerTimeout);
+        }
+        return Math.min(dnsTimeout, timerTimeout);
+    }
+
+    /**
+     * Directions left over when the budget runs out stay readable, so the next select reports them again.
+     */
+    private void runDeferredReads() {
+        while (!deferredReads.isEmpty() && iterationBytes < ProxyConfig.RELAY_ITERATION_BUDGET) {
+            round++;
+            for (int i = deferredReads.size(); i > 0; --i) {
+                deferredReads.poll().resume();
+            }
+        }
+        deferredReads.clear();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void registerAcceptedChannels() {
+        AcceptedChannel accepted;
+        while ((accepted = acceptedChannels.poll()) != null) {
+            SocketChannel clientChannel = accepted.channel();
+            try {
+                ClientHandler clientHandler = new ClientHandler(clientChannel, accepted.remoteAddress(), this,
+                        accepted.acceptTime());
+                putNewChannel(clientChannel, clientHandler);
+                log.debug("New client accepted by reactor " + id);
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+                AdmissionControl.getInstance().release(accepted.remoteAddress().getAddress());
+                try {
+                    clientChannel.close();
+                }
+                catch (IOException ex) {
+                    log.error(ex.toString());
+                }
+            }
+        }
+    }
+}
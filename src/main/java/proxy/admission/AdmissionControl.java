@@ -0,0 +1,92 @@
+package proxy.admission;
+
+import proxy.buffers.BufferPool;
+import proxy.config.ProxyConfig;
+import proxy.metrics.ProxyMetrics;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides on the accept path whether a new client connection is served. Connections are refused
+ * above proxy.limit.connections in total, above proxy.limit.connectionsPerClient from one IP, and
+ * while the buffer pool is more than proxy.admission.bufferUsage full or proxy.admission.dnsBacklog
+ * DNS lookups are pending. Every admitted connection must be released exactly once when it closes.
+ */
+public final class AdmissionControl {
+    private static final AdmissionControl instance = new AdmissionControl();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger dnsLookups = new AtomicInteger();
+    private final Map<InetAddress, Integer> clientConnections = new ConcurrentHashMap<>();
+    private final long bufferThreshold = (long) (BufferPool.getInstance().getMaxBytes() * ProxyConfig.ADMISSION_BUFFER_USAGE);
+
+    private AdmissionControl() {}
+
+    public static AdmissionControl getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers the connection and returns null when it is admitted, otherwise counts and returns the reason.
+     */
+    public Rejection admit(InetAddress client) {
+        Rejection rejection = check(client);
+        if (rejection != null) {
+            ProxyMetrics.getInstance().connectionRejected(rejection);
+        }
+        return rejection;
+    }
+
+    private Rejection check(InetAddress client) {
+        if (BufferPool.getInstance().getBorrowedBytes() > bufferThreshold) {
+            return Rejection.BUFFERS;
+        }
+        if (dnsLookups.get() >= ProxyConfig.ADMISSION_DNS_BACKLOG) {
+            return Rejection.DNS;
+        }
+        if (connections.incrementAndGet() > ProxyConfig.MAX_CONNECTIONS && ProxyConfig.MAX_CONNECTIONS > 0) {
+            connections.decrementAndGet();
+            return Rejection.CONNECTIONS;
+        }
+        if (ProxyConfig.MAX_CONNECTIONS_PER_CLIENT > 0) {
+            boolean[] admitted = new boolean[1];
+            clientConnections.compute(client, (address, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= ProxyConfig.MAX_CONNECTIONS_PER_CLIENT) {
+                    return count;
+                }
+                admitted[0] = true;
+                return current + 1;
+            });
+            if (!admitted[0]) {
+                connections.decrementAndGet();
+                return Rejection.CLIENT;
+            }
+        }
+        return null;
+    }
+
+    public void release(InetAddress client) {
+        connections.decrementAndGet();
+        if (ProxyConfig.MAX_CONNECTIONS_PER_CLIENT > 0) {
+            clientConnections.computeIfPresent(client, (address, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Counts a lookup sent to the DNS server by either engine until dnsLookupFinished is called for it.
+     */
+    public void dnsLookupStarted() {
+        dnsLookups.incrementAndGet();
+    }
+
+    public void dnsLookupFinished() {
+        dnsLookups.decrementAndGet();
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+}
@@ -0,0 +1,18 @@
+package proxy.admission;
+
+public enum Rejection {
+    CONNECTIONS("connections"),
+    CLIENT("client"),
+    BUFFERS("buffers"),
+    DNS("dns");
+
+    private final String label;
+
+    Rejection(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+}
@@ -0,0 +1,199 @@
+package proxy.buffers;
+
+import proxy.exceptions.BufferPoolExhaustedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * FIFO of pooled segments for one relay direction. Bytes are read in with one scattering read
+ * and written out with one gathering write; consumed segments go straight back to the pool,
+ * so nothing is ever compacted. Segments are only held while bytes are pending.
+ */
+public class BufferChain {
+    private static class Segment {
+        ByteBuffer buffer;
+        int readIndex;
+        int writeIndex;
+    }
+
+    private final int segmentSize;
+    private final int maxSegmentsPerIo;
+    private final ByteBuffer[] ioBuffers;
+    private Segment[] segments = new Segment[8];
+    private int head;
+    private int count;
+    private long readableBytes;
+
+    public BufferChain(int segmentSize, int maxSegmentsPerIo) {
+        this.segmentSize = segmentSize;
+        this.maxSegmentsPerIo = maxSegmentsPerIo;
+        ioBuffers = new ByteBuffer[maxSegmentsPerIo + 1];
+    }
+
+    public long readableBytes() {
+        return readableBytes;
+    }
+
+    public boolean isEmpty() {
+        return readableBytes == 0;
+    }
+
+    public long readFrom(ScatteringByteChannel channel) throws IOException {
+        return readFrom(channel, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads at most maxBytes, which must be positive.
+     */
+    public long readFrom(ScatteringByteChannel channel, long maxBytes) throws IOException {
+        int ioCount = 0;
+        int first = count;
+        long space = 0;
+        Segment tail = count > 0 ? segmentAt(count - 1) : null;
+        if (tail != null && tail.writeIndex < tail.buffer.capacity()) {
+            first = count - 1;
+            tail.buffer.limit(tail.buffer.capacity()).position(tail.writeIndex);
+            ioBuffers[ioCount++] = tail.buffer;
+            space += tail.buffer.remaining();
+        }
+        while (ioCount < maxSegmentsPerIo && space < maxBytes) {
+            Segment segment;
+            try {
+                segment = addSegment();
+            }
+            catch (BufferPoolExhaustedException e) {
+                if (ioCount == 0) {
+                    throw e;
+                }
+                break;
+            }
+            ioBuffers[ioCount++] = segment.buffer;
+            space += segment.buffer.remaining();
+        }
+        if (space > maxBytes) {
+            ByteBuffer last = ioBuffers[ioCount - 1];
+            last.limit(last.limit() - (int) (space - maxBytes));
+        }
+
+        long len;
+        try {
+            len = channel.read(ioBuffers, 0, ioCount);
+        }
+        finally {
+            for (int i = first; i < count; ++i) {
+                Segment segment = segmentAt(i);
+                segment.writeIndex = segment.buffer.position();
+            }
+            while (count > 0 && segmentAt(count - 1).writeIndex == 0) {
+                removeLast();
+            }
+            clearIoBuffers(ioCount);
+        }
+        if (len > 0) {
+            readableBytes += len;
+        }
+        return len;
+    }
+
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        int ioCount = Math.min(count, maxSegmentsPerIo);
+        for (int i = 0; i < ioCount; ++i) {
+            Segment segment = segmentAt(i);
+            segment.buffer.limit(segment.writeIndex).position(segment.readIndex);
+            ioBuffers[i] = segment.buffer;
+        }
+        long len;
+        try {
+            len = channel.write(ioBuffers, 0, ioCount);
+        }
+        finally {
+            for (int i = 0; i < ioCount; ++i) {
+                Segment segment = segmentAt(i);
+                segment.readIndex = segment.buffer.position();
+            }
+            while (count > 0 && segmentAt(0).readIndex == segmentAt(0).writeIndex) {
+                removeFirst();
+            }
+            clearIoBuffers(ioCount);
+        }
+        readableBytes -= len;
+        return len;
+    }
+
+    /**
+     * Appends the remaining bytes of the source buffer, e.g. data that arrived together with the handshake.
+     */
+    public void write(ByteBuffer source) throws BufferPoolExhaustedException {
+        while (source.hasRemaining()) {
+            Segment tail = count > 0 ? segmentAt(count - 1) : null;
+            if (tail == null || tail.writeIndex == tail.buffer.capacity()) {
+                tail = addSegment();
+            }
+            int len = Math.min(source.remaining(), tail.buffer.capacity() - tail.writeIndex);
+            tail.buffer.limit(tail.writeIndex + len).position(tail.writeIndex);
+            int sourceLimit = source.limit();
+            source.limit(source.position() + len);
+            tail.buffer.put(source);
+            source.limit(sourceLimit);
+            tail.writeIndex += len;
+            readableBytes += len;
+        }
+    }
+
+    public void release() {
+        while (count > 0) {
+            removeFirst();
+        }
+        readableBytes = 0;
+    }
+
+    private Segment segmentAt(int index) {
+        return segments[(head + index) & (segments.length - 1)];
+    }
+
+    private Segment addSegment() throws BufferPoolExhaustedException {
+        if (count == segments.length) {
+            Segment[] grown = new Segment[segments.length * 2];
+            for (int i = 0; i < count; ++i) {
+                grown[i] = segmentAt(i);
+            }
+            segments = grown;
+            head = 0;
+        }
+        int index = (head + count) & (segments.length - 1);
+        Segment segment = segments[index];
+        if (segment == null) {
+            segment = new Segment();
+            segments[index] = segment;
+        }
+        segment.buffer = BufferPool.getInstance().acquire(segmentSize);
+        segment.readIndex = 0;
+        segment.writeIndex = 0;
+        ++count;
+        return segment;
+    }
+
+    private void removeFirst() {
+        Segment segment = segments[head];
+        BufferPool.getInstance().release(segment.buffer);
+        segment.buffer = null;
+        head = (head + 1) & (segments.length - 1);
+        --count;
+    }
+
+    private void removeLast() {
+        Segment segment = segmentAt(count - 1);
+        BufferPool.getInstance().release(segment.buffer);
+        segment.buffer = null;
+        --count;
+    }
+
+    private void clearIoBuffers(int ioCount) {
+        for (int i = 0; i < ioCount; ++i) {
+            ioBuffers[i] = null;
+        }
+    }
+}
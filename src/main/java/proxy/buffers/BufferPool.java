@@ -0,0 +1,198 @@
+package proxy.buffers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+import proxy.exceptions.BufferPoolExhaustedException;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers shared by all reactors. Buffers are carved out of direct slabs,
+ * one free list per size class, and the total slab memory is capped.
+ */
+public final class BufferPool {
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+    public static final int[] SIZE_CLASSES = { 512, 4096, 16384, 65536 };
+    private static final BufferPool instance = new BufferPool(ProxyConfig.BUFFER_POOL_MAX_BYTES,
+            ProxyConfig.BUFFER_POOL_SLAB_SIZE, ProxyConfig.BUFFER_LEAK_DETECTION);
+
+    private static class SizeClass {
+        final int chunkSize;
+        final Deque<ByteBuffer> freeBuffers = new ConcurrentLinkedDeque<>();
+        final AtomicLong borrowed = new AtomicLong();
+
+        private SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private static class Allocation {
+        final long time;
+        final Throwable site;
+        volatile boolean reported;
+
+        private Allocation(long time, Throwable site) {
+            this.time = time;
+            this.site = site;
+        }
+    }
+
+    private static class IdentityKey {
+        final ByteBuffer buffer;
+
+        private IdentityKey(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).buffer == buffer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(buffer);
+        }
+    }
+
+    private final SizeClass[] sizeClasses;
+    private final long maxBytes;
+    private final int slabSize;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong borrowedBytes = new AtomicLong();
+    private final Map<IdentityKey, Allocation> allocations;
+
+    private BufferPool(long maxBytes, int slabSize, boolean leakDetection) {
+        this.maxBytes = maxBytes;
+        this.slabSize = slabSize;
+        sizeClasses = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+            sizeClasses[i] = new SizeClass(SIZE_CLASSES[i]);
+        }
+        if (leakDetection) {
+            allocations = new ConcurrentHashMap<>();
+            ScheduledExecutorService leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "buffer-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1000, ProxyConfig.BUFFER_LEAK_AGE_MILLIS / 2);
+            leakDetector.scheduleAtFixedRate(this::reportLeaks, period, period, TimeUnit.MILLISECONDS);
+        }
+        else {
+            allocations = null;
+        }
+    }
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    public ByteBuffer acquire(int size) throws BufferPoolExhaustedException {
+        SizeClass sizeClass = sizeClassFor(size);
+        ByteBuffer buffer = sizeClass.freeBuffers.pollFirst();
+        if (buffer == null) {
+            buffer = allocateSlab(sizeClass);
+        }
+        sizeClass.borrowed.incrementAndGet();
+        borrowedBytes.addAndGet(sizeClass.chunkSize);
+        if (allocations != null) {
+            allocations.put(new IdentityKey(buffer),
+                    new Allocation(System.currentTimeMillis(), new Throwable("Buffer acquired here")));
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        SizeClass sizeClass = exactSizeClass(buffer.capacity());
+        if (sizeClass == null) {
+            log.error("Buffer of capacity " + buffer.capacity() + " doesn't belong to the pool");
+            return;
+        }
+        if (allocations != null && allocations.remove(new IdentityKey(buffer)) == null) {
+            log.error("Buffer released twice or not acquired from the pool", new Throwable());
+            return;
+        }
+        buffer.clear();
+        sizeClass.borrowed.decrementAndGet();
+        borrowedBytes.addAndGet(-sizeClass.chunkSize);
+        sizeClass.freeBuffers.offerFirst(buffer);
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public long getBorrowedBytes() {
+        return borrowedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getBorrowedCount(int sizeClassIndex) {
+        return sizeClasses[sizeClassIndex].borrowed.get();
+    }
+
+    private SizeClass sizeClassFor(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (size <= sizeClass.chunkSize) {
+                return sizeClass;
+            }
+        }
+        throw new IllegalArgumentException("Buffer of " + size + " bytes is bigger than the largest size class");
+    }
+
+    private SizeClass exactSizeClass(int capacity) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (capacity == sizeClass.chunkSize) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer allocateSlab(SizeClass sizeClass) throws BufferPoolExhaustedException {
+        int currentSlabSize = Math.max(slabSize, sizeClass.chunkSize);
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            if (reserved + currentSlabSize > maxBytes) {
+                throw new BufferPoolExhaustedException("Buffer pool limit of " + maxBytes + " bytes reached");
+            }
+        } while (!reservedBytes.compareAndSet(reserved, reserved + currentSlabSize));
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(currentSlabSize);
+        int chunks = currentSlabSize / sizeClass.chunkSize;
+        for (int i = 1; i < chunks; ++i) {
+            sizeClass.freeBuffers.offerLast(slab.slice(i * sizeClass.chunkSize, sizeClass.chunkSize));
+        }
+        log.debug("New slab of " + currentSlabSize + " bytes for size class " + sizeClass.chunkSize);
+        return slab.slice(0, sizeClass.chunkSize);
+    }
+
+    private void reportLeaks() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<IdentityKey, Allocation> entry : allocations.entrySet()) {
+            Allocation allocation = entry.getValue();
+            if (!allocation.reported && now - allocation.time > ProxyConfig.BUFFER_LEAK_AGE_MILLIS) {
+                allocation.reported = true;
+                log.warn("Possible buffer leak : " + entry.getKey().buffer.capacity() + " bytes held for "
+                        + (now - allocation.time) + " ms", allocation.site);
+            }
+        }
+    }
+}
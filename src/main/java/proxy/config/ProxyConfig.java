@@ -0,0 +1,132 @@
+package proxy.config;
+
+import org.xbill.DNS.ResolverConfig;
+import proxy.ClientState;
+
+import java.net.InetSocketAddress;
+
+public final class ProxyConfig {
+    public static final String ENGINE = System.getProperty("proxy.engine", "nio");
+    public static final int REACTOR_THREADS = Integer.getInteger("proxy.reactors",
+            Runtime.getRuntime().availableProcessors());
+
+    public static final long BUFFER_POOL_MAX_BYTES = Long.getLong("proxy.buffers.maxBytes", 256L * 1024 * 1024);
+    public static final int BUFFER_POOL_SLAB_SIZE = Integer.getInteger("proxy.buffers.slabSize", 1024 * 1024);
+    public static final boolean BUFFER_LEAK_DETECTION = Boolean.getBoolean("proxy.buffers.leakDetection");
+    public static final long BUFFER_LEAK_AGE_MILLIS = Long.getLong("proxy.buffers.leakAgeMillis", 60_000L);
+
+    public static final String DNS_SERVER = System.getProperty("proxy.dns.server", "");
+    public static final long DNS_TIMEOUT_MILLIS = Long.getLong("proxy.dns.timeout", 1000L);
+    public static final int DNS_MAX_ATTEMPTS = Integer.getInteger("proxy.dns.attempts", 3);
+    public static final boolean DNS_IPV6 = Boolean.parseBoolean(System.getProperty("proxy.dns.ipv6", "true"));
+    public static final long DNS_RESOLUTION_DELAY_MILLIS = Long.getLong("proxy.dns.resolutionDelay", 50L);
+    public static final int DNS_CACHE_MAX_ENTRIES = Integer.getInteger("proxy.dns.cache.maxEntries", 10_000);
+    public static final long DNS_CACHE_MIN_TTL_SECONDS = Long.getLong("proxy.dns.cache.minTtl", 5L);
+    public static final long DNS_CACHE_MAX_TTL_SECONDS = Long.getLong("proxy.dns.cache.maxTtl", 3600L);
+    public static final long DNS_CACHE_NEGATIVE_TTL_SECONDS = Long.getLong("proxy.dns.cache.negativeTtl", 10L);
+
+    public static final int RELAY_SEGMENT_SIZE = Integer.getInteger("proxy.relay.segmentSize", 16384);
+    public static final int RELAY_MAX_SEGMENTS_PER_IO = Integer.getInteger("proxy.relay.maxSegmentsPerIo", 16);
+    public static final int RELAY_QUANTUM = Integer.getInteger("proxy.relay.quantum", 32 * 1024);
+    public static final long RELAY_ITERATION_BUDGET = Long.getLong("proxy.relay.iterationBudget", 128 * 1024L);
+    public static final int RELAY_HIGH_WATERMARK = Integer.getInteger("proxy.relay.highWatermark", 256 * 1024);
+    public static final int RELAY_LOW_WATERMARK = Integer.getInteger("proxy.relay.lowWatermark", 64 * 1024);
+
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("proxy.accept.backlog", 1024);
+    public static final int ACCEPT_BATCH = Integer.getInteger("proxy.accept.batch", 64);
+    public static final int MAX_CONNECTIONS = Integer.getInteger("proxy.limit.connections", 0);
+    public static final int MAX_CONNECTIONS_PER_CLIENT = Integer.getInteger("proxy.limit.connectionsPerClient", 0);
+    public static final int ADMISSION_DNS_BACKLOG = Integer.getInteger("proxy.admission.dnsBacklog", 4096);
+    public static final double ADMISSION_BUFFER_USAGE = Double.parseDouble(System.getProperty("proxy.admission.bufferUsage", "0.9"));
+
+    public static final long LIMIT_GLOBAL_BYTES_PER_SECOND = Long.getLong("proxy.limit.global", 0L);
+    public static final long LIMIT_CLIENT_BYTES_PER_SECOND = Long.getLong("proxy.limit.client", 0L);
+    public static final long LIMIT_DESTINATION_BYTES_PER_SECOND = Long.getLong("proxy.limit.destination", 0L);
+    public static final long LIMIT_BURST_MILLIS = Long.getLong("proxy.limit.burst", 250L);
+
+    public static final long CONNECT_ATTEMPT_DELAY_MILLIS = Long.getLong("proxy.connect.attemptDelay", 250L);
+    public static final long CONNECT_ATTEMPT_TIMEOUT_MILLIS = Long.getLong("proxy.connect.attemptTimeout", 3000L);
+    public static final long CONNECT_FAILURE_MEMORY_MILLIS = Long.getLong("proxy.connect.failureMemory", 30_000L);
+    public static final int CONNECT_FAILURE_MEMORY_MAX_ENTRIES = Integer.getInteger("proxy.connect.failureMemory.maxEntries", 10_000);
+
+    public static final String EGRESS_ADDRESSES = System.getProperty("proxy.egress.addresses", "");
+    public static final String EGRESS_SELECTION = System.getProperty("proxy.egress.selection", "leastLoaded");
+
+    public static final String UPSTREAM_RULES = System.getProperty("proxy.upstream.rules", "");
+    public static final int UPSTREAM_POOL_SIZE = Integer.getInteger("proxy.upstream.poolSize", 8);
+    public static final long UPSTREAM_MAX_IDLE_MILLIS = Long.getLong("proxy.upstream.maxIdle", 30_000L);
+    public static final long UPSTREAM_RETRY_MILLIS = Long.getLong("proxy.upstream.retryDelay", 1000L);
+    public static final boolean UPSTREAM_FAILOVER = Boolean.getBoolean("proxy.upstream.failover");
+
+    public static final int BIND_POOL_SIZE = Integer.getInteger("proxy.bind.poolSize", 16);
+    public static final int BIND_PORT = Integer.getInteger("proxy.bind.port", 0);
+    public static final long BIND_TIMEOUT_MILLIS = Long.getLong("proxy.timeout.bind", 60_000L);
+
+    public static final int UDP_MAX_DESTINATIONS = Integer.getInteger("proxy.udp.maxDestinations", 1024);
+    public static final int UDP_MAX_PENDING_DATAGRAMS = Integer.getInteger("proxy.udp.maxPending", 64);
+
+    public static final String ACCESS_LOG_FILE = System.getProperty("proxy.accessLog.file", "access.log");
+    public static final int ACCESS_LOG_RING_SIZE = Integer.getInteger("proxy.accessLog.ringSize", 65536);
+    public static final long ACCESS_LOG_MAX_FILE_BYTES = Long.getLong("proxy.accessLog.maxFileBytes", 64L * 1024 * 1024);
+    public static final int ACCESS_LOG_MAX_FILES = Integer.getInteger("proxy.accessLog.maxFiles", 5);
+
+    public static final String METRICS_HOST = System.getProperty("proxy.metrics.host", "127.0.0.1");
+    public static final int METRICS_PORT = Integer.getInteger("proxy.metrics.port", -1);
+    public static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("proxy.metrics.jmx", "true"));
+
+    public static final long TIMER_TICK_MILLIS = Long.getLong("proxy.timer.tick", 100L);
+    public static final int TIMER_WHEEL_SIZE = Integer.getInteger("proxy.timer.wheelSize", 512);
+    public static final long GREETING_TIMEOUT_MILLIS = Long.getLong("proxy.timeout.greeting", 10_000L);
+    public static final long CONNECTING_TIMEOUT_MILLIS = Long.getLong("proxy.timeout.connecting", 10_000L);
+    public static final long WAIT_DNS_TIMEOUT_MILLIS = Long.getLong("proxy.timeout.dns", 15_000L);
+    public static final long WAIT_SERVER_TIMEOUT_MILLIS = Long.getLong("proxy.timeout.connect", 10_000L);
+    public static final long IDLE_TIMEOUT_MILLIS = Long.getLong("proxy.timeout.idle", 300_000L);
+
+    private ProxyConfig() {}
+
+    /**
+     * The proxy.dns.server setting as host[:port], or the system resolver when it isn't set.
+     */
+    public static InetSocketAddress dnsServer() {
+        if (DNS_SERVER.isEmpty()) {
+            return ResolverConfig.getCurrentConfig().server();
+        }
+        return hostAndPort(DNS_SERVER, 53);
+    }
+
+    /**
+     * Parses host, host:port, [ipv6] or [ipv6]:port. A bare IPv6 literal has no port.
+     */
+    static InetSocketAddress hostAndPort(String value, int defaultPort) {
+        if (value.startsWith("[")) {
+            int bracket = value.indexOf(']');
+            if (bracket < 0) {
+                throw new IllegalArgumentException("Unclosed bracket in " + value);
+            }
+            String host = value.substring(1, bracket);
+            String rest = value.substring(bracket + 1);
+            if (rest.isEmpty()) {
+                return new InetSocketAddress(host, defaultPort);
+            }
+            if (!rest.startsWith(":")) {
+                throw new IllegalArgumentException("Unexpected " + rest + " after address in " + value);
+            }
+            return new InetSocketAddress(host, Integer.parseInt(rest.substring(1)));
+        }
+        int colon = value.indexOf(':');
+        if (colon < 0 || colon != value.lastIndexOf(':')) {
+            return new InetSocketAddress(value, defaultPort);
+        }
+        return new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    public static long timeoutFor(ClientState state) {
+        return switch (state) {
+            case GREETING -> GREETING_TIMEOUT_MILLIS;
+            case CONNECTING -> CONNECTING_TIMEOUT_MILLIS;
+            case WAIT_DNS -> WAIT_DNS_TIMEOUT_MILLIS;
+            case WAIT_SERVER -> WAIT_SERVER_TIMEOUT_MILLIS;
+            case CONNECTED -> IDLE_TIMEOUT_MILLIS;
+        };
+    }
+}
@@ -0,0 +1,26 @@
+package proxy.dns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection order of a host's addresses as in RFC 8305 section 4: families alternate, IPv6 first,
+ * each family keeping the order of its DNS answer.
+ */
+public final class AddressList {
+    private AddressList() {}
+
+    public static List<InetAddress> interleave(List<InetAddress> ipv6, List<InetAddress> ipv4) {
+        List<InetAddress> addresses = new ArrayList<>(ipv6.size() + ipv4.size());
+        for (int i = 0; i < Math.max(ipv6.size(), ipv4.size()); ++i) {
+            if (i < ipv6.size()) {
+                addresses.add(ipv6.get(i));
+            }
+            if (i < ipv4.size()) {
+                addresses.add(ipv4.get(i));
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,234 @@
+package proxy.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+import proxy.admission.AdmissionControl;
+import proxy.config.ProxyConfig;
+import proxy.metrics.ProxyMetrics;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolver for the virtual-thread engine. It shares DnsCodec and DnsCache with DnsHandler and uses the
+ * same timeout, retry, single-flight and resolution delay rules. Every flight runs on a virtual thread
+ * of its own with one UDP socket for its A and AAAA queries, so waiters can be released before the
+ * slower answer arrives while the cache still receives the merged result.
+ */
+public final class BlockingResolver {
+    private static final Logger log = LoggerFactory.getLogger(BlockingResolver.class);
+    private static final int BUFFER_SIZE = 512;
+    private static final BlockingResolver instance = new BlockingResolver();
+    private final Map<Name, CompletableFuture<List<InetAddress>>> flights = new ConcurrentHashMap<>();
+    private final Random random = new SecureRandom();
+    private final InetSocketAddress server = ProxyConfig.dnsServer();
+
+    private BlockingResolver() {}
+
+    public static BlockingResolver getInstance() {
+        return instance;
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    /**
+     * Addresses of the host in connection order, an empty list when the name doesn't resolve or the
+     * server doesn't answer.
+     */
+    public List<InetAddress> resolve(String host) {
+        Name name;
+        try {
+            name = Name.fromString(host, Name.root);
+        }
+        catch (TextParseException e) {
+            log.error(e.toString());
+            return List.of();
+        }
+        DnsCache.Entry entry = DnsCache.getInstance().get(name, System.currentTimeMillis());
+        if (entry != null) {
+            log.debug("DNS cache hit : " + host);
+            ProxyMetrics.getInstance().dnsCacheHit();
+            return entry.getAddresses();
+        }
+
+        CompletableFuture<List<InetAddress>> existingFlight = flights.get(name);
+        if (existingFlight == null && flights.size() >= ProxyConfig.ADMISSION_DNS_BACKLOG) {
+            log.error("Too many DNS queries in flight, request for " + host + " rejected");
+            ProxyMetrics.getInstance().dnsRejected();
+            return List.of();
+        }
+        CompletableFuture<List<InetAddress>> flight = new CompletableFuture<>();
+        existingFlight = flights.putIfAbsent(name, flight);
+        if (existingFlight != null) {
+            log.debug("DNS request joined in-flight query : " + host);
+            return existingFlight.join();
+        }
+        AdmissionControl.getInstance().dnsLookupStarted();
+        Thread.ofVirtual().name("dns-" + host).start(() -> {
+            try {
+                query(name, flight);
+            }
+            finally {
+                flights.remove(name, flight);
+                AdmissionControl.getInstance().dnsLookupFinished();
+                flight.complete(List.of());
+            }
+        });
+        return flight.join();
+    }
+
+    private void query(Name name, CompletableFuture<List<InetAddress>> flight) {
+        long startTime = System.currentTimeMillis();
+        int[] types = ProxyConfig.DNS_IPV6 ? new int[] { Type.A, Type.AAAA } : new int[] { Type.A };
+        int[] ids = new int[types.length];
+        boolean[] done = new boolean[types.length];
+        ByteBuffer[] queries = new ByteBuffer[types.length];
+        for (int i = 0; i < types.length; ++i) {
+            ProxyMetrics.getInstance().dnsQuery();
+            ids[i] = random.nextInt(0x10000);
+            queries[i] = ByteBuffer.allocate(BUFFER_SIZE);
+            DnsCodec.encodeQuery(ids[i], name, types[i], queries[i]);
+        }
+        List<InetAddress> ipv4 = List.of();
+        List<InetAddress> ipv6 = List.of();
+        long ttl = Long.MAX_VALUE;
+        int negativeAnswers = 0;
+        byte[] response = new byte[BUFFER_SIZE];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(server);
+            long timeout = ProxyConfig.DNS_TIMEOUT_MILLIS;
+            long resolutionDeadline = 0;
+            for (int attempt = 1; attempt <= ProxyConfig.DNS_MAX_ATTEMPTS && isPending(done); ++attempt) {
+                for (int i = 0; i < types.length; ++i) {
+                    if (done[i]) {
+                        continue;
+                    }
+                    if (attempt > 1) {
+                        log.info("Resend request for " + name + " " + Type.string(types[i]));
+                        ProxyMetrics.getInstance().dnsRetry();
+                    }
+                    socket.send(new DatagramPacket(queries[i].array(), queries[i].position()));
+                }
+                long deadline = System.currentTimeMillis() + timeout;
+                while (isPending(done)) {
+                    long now = System.currentTimeMillis();
+                    if (resolutionDeadline != 0 && resolutionDeadline <= now) {
+                        log.debug("No AAAA answer for " + name + " within the resolution delay");
+                        flight.complete(AddressList.interleave(ipv6, ipv4));
+                        resolutionDeadline = 0;
+                    }
+                    long wait = deadline - now;
+                    if (wait <= 0) {
+                        break;
+                    }
+                    if (resolutionDeadline != 0) {
+                        wait = Math.min(wait, resolutionDeadline - now);
+                    }
+                    socket.setSoTimeout((int) wait);
+                    DatagramPacket packet = new DatagramPacket(response, response.length);
+                    try {
+                        socket.receive(packet);
+                    }
+                    catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    DnsCodec.Response decoded = decode(packet);
+                    int i = decoded == null ? -1 : indexOf(decoded, name, types, ids, done);
+                    if (i < 0) {
+                        continue;
+                    }
+                    done[i] = true;
+                    log.debug("Received DNS response for " + name + " " + Type.string(types[i]) + " in "
+                            + (System.currentTimeMillis() - startTime) + " ms");
+                    if (!decoded.getAddresses().isEmpty()) {
+                        if (types[i] == Type.AAAA) {
+                            ipv6 = decoded.getAddresses();
+                        }
+                        else {
+                            ipv4 = decoded.getAddresses();
+                        }
+                        ttl = Math.min(ttl, decoded.getTtl());
+                    }
+                    else if (decoded.isNegative()) {
+                        negativeAnswers++;
+                    }
+                    if (isPending(done) && !flight.isDone()) {
+                        if (types[i] == Type.AAAA && !ipv6.isEmpty()) {
+                            flight.complete(AddressList.interleave(ipv6, ipv4));
+                        }
+                        else if (types[i] == Type.A && !ipv4.isEmpty()) {
+                            resolutionDeadline = System.currentTimeMillis() + ProxyConfig.DNS_RESOLUTION_DELAY_MILLIS;
+                        }
+                    }
+                }
+                timeout *= 2;
+            }
+        }
+        catch (IOException e) {
+            log.error("DNS request for " + name + " failed : " + e);
+        }
+        for (int i = 0; i < types.length; ++i) {
+            if (!done[i]) {
+                log.info("Response for " + name + " " + Type.string(types[i]) + " wasn't received in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+                ProxyMetrics.getInstance().dnsFailure();
+            }
+        }
+        List<InetAddress> addresses = AddressList.interleave(ipv6, ipv4);
+        long now = System.currentTimeMillis();
+        if (!addresses.isEmpty()) {
+            DnsCache.getInstance().put(name, addresses, ttl, now);
+        }
+        else if (negativeAnswers == types.length) {
+            DnsCache.getInstance().putNegative(name, now);
+        }
+        flight.complete(addresses);
+    }
+
+    private static boolean isPending(boolean[] done) {
+        for (boolean queryDone : done) {
+            if (!queryDone) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(DnsCodec.Response response, Name name, int[] types, int[] ids, boolean[] done) {
+        if (!name.equals(response.getName())) {
+            return -1;
+        }
+        for (int i = 0; i < types.length; ++i) {
+            if (!done[i] && ids[i] == response.getId() && types[i] == response.getType()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static DnsCodec.Response decode(DatagramPacket packet) {
+        try {
+            return DnsCodec.decodeResponse(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+        }
+        catch (IOException e) {
+            log.error("Malformed DNS response : " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package proxy.dns;
+
+import org.xbill.DNS.Name;
+import proxy.config.ProxyConfig;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolved addresses shared by the DNS handlers of all reactors. Entries live for the record TTL
+ * clamped to the configured bounds; an empty address list is a cached negative answer.
+ */
+public final class DnsCache {
+    private static final DnsCache instance = new DnsCache(ProxyConfig.DNS_CACHE_MAX_ENTRIES,
+            ProxyConfig.DNS_CACHE_MIN_TTL_SECONDS, ProxyConfig.DNS_CACHE_MAX_TTL_SECONDS,
+            ProxyConfig.DNS_CACHE_NEGATIVE_TTL_SECONDS);
+
+    public static final class Entry {
+        private final List<InetAddress> addresses;
+        private final long expiresAt;
+
+        private Entry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Addresses in connection order, see AddressList.
+         */
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        public boolean isNegative() {
+            return addresses.isEmpty();
+        }
+    }
+
+    private final Map<Name, Entry> entries;
+    private final long minTtlMillis;
+    private final long maxTtlMillis;
+    private final long negativeTtlMillis;
+
+    private DnsCache(int maxEntries, long minTtlSeconds, long maxTtlSeconds, long negativeTtlSeconds) {
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Name, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        minTtlMillis = minTtlSeconds * 1000;
+        maxTtlMillis = maxTtlSeconds * 1000;
+        negativeTtlMillis = negativeTtlSeconds * 1000;
+    }
+
+    public static DnsCache getInstance() {
+        return instance;
+    }
+
+    public synchronized Entry get(Name name, long now) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= now) {
+            entries.remove(name);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(Name name, List<InetAddress> addresses, long ttlSeconds, long now) {
+        long ttlMillis = Math.min(maxTtlMillis, Math.max(minTtlMillis, ttlSeconds * 1000));
+        entries.put(name, new Entry(List.copyOf(addresses), now + ttlMillis));
+    }
+
+    public synchronized void putNegative(Name name, long now) {
+        entries.put(name, new Entry(List.of(), now + negativeTtlMillis));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
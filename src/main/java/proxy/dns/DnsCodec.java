@@ -0,0 +1,101 @@
+package proxy.dns;
+
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class DnsCodec {
+    public static final class Response {
+        private final int id;
+        private final Name name;
+        private final int type;
+        private final int rcode;
+        private final List<InetAddress> addresses;
+        private final long ttl;
+
+        private Response(int id, Name name, int type, int rcode, List<InetAddress> addresses, long ttl) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.rcode = rcode;
+            this.addresses = addresses;
+            this.ttl = ttl;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Name getName() {
+            return name;
+        }
+
+        /**
+         * Question type, Type.A or Type.AAAA.
+         */
+        public int getType() {
+            return type;
+        }
+
+        public int getRcode() {
+            return rcode;
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        public InetAddress getAddress() {
+            return addresses.isEmpty() ? null : addresses.get(0);
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public boolean isNegative() {
+            return addresses.isEmpty() && (rcode == Rcode.NXDOMAIN || rcode == Rcode.NOERROR);
+        }
+    }
+
+    private DnsCodec() {}
+
+    public static void encodeQuery(int id, Name name, ByteBuffer byteBuffer) {
+        encodeQuery(id, name, Type.A, byteBuffer);
+    }
+
+    public static void encodeQuery(int id, Name name, int type, ByteBuffer byteBuffer) {
+        Message message = new Message(id);
+        message.getHeader().setFlag(Flags.AD);
+        message.getHeader().setFlag(Flags.RD);
+        message.addRecord(Record.newRecord(name, type, DClass.IN), Section.QUESTION);
+        byteBuffer.put(message.toWire());
+    }
+
+    public static Response decodeResponse(ByteBuffer byteBuffer) throws IOException {
+        Message message = new Message(byteBuffer);
+        Record question = message.getQuestion();
+        if (question == null) {
+            throw new WireParseException("DNS response without question");
+        }
+        List<Record> answers = message.getSection(Section.ANSWER);
+        List<InetAddress> addresses = new ArrayList<>(answers.size());
+        long ttl = Long.MAX_VALUE;
+        for (Record answer : answers) {
+            ttl = Math.min(ttl, answer.getTTL());
+            if (answer.getType() == Type.A) {
+                addresses.add(((ARecord) answer).getAddress());
+            }
+            else if (answer.getType() == Type.AAAA) {
+                addresses.add(((AAAARecord) answer).getAddress());
+            }
+        }
+        return new Response(message.getHeader().getID(), question.getName(), question.getType(),
+                message.getRcode(), addresses, ttl);
+    }
+}
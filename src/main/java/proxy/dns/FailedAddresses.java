@@ -0,0 +1,75 @@
+package proxy.dns;
+
+import proxy.config.ProxyConfig;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server addresses whose last connection attempt failed or timed out, shared by all connections.
+ * They are tried after the healthy addresses of a host for proxy.connect.failureMemory, so a dead
+ * backend behind round-robin DNS isn't the first choice of every new connection.
+ */
+public final class FailedAddresses {
+    private static final FailedAddresses instance = new FailedAddresses(ProxyConfig.CONNECT_FAILURE_MEMORY_MAX_ENTRIES,
+            ProxyConfig.CONNECT_FAILURE_MEMORY_MILLIS);
+
+    private final Map<InetAddress, Long> failures;
+    private final long memoryMillis;
+
+    private FailedAddresses(int maxEntries, long memoryMillis) {
+        failures = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.memoryMillis = memoryMillis;
+    }
+
+    public static FailedAddresses getInstance() {
+        return instance;
+    }
+
+    public synchronized void recordFailure(InetAddress address, long now) {
+        if (memoryMillis > 0) {
+            failures.put(address, now + memoryMillis);
+        }
+    }
+
+    public synchronized void recordSuccess(InetAddress address) {
+        failures.remove(address);
+    }
+
+    /**
+     * The addresses with the recently failed ones moved to the end, both parts keeping their order.
+     */
+    public synchronized List<InetAddress> sort(List<InetAddress> addresses, long now) {
+        if (failures.isEmpty()) {
+            return addresses;
+        }
+        List<InetAddress> sorted = new ArrayList<>(addresses.size());
+        List<InetAddress> failed = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            Long expiresAt = failures.get(address);
+            if (expiresAt == null) {
+                sorted.add(address);
+            }
+            else if (expiresAt <= now) {
+                failures.remove(address);
+                sorted.add(address);
+            }
+            else {
+                failed.add(address);
+            }
+        }
+        if (failed.isEmpty()) {
+            return addresses;
+        }
+        sorted.addAll(failed);
+        return sorted;
+    }
+}
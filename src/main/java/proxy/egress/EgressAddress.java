@@ -0,0 +1,43 @@
+package proxy.egress;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local address of the egress pool with the number of outbound sockets currently bound to it,
+ * which is the number of its ephemeral ports in use by the proxy.
+ */
+public final class EgressAddress {
+    private final InetAddress address;
+    private final AtomicInteger portsInUse = new AtomicInteger();
+    private final LongAdder bindFailures = new LongAdder();
+
+    EgressAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPortsInUse() {
+        return portsInUse.get();
+    }
+
+    public long getBindFailures() {
+        return bindFailures.sum();
+    }
+
+    void acquired() {
+        portsInUse.incrementAndGet();
+    }
+
+    void released() {
+        portsInUse.decrementAndGet();
+    }
+
+    void bindFailed() {
+        bindFailures.increment();
+    }
+}
@@ -0,0 +1,173 @@
+package proxy.egress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Local source addresses for outbound connections, set with proxy.egress.addresses. Every address
+ * has its own ephemeral port range, so spreading upstream sockets over several of them multiplies
+ * the connections the proxy can hold open to one destination. An outbound socket is bound to the
+ * address of its family with the fewest sockets, or with proxy.egress.selection=hash to the one the
+ * destination hashes to, and falls back to the next address when the bind fails. Without addresses
+ * of the destination's family the socket is left for the system to bind. An entry of the list may be
+ * a range of literal addresses of one family, such as 192.0.2.10-192.0.2.20. Sockets are bound to
+ * port 0 before they connect and the JDK has no IP_BIND_ADDRESS_NO_PORT to defer the port choice to
+ * the connect, so the kernel picks a port free on the address for every destination: each address
+ * gives about 28k ports with the default ip_local_port_range in total, not per destination.
+ */
+public final class EgressPool {
+    /**
+     * Binds a socket to a local address, as SocketChannel.bind or Socket.bind.
+     */
+    @FunctionalInterface
+    public interface Binder {
+        void bind(InetSocketAddress local) throws IOException;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EgressPool.class);
+    static final int MAX_RANGE_SIZE = 1024;
+    private static final EgressPool instance = new EgressPool();
+    private volatile List<EgressAddress> addresses = List.of();
+    private volatile EgressSelection selection = EgressSelection.LEAST_LOADED;
+
+    private EgressPool() {}
+
+    public static EgressPool getInstance() {
+        return instance;
+    }
+
+    public void start() throws IOException {
+        if (ProxyConfig.EGRESS_ADDRESSES.isBlank()) {
+            return;
+        }
+        List<EgressAddress> parsed = new ArrayList<>();
+        for (InetAddress address : parseAddresses(ProxyConfig.EGRESS_ADDRESSES)) {
+            parsed.add(new EgressAddress(address));
+        }
+        selection = EgressSelection.parse(ProxyConfig.EGRESS_SELECTION);
+        addresses = List.copyOf(parsed);
+        log.info("Egress addresses : " + ProxyConfig.EGRESS_ADDRESSES + ", selection : " + ProxyConfig.EGRESS_SELECTION);
+    }
+
+    /**
+     * Expands the comma separated addresses and ranges of proxy.egress.addresses.
+     */
+    static List<InetAddress> parseAddresses(String value) throws IOException {
+        List<InetAddress> parsed = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int dash = entry.indexOf('-');
+            if (dash > 0 && isLiteral(entry.substring(0, dash))) {
+                parsed.addAll(range(entry, entry.substring(0, dash).trim(), entry.substring(dash + 1).trim()));
+            }
+            else {
+                parsed.add(InetAddress.getByName(entry));
+            }
+        }
+        return parsed;
+    }
+
+    private static List<InetAddress> range(String entry, String from, String to) throws IOException {
+        if (!isLiteral(to)) {
+            throw new IllegalArgumentException("Egress range " + entry + " must end with an IP address");
+        }
+        byte[] first = InetAddress.getByName(from).getAddress();
+        byte[] last = InetAddress.getByName(to).getAddress();
+        if (first.length != last.length) {
+            throw new IllegalArgumentException("Egress range " + entry + " mixes IPv4 and IPv6");
+        }
+        BigInteger start = new BigInteger(1, first);
+        BigInteger end = new BigInteger(1, last);
+        if (start.compareTo(end) > 0) {
+            throw new IllegalArgumentException("Egress range " + entry + " ends before it starts");
+        }
+        if (end.subtract(start).compareTo(BigInteger.valueOf(MAX_RANGE_SIZE)) >= 0) {
+            throw new IllegalArgumentException("Egress range " + entry + " has more than " + MAX_RANGE_SIZE
+                    + " addresses");
+        }
+        List<InetAddress> addresses = new ArrayList<>();
+        for (BigInteger i = start; i.compareTo(end) <= 0; i = i.add(BigInteger.ONE)) {
+            byte[] bytes = i.toByteArray();
+            byte[] address = new byte[first.length];
+            int length = Math.min(bytes.length, address.length);
+            System.arraycopy(bytes, bytes.length - length, address, address.length - length, length);
+            addresses.add(InetAddress.getByAddress(address));
+        }
+        return addresses;
+    }
+
+    private static boolean isLiteral(String address) {
+        return address.indexOf(':') >= 0 || address.trim().matches("[0-9.]+");
+    }
+
+    /**
+     * Binds a socket that is going to connect to the destination and returns the address it was
+     * bound to, or null when the pool has no address of the destination's family. The address must
+     * be released when the socket is closed.
+     */
+    public EgressAddress bind(InetAddress destination, Binder binder) throws IOException {
+        List<EgressAddress> candidates = candidates(destination);
+        IOException failure = null;
+        for (EgressAddress candidate : candidates) {
+            try {
+                binder.bind(new InetSocketAddress(candidate.getAddress(), 0));
+            }
+            catch (IOException e) {
+                log.info("Bind to egress address " + candidate.getAddress().getHostAddress() + " failed : " + e);
+                candidate.bindFailed();
+                failure = e;
+                continue;
+            }
+            candidate.acquired();
+            return candidate;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    public void release(EgressAddress address) {
+        if (address != null) {
+            address.released();
+        }
+    }
+
+    public List<EgressAddress> getAddresses() {
+        return addresses;
+    }
+
+    private List<EgressAddress> candidates(InetAddress destination) {
+        boolean ipv6 = destination instanceof Inet6Address;
+        List<EgressAddress> candidates = new ArrayList<>();
+        for (EgressAddress address : addresses) {
+            if (address.getAddress() instanceof Inet6Address == ipv6) {
+                candidates.add(address);
+            }
+        }
+        if (candidates.size() < 2) {
+            return candidates;
+        }
+        if (selection == EgressSelection.HASH) {
+            int first = Math.floorMod(destination.hashCode() * 0x9E3779B9, candidates.size());
+            List<EgressAddress> rotated = new ArrayList<>(candidates.subList(first, candidates.size()));
+            rotated.addAll(candidates.subList(0, first));
+            return rotated;
+        }
+        candidates.sort(Comparator.comparingInt(EgressAddress::getPortsInUse));
+        return candidates;
+    }
+}
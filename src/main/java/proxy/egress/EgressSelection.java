@@ -0,0 +1,14 @@
+package proxy.egress;
+
+public enum EgressSelection {
+    LEAST_LOADED,
+    HASH;
+
+    static EgressSelection parse(String value) {
+        return switch (value) {
+            case "leastLoaded" -> LEAST_LOADED;
+            case "hash" -> HASH;
+            default -> throw new IllegalArgumentException("Unknown egress selection " + value);
+        };
+    }
+}
@@ -0,0 +1,9 @@
+package proxy.exceptions;
+
+import java.io.IOException;
+
+public class BufferPoolExhaustedException extends IOException {
+    public BufferPoolExhaustedException(String message) {
+        super(message);
+    }
+}
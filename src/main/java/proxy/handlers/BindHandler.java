@@ -0,0 +1,97 @@
+package proxy.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.Reactor;
+import proxy.protocol.ProtocolParams;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Waits on a pooled listener for the inbound connection of a BIND request. Connections from hosts
+ * other than the ones the request named are closed and the wait goes on. The listener goes back
+ * to the pool through a reactor task, after the selector has dropped its cancelled key. The handler
+ * maps its listener to itself in the constructor, which runs on the reactor thread.
+ */
+public final class BindHandler implements Handler {
+    private static final Logger log = LoggerFactory.getLogger(BindHandler.class);
+    private final ClientHandler clientHandler;
+    private final Reactor reactor;
+    private final ServerSocketChannel listener;
+    private final SelectionKey key;
+    private final List<InetAddress> expectedAddresses;
+    private boolean isClosed;
+
+    public BindHandler(ClientHandler clientHandler, List<InetAddress> expectedAddresses) throws IOException {
+        this.clientHandler = clientHandler;
+        this.expectedAddresses = expectedAddresses;
+        reactor = clientHandler.getReactor();
+        listener = BindListenerPool.getInstance().acquire();
+        try {
+            key = listener.register(reactor.getSelector(), SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e) {
+            BindListenerPool.getInstance().release(listener);
+            throw e;
+        }
+        reactor.putNewChannel(listener, this);
+    }
+
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     * The listening address, with a wildcard replaced by the address the client connected to.
+     */
+    public InetAddress getAddress() throws IOException {
+        InetAddress address = listener.socket().getInetAddress();
+        if (address.isAnyLocalAddress()) {
+            address = ((InetSocketAddress) clientHandler.getClientChannel().getLocalAddress()).getAddress();
+        }
+        return address;
+    }
+
+    @Override
+    public void handleKey() {
+        if (!key.isAcceptable()) {
+            return;
+        }
+        try {
+            SocketChannel channel;
+            while ((channel = listener.accept()) != null) {
+                InetAddress peer = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                if (!expectedAddresses.contains(peer)) {
+                    log.info("BIND connection from unexpected host " + peer.getHostAddress() + " closed");
+                    channel.close();
+                    continue;
+                }
+                close();
+                clientHandler.bindAccepted(channel);
+                return;
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            close();
+            clientHandler.setResponseCode(ProtocolParams.GENERAL_FAILURE);
+            clientHandler.readyToWriteConnecting();
+        }
+    }
+
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        key.cancel();
+        reactor.removeChannelFromMap(listener);
+        reactor.execute(() -> BindListenerPool.getInstance().release(listener));
+    }
+}
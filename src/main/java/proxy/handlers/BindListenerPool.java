@@ -0,0 +1,90 @@
+package proxy.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Listening sockets for BIND requests, bound once at startup and shared by all reactors. With
+ * proxy.bind.port set the pool holds the ports from that one on and a BIND fails when all of them are
+ * in use; otherwise the pool holds ephemeral ports and opens extra listeners when it runs dry.
+ * Listeners are handed out non-blocking and unregistered, and must be returned the same way.
+ */
+public final class BindListenerPool {
+    private static final Logger log = LoggerFactory.getLogger(BindListenerPool.class);
+    private static final int BACKLOG = 4;
+    private static final BindListenerPool instance = new BindListenerPool();
+    private final Deque<ServerSocketChannel> freeListeners = new ConcurrentLinkedDeque<>();
+    private volatile String host;
+
+    private BindListenerPool() {}
+
+    public static BindListenerPool getInstance() {
+        return instance;
+    }
+
+    public void start(String host) throws IOException {
+        this.host = host;
+        for (int i = 0; i < ProxyConfig.BIND_POOL_SIZE; ++i) {
+            freeListeners.add(open(ProxyConfig.BIND_PORT > 0 ? ProxyConfig.BIND_PORT + i : 0));
+        }
+        log.info("BIND listeners : " + ProxyConfig.BIND_POOL_SIZE
+                + (ProxyConfig.BIND_PORT > 0 ? " from port " + ProxyConfig.BIND_PORT : ""));
+    }
+
+    private ServerSocketChannel open(int port) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.configureBlocking(false);
+            listener.bind(new InetSocketAddress(host, port), BACKLOG);
+        }
+        catch (IOException e) {
+            listener.close();
+            throw e;
+        }
+        return listener;
+    }
+
+    /**
+     * A free listener with connections left over from its previous use dropped.
+     */
+    public ServerSocketChannel acquire() throws IOException {
+        ServerSocketChannel listener = freeListeners.poll();
+        if (listener == null) {
+            if (ProxyConfig.BIND_PORT > 0) {
+                throw new IOException("All " + ProxyConfig.BIND_POOL_SIZE + " BIND ports are in use");
+            }
+            log.debug("BIND listener pool is empty, opening a new listener");
+            return open(0);
+        }
+        SocketChannel stale;
+        while ((stale = listener.accept()) != null) {
+            log.debug("Stale connection from " + stale.getRemoteAddress() + " dropped");
+            stale.close();
+        }
+        return listener;
+    }
+
+    public void release(ServerSocketChannel listener) {
+        if (!listener.isOpen()) {
+            return;
+        }
+        if (ProxyConfig.BIND_PORT > 0 || freeListeners.size() < ProxyConfig.BIND_POOL_SIZE) {
+            freeListeners.add(listener);
+            return;
+        }
+        try {
+            listener.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
@@ -3,37 +3,98 @@ package proxy.handlers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import proxy.ClientState;
-import proxy.Proxy;
+import proxy.admission.AdmissionControl;
+import proxy.DeficitCounter;
+import proxy.Reactor;
+import proxy.buffers.BufferChain;
+import proxy.buffers.BufferPool;
+import proxy.config.ProxyConfig;
+import proxy.egress.EgressAddress;
+import proxy.egress.EgressPool;
+import proxy.exceptions.BufferPoolExhaustedException;
+import proxy.exceptions.Socks5ProtocolException;
+import proxy.exceptions.TooLongHandshakeMessage;
+import proxy.exceptions.UnsupportedAddressType;
+import proxy.log.AccessLog;
+import proxy.metrics.ProxyMetrics;
+import proxy.metrics.Stage;
+import proxy.shaping.ShapedConnection;
+import proxy.shaping.TrafficShaper;
+import proxy.protocol.HandshakeParser;
 import proxy.protocol.ProtocolParams;
+import proxy.timer.Timeout;
+import proxy.upstream.ParentProxy;
+import proxy.upstream.UpstreamRules;
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.List;
 
-public class ClientHandler implements Handler {
+/**
+ * Client side of a connection, from the greeting to the relay. It is created on its reactor's thread
+ * and registers its channel from the constructor; the selector only reports the key on that thread
+ * after the constructor returned.
+ */
+public final class ClientHandler implements Handler {
     private static final Logger log = LoggerFactory.getLogger(ClientHandler.class);
-    private static final int BUFFER_SIZE = 4096;
+    private static final int HANDSHAKE_BUFFER_SIZE = 4096;
+    private static final int REPLY_BUFFER_SIZE = 512;
     private final SocketChannel clientChannel;
     private final SelectionKey clientKey;
+    private final Reactor reactor;
     private ClientState state;
     private byte authMethod = ProtocolParams.NO_AUTH;
-    private final byte[] connectResponse = ProtocolParams.CONNECTING_REPLY_TEMPLATE;
+    private final HandshakeParser parser = new HandshakeParser();
+    private ByteBuffer handshakeBuffer;
+    private ByteBuffer replyBuffer;
+    private boolean requestReceived;
+    private boolean connectReplyQueued;
+    private boolean closeAfterReplies;
     private byte responseCode;
     private String serverName;
+    private List<InetAddress> serverAddresses;
     private InetAddress serverAddress;
     private int serverPort;
     private ServerHandler serverHandler;
+    private UdpAssociation udpAssociation;
+    private BindHandler bindHandler;
+    private TunnelRequest tunnel;
     private boolean isClosed;
+    private Timeout timeout;
+    private long lastActivity;
+    private final long connectionId;
+    private final String clientAddress;
+    private final InetAddress clientHost;
+    private final long openTime;
+    private long bytesUp;
+    private long bytesDown;
+    private final long acceptTime;
+    private long stateTime;
+    private ShapedConnection shaping;
+    private Timeout upstreamResume;
+    private Timeout downstreamResume;
+    private final DeficitCounter upstreamDeficit;
 
-    public ClientHandler(SelectionKey key) throws IOException {
-        clientChannel = ((ServerSocketChannel) key.channel()).accept();
-        clientChannel.configureBlocking(false);
-        clientKey = clientChannel.register(key.selector(), SelectionKey.OP_READ);
-        state = ClientState.GREETING;
+    public ClientHandler(SocketChannel clientChannel, InetSocketAddress remoteAddress, Reactor reactor, long acceptTime)
+            throws IOException {
+        this.clientChannel = clientChannel;
+        this.reactor = reactor;
+        this.acceptTime = acceptTime;
+        upstreamDeficit = new DeficitCounter(reactor, this::resumeUpstream);
+        clientKey = clientChannel.register(reactor.getSelector(), SelectionKey.OP_READ);
+        connectionId = AccessLog.getInstance().nextConnectionId();
+        clientAddress = String.valueOf(remoteAddress);
+        clientHost = remoteAddress.getAddress();
+        openTime = System.currentTimeMillis();
+        AccessLog.getInstance().logOpen(connectionId, clientAddress, openTime);
+        setState(ClientState.GREETING);
     }
 
     public SocketChannel getClientChannel() {
@@ -44,6 +105,10 @@ public class ClientHandler implements Handler {
         return clientKey;
     }
 
+    public Reactor getReactor() {
+        return reactor;
+    }
+
     public String getServerName() {
         return serverName;
     }
@@ -52,141 +117,400 @@ public class ClientHandler implements Handler {
         return isClosed;
     }
 
-    @Override
-    public void handleKey() {
+    private void setState(ClientState state) {
+        setState(state, ProxyConfig.timeoutFor(state));
+    }
+
+    private void setState(ClientState state, long timeoutMillis) {
+        if (isClosed) {
+            this.state = state;
+            return;
+        }
+        ProxyMetrics.getInstance().stateChanged(this.state, state);
+        recordStage(this.state, state);
+        this.state = state;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        lastActivity = reactor.getLoopTime();
+        timeout = reactor.getTimingWheel().schedule(this::handleTimeout, timeoutMillis, lastActivity);
+    }
+
+    private void recordStage(ClientState from, ClientState to) {
+        long now = System.nanoTime();
+        if (from == null) {
+            stateTime = acceptTime;
+        }
+        Stage stage = Stage.ofTransition(from, to);
+        if (stage != null) {
+            ProxyMetrics.getInstance().stageFinished(stage, now - stateTime);
+        }
+        if (to == ClientState.CONNECTED) {
+            ProxyMetrics.getInstance().stageFinished(Stage.SETUP, now - acceptTime);
+        }
+        stateTime = now;
+    }
+
+    void markActivity() {
+        lastActivity = reactor.getLoopTime();
+    }
+
+    private void handleTimeout() {
+        if (isClosed) {
+            return;
+        }
+        long now = reactor.getLoopTime();
         switch (state) {
-            case GREETING -> {
-                if (clientKey.isReadable()) {
-                    readGreeting();
-                } else if (clientKey.isWritable()) {
-                    writeGreeting();
+            case CONNECTED -> {
+                long idleTime = now - lastActivity;
+                if (idleTime < ProxyConfig.IDLE_TIMEOUT_MILLIS) {
+                    timeout = reactor.getTimingWheel().schedule(this::handleTimeout,
+                            ProxyConfig.IDLE_TIMEOUT_MILLIS - idleTime, now);
+                    return;
                 }
+                log.info(serverName + " : idle timeout");
+                close();
             }
-            case CONNECTING -> {
-                if (clientKey.isReadable()) {
-                    readConnecting();
-                } else if (clientKey.isWritable()) {
-                    writeConnecting();
+            case WAIT_DNS, WAIT_SERVER -> {
+                log.info(serverName + " : timeout in state " + state);
+                if (tunnel != null) {
+                    tunnel.cancel();
+                    tunnel = null;
                 }
-            }
-            case CONNECTED -> {
-                if (clientKey.isReadable()) {
-                    read();
+                if (serverHandler != null && !serverHandler.isClosed()) {
+                    serverHandler.close(false);
                 }
-                else if (clientKey.isWritable()) {
-                    write();
+                if (bindHandler != null) {
+                    bindHandler.close();
                 }
+                responseCode = ProtocolParams.TTL_EXPIRED;
+                readyToWriteConnecting();
+            }
+            default -> {
+                log.info("Handshake timeout in state " + state);
+                close();
+            }
+        }
+    }
+
+    @Override
+    public void handleKey() {
+        if (state == ClientState.CONNECTED) {
+            if (clientKey.isReadable()) {
+                read();
             }
+            if (clientKey.isValid() && clientKey.isWritable()) {
+                write();
+            }
+            return;
+        }
+        if (clientKey.isReadable()) {
+            readHandshake();
+        }
+        if (clientKey.isValid() && clientKey.isWritable()) {
+            writeReplies();
         }
     }
 
-    private void readGreeting() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private void readHandshake() {
         try {
-            int len = clientChannel.read(byteBuffer);
-            if (len < 2) {
-                log.error("Received " + len + " bytes. Full greeting message wasn't received");
+            if (handshakeBuffer == null) {
+                handshakeBuffer = BufferPool.getInstance().acquire(HANDSHAKE_BUFFER_SIZE);
+            }
+            int len = clientChannel.read(handshakeBuffer);
+            if (len < 0) {
+                log.info("Client closed connection during handshake");
                 close();
                 return;
             }
-            byte[] bytes = Arrays.copyOfRange(byteBuffer.array(), 0, len);
-            log.info("Greeting received : " + Arrays.toString(bytes));
-            if (bytes[0] != ProtocolParams.SUPPORTED_VERSION) {
-                log.error("Client doesn't support SOCKS5");
+            handshakeBuffer.flip();
+            parseHandshake();
+            if (!isClosed && !requestReceived) {
+                handshakeBuffer.compact();
+                if (!handshakeBuffer.hasRemaining()) {
+                    throw new TooLongHandshakeMessage("Handshake message doesn't fit into " + HANDSHAKE_BUFFER_SIZE
+                            + " bytes");
+                }
+            }
+        }
+        catch (Socks5ProtocolException | IOException e) {
+            log.error(e.toString());
+            close();
+        }
+    }
+
+    private void parseHandshake() throws IOException, Socks5ProtocolException {
+        while (!requestReceived) {
+            HandshakeParser.Result result;
+            try {
+                result = parser.parse(handshakeBuffer);
+            }
+            catch (UnsupportedAddressType e) {
+                log.error(e.toString());
+                requestReceived = true;
+                responseCode = ProtocolParams.UNSUPPORTED_ADDRESS_TYPE;
+                readyToWriteConnecting();
                 return;
             }
-            boolean isFoundNoAuth = false;
-            for (int i = 0; i < bytes[1]; ++i) {
-                if (bytes[i + 2] == ProtocolParams.NO_AUTH) {
-                    isFoundNoAuth = true;
-                    break;
+            switch (result) {
+                case NEED_MORE -> {
+                    updateHandshakeInterest();
+                    return;
+                }
+                case GREETING_DONE -> {
+                    log.debug("Greeting received");
+                    if (!parser.isNoAuthOffered()) {
+                        log.error("No authentication method wasn't suggested");
+                        authMethod = ProtocolParams.ERROR_CODE;
+                        closeAfterReplies = true;
+                    }
+                    ensureReplyBuffer().put(ProtocolParams.SUPPORTED_VERSION).put(authMethod);
+                    if (closeAfterReplies) {
+                        requestReceived = true;
+                        updateHandshakeInterest();
+                        writeReplies();
+                        return;
+                    }
+                    setState(ClientState.CONNECTING);
+                    writeReplies();
+                    if (isClosed) {
+                        return;
+                    }
+                }
+                case REQUEST_DONE -> {
+                    requestReceived = true;
+                    handleRequest();
                 }
             }
-            if (!isFoundNoAuth) {
-                log.error("No authentication method wasn't suggested");
-                authMethod = ProtocolParams.ERROR_CODE;
+        }
+    }
+
+    private void handleRequest() throws IOException {
+        serverPort = parser.getPort();
+        if (parser.getCommand() == ProtocolParams.UDP_ASSOCIATE_COMMAND_CODE) {
+            startUdpAssociation();
+            return;
+        }
+        if (parser.getCommand() == ProtocolParams.BIND_COMMAND_CODE) {
+            startBind();
+            return;
+        }
+        if (parser.getCommand() != ProtocolParams.SUPPORTED_COMMAND_CODE) {
+            log.error("Unsupported command code was received");
+            responseCode = ProtocolParams.UNSUPPORTED_COMMAND_CODE;
+            readyToWriteConnecting();
+            return;
+        }
+        switch (parser.getAddressType()) {
+            case ProtocolParams.ADDR_TYPE_IPV4, ProtocolParams.ADDR_TYPE_IPV6 -> {
+                int length = parser.getAddressType() == ProtocolParams.ADDR_TYPE_IPV4 ? 4 : 16;
+                InetAddress address = InetAddress.getByAddress(Arrays.copyOf(parser.getAddress(), length));
+                serverAddresses = List.of(address);
+                serverName = address.getHostAddress();
+                log.debug("Server has IP address : " + serverName + ":" + serverPort);
+                setState(ClientState.WAIT_SERVER);
+                updateHandshakeInterest();
+                ParentProxy parent = UpstreamRules.getInstance().select(serverName);
+                if (parent != null) {
+                    launchTunnel(parent, address);
+                }
+                else {
+                    launchServerHandler();
+                }
+            }
+            case ProtocolParams.ADDR_TYPE_HOST -> {
+                serverName = new String(parser.getAddress(), 0, parser.getAddressLength(),
+                        StandardCharsets.US_ASCII);
+                log.debug("Server name : " + serverName + ":" + serverPort);
+                ParentProxy parent = UpstreamRules.getInstance().select(serverName);
+                if (parent != null) {
+                    setState(ClientState.WAIT_SERVER);
+                    updateHandshakeInterest();
+                    launchTunnel(parent, null);
+                    return;
+                }
+                setState(ClientState.WAIT_DNS);
+                updateHandshakeInterest();
+                reactor.getDnsHandler().resolve(serverName, this::setServerAddresses);
+            }
+            default -> {
+                log.error("Unsupported address type " + parser.getAddressType());
+                responseCode = ProtocolParams.UNSUPPORTED_ADDRESS_TYPE;
+                readyToWriteConnecting();
             }
-            state = ClientState.GREETING;
-            clientKey.interestOps(SelectionKey.OP_WRITE);
-        } catch (IOException e) {
-            log.error(e.toString());
-            close();
         }
     }
 
-    private void writeGreeting() {
-        byte[] bytes = new byte[] { ProtocolParams.SUPPORTED_VERSION, authMethod };
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    /**
+     * Starts a BIND request. Only the host the request names may connect back, so a host name is
+     * resolved first and a request without a concrete address is refused.
+     */
+    private void startBind() throws IOException {
+        if (parser.getAddressType() == ProtocolParams.ADDR_TYPE_HOST) {
+            serverName = new String(parser.getAddress(), 0, parser.getAddressLength(), StandardCharsets.US_ASCII);
+            setState(ClientState.WAIT_DNS);
+            updateHandshakeInterest();
+            reactor.getDnsHandler().resolve(serverName, this::bindAddressesResolved);
+            return;
+        }
+        int length = parser.getAddressType() == ProtocolParams.ADDR_TYPE_IPV4 ? 4 : 16;
+        InetAddress address = InetAddress.getByAddress(Arrays.copyOf(parser.getAddress(), length));
+        serverName = address.getHostAddress();
+        if (address.isAnyLocalAddress()) {
+            log.info(clientHost.getHostAddress() + " : BIND without a peer address refused");
+            responseCode = ProtocolParams.NOT_ALLOWED;
+            readyToWriteConnecting();
+            return;
+        }
+        openBindListener(List.of(address));
+    }
+
+    private void bindAddressesResolved(List<InetAddress> addresses) {
+        if (isClosed || state != ClientState.WAIT_DNS) {
+            return;
+        }
+        if (addresses.isEmpty()) {
+            log.info("DNS server can't find domain " + serverName);
+            responseCode = ProtocolParams.UNAVAILABLE_HOST;
+            readyToWriteConnecting();
+            return;
+        }
+        openBindListener(addresses);
+    }
+
+    /**
+     * Sends the first BIND reply with the listening address and waits for a connection from one of
+     * the expected addresses.
+     */
+    private void openBindListener(List<InetAddress> expectedAddresses) {
         try {
-            clientChannel.write(byteBuffer);
-            log.info("Greeting reply was sent : " + Arrays.toString(byteBuffer.array()));
-            if (authMethod == ProtocolParams.ERROR_CODE) {
-                close();
-            } else {
-                state = ClientState.CONNECTING;
-                clientKey.interestOps(SelectionKey.OP_READ);
+            bindHandler = new BindHandler(this, expectedAddresses);
+            putReply(ProtocolParams.CONNECTION_ESTABLISHED, bindHandler.getAddress(), bindHandler.getPort());
+        }
+        catch (IOException e) {
+            log.error("BIND listener wasn't opened : " + e);
+            if (bindHandler != null) {
+                bindHandler.close();
+                bindHandler = null;
+            }
+            responseCode = ProtocolParams.GENERAL_FAILURE;
+            readyToWriteConnecting();
+            return;
+        }
+        log.debug("Waiting for BIND connection on port " + bindHandler.getPort() + " from " + serverName);
+        setState(ClientState.WAIT_SERVER, ProxyConfig.BIND_TIMEOUT_MILLIS);
+        updateHandshakeInterest();
+        writeReplies();
+    }
+
+    /**
+     * The inbound connection of a BIND request arrived; the second reply names its peer and the relay
+     * starts as for CONNECT.
+     */
+    void bindAccepted(SocketChannel channel) {
+        bindHandler = null;
+        if (isClosed || state != ClientState.WAIT_SERVER) {
+            closeChannel(channel);
+            return;
+        }
+        try {
+            InetSocketAddress peer = (InetSocketAddress) channel.getRemoteAddress();
+            serverAddress = peer.getAddress();
+            serverPort = peer.getPort();
+            serverAddresses = List.of(serverAddress);
+            log.debug("BIND connection from " + peer);
+            serverHandler = new ServerHandler(this, serverAddresses, serverPort);
+            if (handshakeBuffer != null && handshakeBuffer.hasRemaining()) {
+                bytesUp += handshakeBuffer.remaining();
+                ProxyMetrics.getInstance().bytesFromClient(handshakeBuffer.remaining());
+                serverHandler.getInputChain().write(handshakeBuffer);
             }
+            serverHandler.attach(channel, null);
         }
         catch (IOException e) {
             log.error(e.toString());
+            closeChannel(channel);
             close();
+            return;
         }
+        responseCode = ProtocolParams.CONNECTION_ESTABLISHED;
+        readyToWriteConnecting();
     }
 
-    private void readConnecting() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private void closeChannel(SocketChannel channel) {
         try {
-            int len = clientChannel.read(byteBuffer);
-            if (len < 1) {
-                log.error("Received " + len + " bytes");
-                close();
+            channel.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+
+    /**
+     * The request's address is where the client will send datagrams from; zeros mean it isn't known yet.
+     */
+    private void startUdpAssociation() throws IOException {
+        serverName = "udp";
+        InetAddress requestedAddress = null;
+        if (parser.getAddressType() != ProtocolParams.ADDR_TYPE_HOST) {
+            int length = parser.getAddressType() == ProtocolParams.ADDR_TYPE_IPV4 ? 4 : 16;
+            InetAddress address = InetAddress.getByAddress(Arrays.copyOf(parser.getAddress(), length));
+            if (!address.isAnyLocalAddress()) {
+                requestedAddress = address;
+            }
+        }
+        try {
+            udpAssociation = new UdpAssociation(this, requestedAddress, serverPort);
+            responseCode = ProtocolParams.CONNECTION_ESTABLISHED;
+        }
+        catch (IOException e) {
+            log.error("UDP association wasn't opened : " + e);
+            responseCode = ProtocolParams.GENERAL_FAILURE;
+        }
+        updateHandshakeInterest();
+        readyToWriteConnecting();
+    }
+
+    private ByteBuffer ensureReplyBuffer() throws BufferPoolExhaustedException {
+        if (replyBuffer == null) {
+            replyBuffer = BufferPool.getInstance().acquire(REPLY_BUFFER_SIZE);
+        }
+        return replyBuffer;
+    }
+
+    private void updateHandshakeInterest() {
+        int ops = 0;
+        if (!requestReceived) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (replyBuffer != null && replyBuffer.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (clientKey.isValid()) {
+            clientKey.interestOps(ops);
+        }
+    }
+
+    private void writeReplies() {
+        try {
+            if (replyBuffer != null && replyBuffer.position() > 0) {
+                replyBuffer.flip();
+                clientChannel.write(replyBuffer);
+                replyBuffer.compact();
+            }
+            if (replyBuffer != null && replyBuffer.position() > 0) {
+                updateHandshakeInterest();
                 return;
             }
-            byte[] connectRequest = Arrays.copyOfRange(byteBuffer.array(), 0, len);
-            log.info("Connection info received : " + Arrays.toString(connectRequest));
-            if (connectRequest[0] != ProtocolParams.SUPPORTED_VERSION) {
-                log.error("Wrong SOCKS version received");
+            if (closeAfterReplies) {
                 close();
-                return;
             }
-            if (connectRequest[1] != ProtocolParams.SUPPORTED_COMMAND_CODE) {
-                log.error("Unsupported command code was received");
-                responseCode = ProtocolParams.UNSUPPORTED_COMMAND_CODE;
-                readyToWriteConnecting();
-                return;
+            else if (connectReplyQueued) {
+                log.debug("Response sent : " + responseCode);
+                enterConnected();
             }
-
-            serverPort = ByteBuffer.wrap(Arrays.copyOfRange(connectRequest, len - 2, len)).getShort();
-            log.info("Host port : " + serverPort);
-
-            switch (connectRequest[3]) {
-                case ProtocolParams.ADDR_TYPE_IPV4 -> {
-                    byte[] addressBytes = Arrays.copyOfRange(connectRequest, 4, 8);
-                    serverAddress = InetAddress.getByAddress(addressBytes);
-                    serverName = serverAddress.getHostAddress();
-                    log.info("Server has IPv4 address : " + serverAddress.getHostAddress());
-                    launchServerHandler();
-                    state = ClientState.WAIT_SERVER;
-                    clientKey.interestOps(0);
-                }
-                case ProtocolParams.ADDR_TYPE_HOST -> {
-                    int addressLength = connectRequest[4];
-                    serverName = new String(Arrays.copyOfRange(connectRequest, 5, addressLength + 5));
-                    log.info("Server name : " + serverName);
-                    DnsHandler.getInstance().addNewRequest(this, serverName);
-                    state = ClientState.WAIT_DNS;
-                    clientKey.interestOps(0);
-                }
-                case ProtocolParams.ADDR_TYPE_IPV6 -> {
-                    log.error("Proxy server doesn't support IPv6 addresses");
-                    responseCode = ProtocolParams.UNSUPPORTED_ADDRESS_TYPE;
-                    readyToWriteConnecting();
-                }
-                default -> {
-                    log.error("Wrong type of address");
-                    responseCode = ProtocolParams.UNSUPPORTED_ADDRESS_TYPE;
-                    readyToWriteConnecting();
-                }
+            else {
+                updateHandshakeInterest();
             }
         }
         catch (IOException e) {
@@ -195,9 +519,39 @@ public class ClientHandler implements Handler {
         }
     }
 
+    private void enterConnected() {
+        setState(ClientState.CONNECTED);
+        releaseHandshakeBuffers();
+        if (serverHandler != null) {
+            shaping = TrafficShaper.getInstance().open(clientHost, serverName);
+        }
+        int ops = SelectionKey.OP_READ;
+        if (serverHandler != null && !serverHandler.getOutputChain().isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(ops);
+    }
+
+    private void releaseHandshakeBuffers() {
+        BufferPool.getInstance().release(handshakeBuffer);
+        handshakeBuffer = null;
+        BufferPool.getInstance().release(replyBuffer);
+        replyBuffer = null;
+    }
+
+    /**
+     * Connects directly, with the handler of a failed tunnel if there is one, which already holds the
+     * early data.
+     */
     private void launchServerHandler() {
+        if (serverHandler != null) {
+            serverHandler.connect(serverAddresses);
+            return;
+        }
         try {
-            serverHandler = new ServerHandler(this, serverAddress, serverPort);
+            serverHandler = new ServerHandler(this, serverAddresses, serverPort);
+            queueEarlyData();
+            serverHandler.connect();
         }
         catch (IOException e) {
             log.error(e.toString());
@@ -205,47 +559,199 @@ public class ClientHandler implements Handler {
         }
     }
 
-    public void setServerAddress(InetAddress serverAddress) {
-        if (state == ClientState.WAIT_DNS) {
-            if (serverAddress == null) {
+    private void queueEarlyData() throws BufferPoolExhaustedException {
+        if (handshakeBuffer != null && handshakeBuffer.hasRemaining()) {
+            log.debug(serverName + " : " + handshakeBuffer.remaining() + " bytes of early data");
+            bytesUp += handshakeBuffer.remaining();
+            ProxyMetrics.getInstance().bytesFromClient(handshakeBuffer.remaining());
+            serverHandler.getInputChain().write(handshakeBuffer);
+        }
+    }
+
+    /**
+     * Connects through a parent proxy; the parent resolves host names itself.
+     */
+    private void launchTunnel(ParentProxy parent, InetAddress address) {
+        try {
+            serverHandler = new ServerHandler(this, List.of(), serverPort);
+            queueEarlyData();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            close();
+            return;
+        }
+        tunnel = reactor.getTunnelPool().open(this, parent, serverName, address, serverPort);
+    }
+
+    /**
+     * The parent proxy accepted the CONNECT; bytes it sent after the reply go to the client first.
+     */
+    void tunnelOpened(SocketChannel channel, EgressAddress egress, ByteBuffer received) {
+        tunnel = null;
+        if (isClosed || state != ClientState.WAIT_SERVER) {
+            reactor.removeChannelFromMap(channel);
+            closeChannel(channel);
+            EgressPool.getInstance().release(egress);
+            return;
+        }
+        try {
+            serverHandler.attach(channel, egress);
+            if (received.hasRemaining()) {
+                serverHandler.getOutputChain().write(received);
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            closeChannel(channel);
+            close();
+            return;
+        }
+        responseCode = ProtocolParams.CONNECTION_ESTABLISHED;
+        readyToWriteConnecting();
+    }
+
+    /**
+     * The tunnel failed and the client gets the failure. With proxy.upstream.failover set, a request
+     * the parent didn't refuse itself goes to the next parent on the destination's route instead, and
+     * directly to the destination when the route ends with a direct rule.
+     */
+    void tunnelFailed(TunnelRequest request, byte code) {
+        tunnel = null;
+        if (isClosed || state != ClientState.WAIT_SERVER) {
+            return;
+        }
+        if (ProxyConfig.UPSTREAM_FAILOVER && !request.refused) {
+            UpstreamRules.Route route = UpstreamRules.getInstance().route(serverName);
+            int next = route.parents().indexOf(request.parent) + 1;
+            if (next < route.parents().size()) {
+                ParentProxy parent = route.parents().get(next);
+                log.info(serverName + " : " + request.parent + " failed, trying " + parent);
+                tunnel = reactor.getTunnelPool().open(this, parent, serverName, request.address, serverPort);
+                return;
+            }
+            if (route.direct()) {
+                log.info(serverName + " : " + request.parent + " failed, connecting directly");
+                if (request.address != null) {
+                    serverHandler.connect(serverAddresses);
+                    return;
+                }
+                setState(ClientState.WAIT_DNS);
+                reactor.getDnsHandler().resolve(serverName, this::setServerAddresses);
+                return;
+            }
+        }
+        if (!request.refused) {
+            log.info(serverName + " : " + request.parent + " failed");
+        }
+        responseCode = code;
+        readyToWriteConnecting();
+    }
+
+    /**
+     * Result of the DNS lookup in connection order, an empty list when the name didn't resolve.
+     */
+    public void setServerAddresses(List<InetAddress> serverAddresses) {
+        if (!isClosed && state == ClientState.WAIT_DNS) {
+            if (serverAddresses.isEmpty()) {
                 log.info("DNS server can't find domain " + serverName);
                 responseCode = ProtocolParams.UNAVAILABLE_HOST;
                 readyToWriteConnecting();
                 return;
             }
-            this.serverAddress = serverAddress;
-            state = ClientState.WAIT_SERVER;
-            log.info("Host address : " + serverAddress.getHostAddress());
+            this.serverAddresses = serverAddresses;
+            setState(ClientState.WAIT_SERVER);
+            log.debug("Host addresses : " + serverAddresses);
             launchServerHandler();
         }
     }
 
+    /**
+     * Address of the connection attempt that won, reported in the reply and the access log.
+     */
+    void setServerAddress(InetAddress serverAddress) {
+        this.serverAddress = serverAddress;
+    }
+
     public void readyToWriteConnecting() {
-        state = ClientState.CONNECTING;
-        clientKey.interestOps(SelectionKey.OP_WRITE);
-        log.info("Client ready to response");
+        if (isClosed) {
+            return;
+        }
+        setState(ClientState.CONNECTING);
+        if (responseCode != ProtocolParams.CONNECTION_ESTABLISHED) {
+            closeAfterReplies = true;
+        }
+        connectReplyQueued = true;
+        ProxyMetrics.getInstance().reply(responseCode);
+        try {
+            InetAddress boundAddress = serverAddress;
+            int boundPort = serverPort;
+            if (udpAssociation != null) {
+                boundAddress = udpAssociation.getLocalAddress().getAddress();
+                boundPort = udpAssociation.getLocalAddress().getPort();
+            }
+            putReply(responseCode, boundAddress, boundPort);
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            close();
+            return;
+        }
+        log.debug("Client ready to response");
+        writeReplies();
+    }
+
+    private void putReply(byte code, InetAddress address, int port) throws BufferPoolExhaustedException {
+        ByteBuffer reply = ensureReplyBuffer();
+        reply.put(ProtocolParams.SUPPORTED_VERSION).put(code).put((byte) 0x00);
+        if (address instanceof Inet6Address) {
+            reply.put(ProtocolParams.ADDR_TYPE_IPV6).put(address.getAddress());
+        }
+        else {
+            reply.put(ProtocolParams.ADDR_TYPE_IPV4);
+            if (address != null) {
+                reply.put(address.getAddress(), 0, 4);
+            }
+            else {
+                reply.putInt(0);
+            }
+        }
+        reply.putShort((short) port);
     }
 
     public void setResponseCode(byte responseCode) {
         this.responseCode = responseCode;
     }
 
-    private void writeConnecting() {
-        connectResponse[1] = responseCode;
-        if (serverAddress != null) System.arraycopy(serverAddress.getAddress(), 0, connectResponse, 4, 4);
-        connectResponse[8] = (byte) (serverPort >> 8);
-        connectResponse[9] = (byte) serverPort;
-
-        ByteBuffer byteBuffer = ByteBuffer.wrap(connectResponse);
+    private void read() {
+        if (serverHandler == null) {
+            readControlConnection();
+            return;
+        }
+        BufferChain inputChain = serverHandler.getInputChain();
         try {
-            clientChannel.write(byteBuffer);
-            log.info("Response sent : " + Arrays.toString(byteBuffer.array()));
-            if (responseCode == ProtocolParams.CONNECTION_ESTABLISHED) {
-                state = ClientState.CONNECTED;
-                clientKey.interestOps(SelectionKey.OP_READ);
+            long allowance = Math.min(readAllowance(true), upstreamDeficit.allowance());
+            if (allowance <= 0) {
+                return;
             }
-            else {
+            long len = inputChain.readFrom(clientChannel, allowance);
+            if (len < 0) {
                 close();
+                return;
+            }
+            upstreamDeficit.used(len, allowance);
+            markActivity();
+            bytesRelayed(len);
+            bytesUp += len;
+            ProxyMetrics.getInstance().bytesFromClient(len);
+            if (log.isDebugEnabled()) {
+                log.debug(serverName + " : " + len + " bytes received from client");
+            }
+            if (len > 0) {
+                Handler.addInterest(serverHandler.getServerKey(), SelectionKey.OP_WRITE);
+            }
+            if (inputChain.readableBytes() >= ProxyConfig.RELAY_HIGH_WATERMARK) {
+                Handler.removeInterest(clientKey, SelectionKey.OP_READ);
             }
         }
         catch (IOException e) {
@@ -254,42 +760,131 @@ public class ClientHandler implements Handler {
         }
     }
 
-    private void read() {
+    /**
+     * Bytes the next relay read in the direction may take under the bandwidth limits. When the limits
+     * are used up, reads in that direction stop until the timing wheel resumes them.
+     */
+    long readAllowance(boolean upstream) {
+        if (shaping == null) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        long allowance = shaping.allowance(now);
+        if (allowance > 0) {
+            return allowance;
+        }
+        Handler.removeInterest(upstream ? clientKey : serverHandler.getServerKey(), SelectionKey.OP_READ);
+        if ((upstream ? upstreamResume : downstreamResume) == null) {
+            Timeout resume = reactor.getTimingWheel().schedule(() -> resumeRead(upstream), shaping.pause(now),
+                    reactor.getLoopTime());
+            if (upstream) {
+                upstreamResume = resume;
+            }
+            else {
+                downstreamResume = resume;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Whether reads in the direction wait for the timing wheel; flow control must not resume them.
+     */
+    boolean isReadPaused(boolean upstream) {
+        return (upstream ? upstreamResume : downstreamResume) != null;
+    }
+
+    private void resumeRead(boolean upstream) {
+        if (upstream) {
+            upstreamResume = null;
+        }
+        else {
+            downstreamResume = null;
+        }
+        if (isClosed || serverHandler.isClosed()) {
+            return;
+        }
+        if (upstream && serverHandler.getInputChain().readableBytes() < ProxyConfig.RELAY_HIGH_WATERMARK) {
+            Handler.addInterest(clientKey, SelectionKey.OP_READ);
+        }
+        else if (!upstream && serverHandler.getOutputChain().readableBytes() < ProxyConfig.RELAY_HIGH_WATERMARK) {
+            Handler.addInterest(serverHandler.getServerKey(), SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * A deferred relay round: pushes what the last round read to the server, then reads again.
+     */
+    private void resumeUpstream() {
+        serverHandler.flushToServer();
+        if (!isClosed && clientKey.isValid() && (clientKey.interestOps() & SelectionKey.OP_READ) != 0) {
+            read();
+        }
+    }
+
+    void flushToClient() {
+        if (!isClosed && state == ClientState.CONNECTED && clientKey.isValid()
+                && (clientKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            write();
+        }
+    }
+
+    void bytesRelayed(long len) {
+        if (shaping != null && len > 0) {
+            shaping.consume(len, System.nanoTime());
+        }
+    }
+
+    /**
+     * The TCP connection of a UDP association only carries its lifetime, anything the client sends is discarded.
+     */
+    private void readControlConnection() {
+        ByteBuffer discarded = null;
         try {
-            int len = clientChannel.read(serverHandler.getInputBuffer());
+            discarded = BufferPool.getInstance().acquire(REPLY_BUFFER_SIZE);
+            int len;
+            while ((len = clientChannel.read(discarded)) > 0) {
+                discarded.clear();
+            }
             if (len < 0) {
+                log.debug(serverName + " : client closed the association");
                 close();
-                return;
             }
-            log.info(serverName + " : " + len + " bytes received from client");
-            serverHandler.getServerKey().interestOps(serverHandler.getServerKey().interestOps() |
-                    SelectionKey.OP_WRITE);
         }
         catch (IOException e) {
             log.error(e.toString());
             close();
         }
+        finally {
+            BufferPool.getInstance().release(discarded);
+        }
     }
 
     private void write() {
+        if (serverHandler == null) {
+            Handler.removeInterest(clientKey, SelectionKey.OP_WRITE);
+            return;
+        }
+        BufferChain outputChain = serverHandler.getOutputChain();
         try {
-            serverHandler.getOutputBuffer().flip();
-            int len = clientChannel.write(serverHandler.getOutputBuffer());
-            if (len < 0) {
-                close();
-                return;
+            long len = outputChain.writeTo(clientChannel);
+            markActivity();
+            bytesDown += len;
+            ProxyMetrics.getInstance().bytesToClient(len);
+            if (log.isDebugEnabled()) {
+                log.debug(serverName + " : " + len + " bytes sent to client");
             }
-            log.info(serverName + " : " + len + " bytes sent to client");
 
-            if (serverHandler.getOutputBuffer().remaining() == 0) {
-                serverHandler.getOutputBuffer().clear();
-                clientKey.interestOps(SelectionKey.OP_READ);
+            if (outputChain.isEmpty()) {
+                Handler.removeInterest(clientKey, SelectionKey.OP_WRITE);
                 if (serverHandler.isClosed()) {
                     close();
+                    return;
                 }
             }
-            else {
-                serverHandler.getOutputBuffer().compact();
+            if (outputChain.readableBytes() <= ProxyConfig.RELAY_LOW_WATERMARK && !serverHandler.isClosed()
+                    && downstreamResume == null) {
+                Handler.addInterest(serverHandler.getServerKey(), SelectionKey.OP_READ);
             }
         }
         catch (IOException e) {
@@ -299,8 +894,14 @@ public class ClientHandler implements Handler {
     }
 
     public void close() {
+        if (isClosed) {
+            return;
+        }
+        if (timeout != null) {
+            timeout.cancel();
+        }
         clientKey.cancel();
-        Proxy.getInstance().removeChannelFromMap(clientChannel);
+        reactor.removeChannelFromMap(clientChannel);
         try {
             if (clientChannel != null) {
                 clientChannel.shutdownInput();
@@ -315,10 +916,46 @@ public class ClientHandler implements Handler {
         catch (IOException e) {
             log.error(e.toString());
         }
-        log.info(serverName + " : " + "client closed");
+        log.debug(serverName + " : " + "client closed");
         isClosed = true;
-        if (serverHandler != null && !serverHandler.isClosed()) {
-            serverHandler.close();
+        AdmissionControl.getInstance().release(clientHost);
+        ProxyMetrics.getInstance().connectionClosed(state);
+        if (bindHandler != null) {
+            bindHandler.close();
+        }
+        if (tunnel != null) {
+            tunnel.cancel();
+            tunnel = null;
+        }
+        if (upstreamResume != null) {
+            upstreamResume.cancel();
+        }
+        if (downstreamResume != null) {
+            downstreamResume.cancel();
+        }
+        TrafficShaper.getInstance().close(shaping);
+        shaping = null;
+        if (udpAssociation != null) {
+            udpAssociation.close();
+            bytesUp += udpAssociation.getBytesUp();
+            bytesDown += udpAssociation.getBytesDown();
+        }
+        long now = System.currentTimeMillis();
+        InetAddress loggedAddress = serverAddress;
+        if (loggedAddress == null && serverAddresses != null && !serverAddresses.isEmpty()) {
+            loggedAddress = serverAddresses.get(0);
+        }
+        AccessLog.getInstance().logClose(connectionId, clientAddress, serverName, serverPort,
+                loggedAddress == null ? null : loggedAddress.getHostAddress(), connectReplyQueued ? responseCode : -1,
+                state.name(), bytesUp, bytesDown, now - openTime, now);
+        releaseHandshakeBuffers();
+        if (serverHandler != null) {
+            if (!serverHandler.isClosed()) {
+                serverHandler.close();
+            }
+            else {
+                serverHandler.releaseBuffers();
+            }
         }
     }
 }
\ No newline at end of file
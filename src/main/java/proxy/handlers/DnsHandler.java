@@ -2,9 +2,17 @@ package proxy.handlers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.*;
-import org.xbill.DNS.Record;
-import proxy.Proxy;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+import proxy.Reactor;
+import proxy.admission.AdmissionControl;
+import proxy.buffers.BufferPool;
+import proxy.config.ProxyConfig;
+import proxy.dns.AddressList;
+import proxy.dns.DnsCache;
+import proxy.dns.DnsCodec;
+import proxy.metrics.ProxyMetrics;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -12,171 +20,406 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Consumer;
 
-public class DnsHandler implements Handler, LostDatagramsHandler {
-    private static class DnsRequest {
-        ClientHandler clientHandler;
-        String address;
+/**
+ * Resolves host names for the clients of one reactor. A flight asks for A and AAAA records in parallel;
+ * its waiters get the addresses as soon as AAAA answers with addresses, when both have answered, or
+ * when A has answered and the resolution delay has passed (RFC 8305 section 3). The flight stays in
+ * the shared map until both queries finish, so the cache always receives the merged answer.
+ */
+public class DnsHandler implements Handler {
+    private record Waiter(Reactor reactor, Consumer<List<InetAddress>> callback) {}
 
-        private DnsRequest(ClientHandler clientHandler, String address) {
-            this.clientHandler = clientHandler;
-            this.address = address;
+    private static class DnsQuery {
+        final DnsFlight flight;
+        final int type;
+        int id;
+        int attemptsNumber;
+        long timeout;
+        long deadline;
+        boolean completed;
+
+        private DnsQuery(DnsFlight flight, int type) {
+            this.flight = flight;
+            this.type = type;
         }
     }
 
-    private static class DnsRequestAttempt {
-        int attemptsNumber;
-        DnsRequest request;
-        private DnsRequestAttempt(int attemptsNumber, DnsRequest request) {
-            this.attemptsNumber = attemptsNumber;
-            this.request = request;
+    private static class DnsFlight {
+        final Name name;
+        final List<Waiter> waiters = new ArrayList<>();
+        final long startTime;
+        final List<DnsQuery> queries = new ArrayList<>(2);
+        List<InetAddress> ipv4 = List.of();
+        List<InetAddress> ipv6 = List.of();
+        long ttl = Long.MAX_VALUE;
+        int negativeAnswers;
+        long resolutionDeadline;
+        boolean completed;
+        List<InetAddress> result;
+
+        private DnsFlight(Name name, long startTime) {
+            this.name = name;
+            this.startTime = startTime;
+        }
+
+        private synchronized boolean addWaiter(Waiter waiter) {
+            if (completed) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        private synchronized List<Waiter> complete(List<InetAddress> result) {
+            completed = true;
+            this.result = result;
+            return waiters;
+        }
+
+        private synchronized boolean isCompleted() {
+            return completed;
+        }
+
+        private synchronized List<InetAddress> getResult() {
+            return result;
+        }
+
+        private boolean isPending() {
+            for (DnsQuery query : queries) {
+                if (!query.completed) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private List<InetAddress> addresses() {
+            return AddressList.interleave(ipv6, ipv4);
         }
-        private DnsRequest getRequest() { return request; }
-        private int getAttemptsNumber() { return attemptsNumber; }
     }
     private static final Logger log = LoggerFactory.getLogger(DnsHandler.class);
-    private static DnsHandler instance;
     private static final int BUFFER_SIZE = 512;
+    private static final int MAX_QUERIES_IN_FLIGHT = Math.min(ProxyConfig.ADMISSION_DNS_BACKLOG, 0x10000 / 2);
+    private static final Map<Name, DnsFlight> flights = new ConcurrentHashMap<>();
+    private final Reactor reactor;
+    private final Random random = new SecureRandom();
+    private final Queue<DnsQuery> requestQueue = new ArrayDeque<>();
+    private final Map<Integer, DnsQuery> queriesById = new HashMap<>();
+    private final List<ArrayDeque<DnsQuery>> sentQueries;
+    private final Queue<DnsFlight> resolutionDelays = new ArrayDeque<>();
     private DatagramChannel dnsChannel;
-    private Queue<DnsRequest> requestQueue;
-    private Map<Name, ClientHandler> responseQueue;
-    private Map<Name, DnsRequestAttempt> notCompletedRequests;
     private SelectionKey dnsKey;
 
-    private DnsHandler() {}
-    public static DnsHandler getInstance() {
-        if (instance == null) {
-            instance = new DnsHandler();
+    public DnsHandler(Reactor reactor) {
+        this.reactor = reactor;
+        sentQueries = new ArrayList<>(ProxyConfig.DNS_MAX_ATTEMPTS);
+        for (int i = 0; i < ProxyConfig.DNS_MAX_ATTEMPTS; ++i) {
+            sentQueries.add(new ArrayDeque<>());
         }
-        return instance;
     }
 
-    public void start(String host, int port, Selector selector) throws IOException {
-        InetSocketAddress dnsServer = ResolverConfig.getCurrentConfig().server();
-        //InetSocketAddress dnsServer = new InetSocketAddress("93.184.216.34", 9000);
+    public void start(String host, int port) throws IOException {
+        InetSocketAddress dnsServer = ProxyConfig.dnsServer();
         dnsChannel = DatagramChannel.open();
         dnsChannel.socket().connect(dnsServer);
         dnsChannel.configureBlocking(false);
-        dnsKey = dnsChannel.register(selector, 0);
-        Proxy.getInstance().putNewChannel(dnsChannel, this);
-        requestQueue = new ConcurrentLinkedDeque<>();
-        responseQueue = new ConcurrentHashMap<>();
-        notCompletedRequests = new ConcurrentHashMap<>();
+        dnsKey = dnsChannel.register(reactor.getSelector(), SelectionKey.OP_READ);
+        reactor.putNewChannel(dnsChannel, this);
         log.info("DNS resolver started. Host : " + host + ". Port : " + port + ". DNS Server : "
                 + dnsServer.toString());
     }
 
-    public void addNewRequest(ClientHandler clientHandler, String address) {
-        requestQueue.add(new DnsRequest(clientHandler, address));
-        dnsKey.interestOps(dnsKey.interestOps() | SelectionKey.OP_WRITE);
-        log.info("New DNS request : " + address);
+    /**
+     * Looks the host up and passes its addresses in connection order to the callback on this reactor,
+     * an empty list when the name doesn't resolve. Cache hits call back before returning.
+     */
+    public void resolve(String address, Consumer<List<InetAddress>> callback) {
+        Name name;
+        try {
+            name = Name.fromString(address, Name.root);
+        }
+        catch (TextParseException e) {
+            log.error(e.toString());
+            callback.accept(List.of());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        DnsCache.Entry entry = DnsCache.getInstance().get(name, now);
+        if (entry != null) {
+            log.debug("DNS cache hit : " + address);
+            ProxyMetrics.getInstance().dnsCacheHit();
+            callback.accept(entry.getAddresses());
+            return;
+        }
+
+        DnsFlight flight = new DnsFlight(name, now);
+        Waiter waiter = new Waiter(reactor, callback);
+        DnsFlight existingFlight = flights.putIfAbsent(name, flight);
+        if (existingFlight != null) {
+            if (existingFlight.addWaiter(waiter)) {
+                log.debug("DNS request joined in-flight query : " + address);
+                return;
+            }
+            callback.accept(existingFlight.getResult());
+            return;
+        }
+        flight.addWaiter(waiter);
+        flight.queries.add(new DnsQuery(flight, Type.A));
+        if (ProxyConfig.DNS_IPV6) {
+            flight.queries.add(new DnsQuery(flight, Type.AAAA));
+        }
+        if (queriesById.size() + flight.queries.size() > MAX_QUERIES_IN_FLIGHT) {
+            log.error("Too many DNS queries in flight, request for " + address + " rejected");
+            ProxyMetrics.getInstance().dnsRejected();
+            flights.remove(name, flight);
+            complete(flight, List.of());
+            return;
+        }
+        AdmissionControl.getInstance().dnsLookupStarted();
+        for (DnsQuery query : flight.queries) {
+            ProxyMetrics.getInstance().dnsQuery();
+            query.id = nextQueryId();
+            query.timeout = ProxyConfig.DNS_TIMEOUT_MILLIS;
+            queriesById.put(query.id, query);
+            requestQueue.add(query);
+            log.debug("New DNS request : " + address + " " + Type.string(query.type) + ". Id : " + query.id);
+        }
+        dnsKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Milliseconds until the earliest query or resolution delay deadline, 0 if nothing is waiting.
+     */
+    public long getNextTimeout(long now) {
+        long nextDeadline = Long.MAX_VALUE;
+        for (int i = 0; i < sentQueries.size(); ++i) {
+            DnsQuery head = skipStale(i);
+            if (head != null) {
+                nextDeadline = Math.min(nextDeadline, head.deadline);
+            }
+        }
+        DnsFlight delayed = skipCompletedDelays();
+        if (delayed != null) {
+            nextDeadline = Math.min(nextDeadline, delayed.resolutionDeadline);
+        }
+        if (nextDeadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, nextDeadline - now);
     }
 
-    public boolean isWaitingForResponse() { return !notCompletedRequests.isEmpty(); }
+    public void handleTimeouts(long now) {
+        for (int i = 0; i < sentQueries.size(); ++i) {
+            DnsQuery query;
+            while ((query = skipStale(i)) != null && query.deadline <= now) {
+                sentQueries.get(i).poll();
+                DnsFlight flight = query.flight;
+                if (query.attemptsNumber >= ProxyConfig.DNS_MAX_ATTEMPTS) {
+                    log.info("Response for " + flight.name + " " + Type.string(query.type) + " wasn't received after "
+                            + query.attemptsNumber + " attempts in " + (now - flight.startTime) + " ms");
+                    ProxyMetrics.getInstance().dnsFailure();
+                    queryFinished(query, now);
+                    continue;
+                }
+                log.info("Resend request for " + flight.name + " " + Type.string(query.type));
+                ProxyMetrics.getInstance().dnsRetry();
+                query.timeout *= 2;
+                requestQueue.add(query);
+            }
+        }
+        DnsFlight flight;
+        while ((flight = skipCompletedDelays()) != null && flight.resolutionDeadline <= now) {
+            resolutionDelays.poll();
+            log.debug("No AAAA answer for " + flight.name + " within the resolution delay");
+            complete(flight, flight.addresses());
+        }
+        if (!requestQueue.isEmpty()) {
+            dnsKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
 
     @Override
     public void handleKey() {
         if (dnsKey.isReadable()) {
-            readDnsMessage();
-        } else
-        if (dnsKey.isWritable()) {
-            writeDnsMessage();
+            readDnsMessages();
+        }
+        if (dnsKey.isValid() && dnsKey.isWritable()) {
+            writeDnsMessages();
         }
     }
 
-    @Override
-    public void handleLostDatagram() {
-        log.info("Dns datagram was lost");
-        readDnsMessage();
-    }
-
-    private void writeDnsMessage() {
-        Message message = new Message();
-        Header header = new Header();
-        header.setFlag(Flags.AD);
-        header.setFlag(Flags.RD);
-        message.setHeader(header);
-        DnsRequest request = requestQueue.remove();
-        try {
-            message.addRecord(Record.newRecord(Name.fromString(request.address, Name.root), Type.A, DClass.IN),
-                    Section.QUESTION);
-            Name name = Name.fromString(request.address, Name.root);
-            responseQueue.put(name, request.clientHandler);
-            notCompletedRequests.put(name, new DnsRequestAttempt(1, request));
-        }
-        catch (IOException e) {
-            log.error(e.toString());
+    private int nextQueryId() {
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (queriesById.containsKey(id));
+        return id;
+    }
+
+    private DnsQuery skipStale(int attemptIndex) {
+        DnsQuery head;
+        while ((head = sentQueries.get(attemptIndex).peek()) != null
+                && (head.completed || head.attemptsNumber != attemptIndex + 1)) {
+            sentQueries.get(attemptIndex).poll();
         }
+        return head;
+    }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        byte[] messageBytes = message.toWire();
-        byteBuffer.put(messageBytes);
-        byteBuffer.flip();
+    private DnsFlight skipCompletedDelays() {
+        DnsFlight head;
+        while ((head = resolutionDelays.peek()) != null && head.isCompleted()) {
+            resolutionDelays.poll();
+        }
+        return head;
+    }
 
+    private void writeDnsMessages() {
+        ByteBuffer byteBuffer = null;
         try {
-            log.info("Sending DNS request");
-            dnsChannel.write(byteBuffer);
-            dnsKey.interestOps(dnsKey.interestOps() | SelectionKey.OP_READ);
+            byteBuffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+            DnsQuery query;
+            while ((query = requestQueue.peek()) != null) {
+                if (query.completed) {
+                    requestQueue.poll();
+                    continue;
+                }
+                byteBuffer.clear();
+                DnsCodec.encodeQuery(query.id, query.flight.name, query.type, byteBuffer);
+                byteBuffer.flip();
+                try {
+                    if (dnsChannel.write(byteBuffer) == 0) {
+                        break;
+                    }
+                }
+                catch (IOException e) {
+                    log.error("DNS request for " + query.flight.name + " wasn't sent : " + e);
+                }
+                requestQueue.poll();
+                query.attemptsNumber++;
+                query.deadline = System.currentTimeMillis() + query.timeout;
+                sentQueries.get(query.attemptsNumber - 1).add(query);
+                log.debug("DNS request sent for " + query.flight.name + " " + Type.string(query.type)
+                        + ". Attempt : " + query.attemptsNumber);
+            }
         }
         catch (IOException e) {
             log.error(e.toString());
         }
+        finally {
+            BufferPool.getInstance().release(byteBuffer);
+        }
 
         if (requestQueue.isEmpty()) {
             dnsKey.interestOps(SelectionKey.OP_READ);
         }
     }
 
-    private void readDnsMessage() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private void readDnsMessages() {
+        ByteBuffer byteBuffer = null;
         try {
-            int len = dnsChannel.read(byteBuffer);
-            if (len < 1) {
-                for (Map.Entry<Name, DnsRequestAttempt> request: notCompletedRequests.entrySet()) {
-                    if (request.getValue().getAttemptsNumber() == 3) {
-                        log.info("Response for " + request.getKey() + " wasn't received after 3 attempts");
-                        ClientHandler clientHandler = responseQueue.get(request.getKey());
-                        clientHandler.setServerAddress(null);
-                        notCompletedRequests.remove(request.getKey());
-                        return;
-                    }
-                    log.info("Resend request for " + request.getKey());
-
-                    requestQueue.add(request.getValue().getRequest());
-                    notCompletedRequests.replace(request.getKey(),
-                            new DnsRequestAttempt(request.getValue().getAttemptsNumber() + 1,
-                                    request.getValue().getRequest()));
+            byteBuffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+            while (true) {
+                byteBuffer.clear();
+                if (dnsChannel.read(byteBuffer) < 1) {
+                    return;
                 }
-                return;
+                byteBuffer.flip();
+                handleResponse(byteBuffer);
             }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        finally {
+            BufferPool.getInstance().release(byteBuffer);
+        }
+    }
 
-            Message message = new Message(byteBuffer.array());
-            Name hostName = message.getQuestion().getName();
-            List<Record> answers = message.getSection(Section.ANSWER);
-            log.info("Received DNS response for " + hostName);
-            if (!responseQueue.containsKey(hostName)) {
-                return;
+    private void handleResponse(ByteBuffer byteBuffer) {
+        DnsCodec.Response response;
+        try {
+            response = DnsCodec.decodeResponse(byteBuffer);
+        }
+        catch (IOException e) {
+            log.error("Malformed DNS response : " + e);
+            return;
+        }
+        DnsQuery query = queriesById.get(response.getId());
+        if (query == null || query.type != response.getType() || !query.flight.name.equals(response.getName())) {
+            log.info("Unexpected DNS response for " + response.getName() + ". Id : " + response.getId());
+            return;
+        }
+        DnsFlight flight = query.flight;
+        long now = System.currentTimeMillis();
+        log.debug("Received DNS response for " + flight.name + " " + Type.string(query.type) + " in "
+                + (now - flight.startTime) + " ms");
+        if (!response.getAddresses().isEmpty()) {
+            if (query.type == Type.AAAA) {
+                flight.ipv6 = response.getAddresses();
             }
-            ClientHandler clientHandler = responseQueue.get(hostName);
-            responseQueue.remove(hostName);
-            for (Record answer : answers) {
-                if (answer.getType() == Type.A) {
-                    InetAddress inetAddress = ((ARecord) answer).getAddress();
-                    clientHandler.setServerAddress(inetAddress);
-                    break;
-                }
+            else {
+                flight.ipv4 = response.getAddresses();
             }
-            clientHandler.setServerAddress(null);
-            notCompletedRequests.remove(hostName);
+            flight.ttl = Math.min(flight.ttl, response.getTtl());
         }
-        catch (IOException e) {
-            e.printStackTrace();
+        else if (response.isNegative()) {
+            flight.negativeAnswers++;
+        }
+        queryFinished(query, now);
+    }
+
+    /**
+     * Called once per query, on an answer or when its attempts ran out.
+     */
+    private void queryFinished(DnsQuery query, long now) {
+        query.completed = true;
+        queriesById.remove(query.id);
+        DnsFlight flight = query.flight;
+        if (flight.isPending()) {
+            if (query.type == Type.AAAA && !flight.ipv6.isEmpty()) {
+                complete(flight, flight.addresses());
+            }
+            else if (query.type == Type.A && !flight.ipv4.isEmpty() && !flight.isCompleted()) {
+                flight.resolutionDeadline = now + ProxyConfig.DNS_RESOLUTION_DELAY_MILLIS;
+                resolutionDelays.add(flight);
+            }
+            return;
+        }
+        List<InetAddress> addresses = flight.addresses();
+        if (!addresses.isEmpty()) {
+            DnsCache.getInstance().put(flight.name, addresses, flight.ttl, now);
+        }
+        else if (flight.negativeAnswers == flight.queries.size()) {
+            DnsCache.getInstance().putNegative(flight.name, now);
+        }
+        flights.remove(flight.name, flight);
+        AdmissionControl.getInstance().dnsLookupFinished();
+        complete(flight, addresses);
+    }
+
+    private void complete(DnsFlight flight, List<InetAddress> addresses) {
+        if (flight.isCompleted()) {
+            return;
+        }
+        List<Waiter> waiters = flight.complete(addresses);
+        for (Waiter waiter : waiters) {
+            if (waiter.reactor() == reactor) {
+                waiter.callback().accept(addresses);
+            }
+            else {
+                waiter.reactor().execute(() -> waiter.callback().accept(addresses));
+            }
         }
     }
-}
\ No newline at end of file
+}
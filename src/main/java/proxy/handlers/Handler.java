@@ -1,5 +1,19 @@
 package proxy.handlers;
 
+import java.nio.channels.SelectionKey;
+
 public interface Handler {
     void handleKey();
+
+    static void addInterest(SelectionKey key, int ops) {
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | ops);
+        }
+    }
+
+    static void removeInterest(SelectionKey key, int ops) {
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~ops);
+        }
+    }
 }
\ No newline at end of file
@@ -1,5 +0,0 @@
-package proxy.handlers;
-
-public interface LostDatagramsHandler {
-    void handleLostDatagram();
-}
@@ -0,0 +1,301 @@
+package proxy.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.Reactor;
+import proxy.buffers.BufferPool;
+import proxy.config.ProxyConfig;
+import proxy.egress.EgressAddress;
+import proxy.egress.EgressPool;
+import proxy.protocol.ProtocolParams;
+import proxy.timer.Timeout;
+import proxy.upstream.ParentProtocol;
+import proxy.upstream.ParentProxy;
+import proxy.upstream.ParentType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection to a parent proxy. It connects and, to a SOCKS5 parent, negotiates the method and
+ * authenticates before any request is known, then waits in the TunnelPool until a client takes it.
+ * A taken connection sends the CONNECT and, once the parent accepted it, hands its channel to the
+ * client's ServerHandler together with whatever the parent sent after the reply. Every phase but
+ * IDLE is limited by proxy.connect.attemptTimeout. The socket is bound
+ * through the EgressPool like direct upstream sockets, and its egress address goes along with it.
+ */
+class ParentConnection implements Handler {
+    private enum Phase { CONNECTING, METHOD, AUTHENTICATION, IDLE, REQUEST }
+
+    private static final Logger log = LoggerFactory.getLogger(ParentConnection.class);
+    private final TunnelPool pool;
+    private final Reactor reactor;
+    private final ParentProxy parent;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer in;
+    private final ByteBuffer out;
+    private EgressAddress egress;
+    private Phase phase = Phase.CONNECTING;
+    private Timeout timeout;
+    private TunnelRequest request;
+    private boolean fromPool;
+    private boolean isClosed;
+
+    ParentConnection(TunnelPool pool, ParentProxy parent, TunnelRequest request) throws IOException {
+        this.pool = pool;
+        this.parent = parent;
+        reactor = pool.getReactor();
+        channel = SocketChannel.open();
+        ByteBuffer inBuffer = null;
+        ByteBuffer outBuffer = null;
+        try {
+            channel.configureBlocking(false);
+            inBuffer = BufferPool.getInstance().acquire(ParentProtocol.MAX_REPLY_LENGTH);
+            outBuffer = BufferPool.getInstance().acquire(ParentProtocol.MAX_REPLY_LENGTH);
+            if (!parent.getAddress().isUnresolved()) {
+                egress = EgressPool.getInstance().bind(parent.getAddress().getAddress(), channel::bind);
+            }
+            channel.connect(parent.getAddress());
+            key = channel.register(reactor.getSelector(), SelectionKey.OP_CONNECT);
+        }
+        catch (IOException e) {
+            EgressPool.getInstance().release(egress);
+            BufferPool.getInstance().release(inBuffer);
+            BufferPool.getInstance().release(outBuffer);
+            channel.close();
+            throw e;
+        }
+        in = inBuffer;
+        out = outBuffer;
+        this.request = request;
+        if (request != null) {
+            request.connection = this;
+        }
+        reactor.putNewChannel(channel, this);
+        timeout = reactor.getTimingWheel().schedule(this::timedOut, ProxyConfig.CONNECT_ATTEMPT_TIMEOUT_MILLIS,
+                reactor.getLoopTime());
+    }
+
+    ParentProxy getParent() {
+        return parent;
+    }
+
+    @Override
+    public void handleKey() {
+        try {
+            if (phase == Phase.CONNECTING) {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (!isClosed && key.isValid() && key.isWritable()) {
+                send();
+            }
+        }
+        catch (IOException e) {
+            log.info(parent + " : " + e);
+            fail(ProtocolParams.GENERAL_FAILURE);
+        }
+    }
+
+    private void connected() throws IOException {
+        log.debug("Connected to parent proxy " + parent);
+        key.interestOps(SelectionKey.OP_READ);
+        if (parent.getType() == ParentType.SOCKS5) {
+            phase = Phase.METHOD;
+            ParentProtocol.putGreeting(out, parent);
+            send();
+        }
+        else {
+            established();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new IOException("connection closed by parent proxy");
+        }
+        switch (phase) {
+            case METHOD -> {
+                if (in.position() >= ParentProtocol.METHOD_REPLY_LENGTH) {
+                    boolean authenticate = ParentProtocol.needsAuthentication(in, parent);
+                    in.clear();
+                    if (authenticate) {
+                        phase = Phase.AUTHENTICATION;
+                        ParentProtocol.putAuthentication(out, parent);
+                        send();
+                    }
+                    else {
+                        established();
+                    }
+                }
+            }
+            case AUTHENTICATION -> {
+                if (in.position() >= ParentProtocol.AUTH_REPLY_LENGTH) {
+                    ParentProtocol.checkAuthentication(in);
+                    in.clear();
+                    established();
+                }
+            }
+            case REQUEST -> replied();
+            default -> throw new IOException("unexpected data from parent proxy");
+        }
+    }
+
+    /**
+     * The parent is ready for a CONNECT: send the waiting request or go idle in the pool.
+     */
+    private void established() throws IOException {
+        timeout.cancel();
+        timeout = null;
+        if (request != null) {
+            sendRequest();
+            return;
+        }
+        phase = Phase.IDLE;
+        timeout = reactor.getTimingWheel().schedule(this::expired, ProxyConfig.UPSTREAM_MAX_IDLE_MILLIS,
+                reactor.getLoopTime());
+        pool.ready(this);
+    }
+
+    /**
+     * Sends the request on an idle pooled connection.
+     */
+    void take(TunnelRequest request) {
+        fromPool = true;
+        timeout.cancel();
+        timeout = null;
+        this.request = request;
+        request.connection = this;
+        try {
+            sendRequest();
+        }
+        catch (IOException e) {
+            log.info(parent + " : " + e);
+            fail(ProtocolParams.GENERAL_FAILURE);
+        }
+    }
+
+    private void sendRequest() throws IOException {
+        phase = Phase.REQUEST;
+        timeout = reactor.getTimingWheel().schedule(this::timedOut, ProxyConfig.CONNECT_ATTEMPT_TIMEOUT_MILLIS,
+                reactor.getLoopTime());
+        log.debug("CONNECT " + request.host + ":" + request.port + " through " + parent);
+        ParentProtocol.putConnect(out, parent, request.host, request.address, request.port);
+        send();
+    }
+
+    private void replied() throws IOException {
+        int length = ParentProtocol.replyLength(in, parent);
+        if (length == 0) {
+            if (!in.hasRemaining()) {
+                throw new IOException("too long reply from parent proxy");
+            }
+            return;
+        }
+        byte code = ParentProtocol.replyCode(in, parent);
+        if (code != ProtocolParams.CONNECTION_ESTABLISHED) {
+            log.info(parent + " : CONNECT to " + request.host + ":" + request.port + " refused with code " + code);
+            request.refused = true;
+            fail(code);
+            return;
+        }
+        timeout.cancel();
+        timeout = null;
+        TunnelRequest opened = request;
+        request = null;
+        opened.connection = null;
+        opened.done = true;
+        isClosed = true;
+        in.flip();
+        in.position(length);
+        EgressAddress handedOver = egress;
+        egress = null;
+        opened.clientHandler.tunnelOpened(channel, handedOver, in);
+        releaseBuffers();
+    }
+
+    private void send() throws IOException {
+        out.flip();
+        channel.write(out);
+        out.compact();
+        if (out.position() > 0) {
+            Handler.addInterest(key, SelectionKey.OP_WRITE);
+        }
+        else {
+            Handler.removeInterest(key, SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void timedOut() {
+        timeout = null;
+        if (phase == Phase.REQUEST) {
+            log.info(parent + " : no reply to CONNECT " + request.host + ":" + request.port);
+        }
+        else {
+            log.info(parent + " : handshake timeout");
+        }
+        fail(ProtocolParams.TTL_EXPIRED);
+    }
+
+    private void expired() {
+        timeout = null;
+        log.debug("Idle connection to " + parent + " closed");
+        close();
+        pool.lost(this, false);
+    }
+
+    /**
+     * A pooled connection the parent dropped before answering the request gives the request a retry.
+     */
+    private void fail(byte code) {
+        boolean retryable = fromPool && phase == Phase.REQUEST && in.position() == 0
+                && code != ProtocolParams.TTL_EXPIRED;
+        Phase failedPhase = phase;
+        close();
+        if (request != null) {
+            TunnelRequest failed = request;
+            request = null;
+            failed.connection = null;
+            pool.requestFailed(failed, code, retryable);
+        }
+        else {
+            pool.lost(this, failedPhase != Phase.IDLE);
+        }
+    }
+
+    void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        key.cancel();
+        reactor.removeChannelFromMap(channel);
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        EgressPool.getInstance().release(egress);
+        egress = null;
+        releaseBuffers();
+    }
+
+    private void releaseBuffers() {
+        BufferPool.getInstance().release(in);
+        BufferPool.getInstance().release(out);
+    }
+}
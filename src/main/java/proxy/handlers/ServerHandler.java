@@ -2,81 +2,272 @@ package proxy.handlers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import proxy.Proxy;
+import proxy.DeficitCounter;
+import proxy.Reactor;
+import proxy.buffers.BufferChain;
+import proxy.config.ProxyConfig;
+import proxy.dns.FailedAddresses;
+import proxy.egress.EgressAddress;
+import proxy.egress.EgressPool;
+import proxy.metrics.ProxyMetrics;
+import proxy.metrics.Stage;
 import proxy.protocol.ProtocolParams;
+import proxy.timer.Timeout;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server side of a connection. Connection attempts to the candidate addresses are raced as in
+ * RFC 8305: a new attempt starts every proxy.connect.attemptDelay or as soon as the previous one
+ * fails or exceeds proxy.connect.attemptTimeout, and the first attempt to connect becomes the server
+ * channel while the others are closed. A non-positive attempt delay tries the addresses one at a time.
+ * Addresses that failed, timed out or were overtaken by a later attempt are tried last by the next
+ * connections, see FailedAddresses. The resume callback handed to its DeficitCounter in the
+ * constructor only runs from the reactor's timing wheel, after construction.
+ */
+public final class ServerHandler implements Handler {
+    private class ConnectAttempt implements Handler {
+        private final InetAddress address;
+        private final SocketChannel channel;
+        private final EgressAddress egress;
+        private final SelectionKey key;
+        private final Timeout timeout;
+
+        private ConnectAttempt(InetAddress address) throws IOException {
+            this.address = address;
+            channel = SocketChannel.open();
+            EgressAddress bound = null;
+            try {
+                channel.configureBlocking(false);
+                bound = EgressPool.getInstance().bind(address, channel::bind);
+                channel.connect(new InetSocketAddress(address, serverPort));
+                key = channel.register(reactor.getSelector(), SelectionKey.OP_CONNECT);
+            }
+            catch (IOException e) {
+                EgressPool.getInstance().release(bound);
+                channel.close();
+                throw e;
+            }
+            egress = bound;
+            reactor.putNewChannel(channel, this);
+            timeout = reactor.getTimingWheel().schedule(() -> fail(true), ProxyConfig.CONNECT_ATTEMPT_TIMEOUT_MILLIS,
+                    reactor.getLoopTime());
+            log.debug("Try to connect to server : " + address.getHostAddress() + ":" + serverPort);
+        }
+
+        @Override
+        public void handleKey() {
+            if (!key.isConnectable()) {
+                return;
+            }
+            try {
+                channel.finishConnect();
+            }
+            catch (IOException e) {
+                log.info(address.getHostAddress() + ":" + serverPort + " : " + e);
+                fail(false);
+                return;
+            }
+            attemptConnected(this);
+        }
+
+        private void fail(boolean timedOut) {
+            if (timedOut) {
+                log.info(address.getHostAddress() + ":" + serverPort + " : connect timeout");
+            }
+            attempts.remove(this);
+            close();
+            attemptFailed(address, timedOut);
+        }
+
+        private void close() {
+            timeout.cancel();
+            key.cancel();
+            reactor.removeChannelFromMap(channel);
+            EgressPool.getInstance().release(egress);
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+            }
+        }
+    }
 
-public class ServerHandler implements Handler {
     private static final Logger log = LoggerFactory.getLogger(ServerHandler.class);
-    private static final int BUFFER_SIZE = 4096;
-    private final SocketChannel serverChannel;
-    private final SelectionKey serverKey;
+    private SocketChannel serverChannel;
+    private SelectionKey serverKey;
+    private EgressAddress serverEgress;
     private final ClientHandler clientHandler;
-    private final ByteBuffer inputBuffer;
-    private final ByteBuffer outputBuffer;
+    private final Reactor reactor;
+    private final BufferChain inputChain = new BufferChain(ProxyConfig.RELAY_SEGMENT_SIZE,
+            ProxyConfig.RELAY_MAX_SEGMENTS_PER_IO);
+    private final BufferChain outputChain = new BufferChain(ProxyConfig.RELAY_SEGMENT_SIZE,
+            ProxyConfig.RELAY_MAX_SEGMENTS_PER_IO);
     private boolean isClosed = false;
+    private boolean buffersReleased = false;
+    private long firstByteWaitStart;
+    private boolean firstByteReceived;
+    private boolean requestSent;
+    private List<InetAddress> addresses;
+    private final int serverPort;
+    private final List<ConnectAttempt> attempts = new ArrayList<>(2);
+    private int nextAddress;
+    private Timeout attemptTimer;
+    private boolean lastAttemptTimedOut;
+    private final DeficitCounter downstreamDeficit;
 
-    public ServerHandler(ClientHandler clientHandler, InetAddress serverAddress, int serverPort) throws IOException {
+    public ServerHandler(ClientHandler clientHandler, List<InetAddress> addresses, int serverPort) {
         this.clientHandler = clientHandler;
-        serverChannel = SocketChannel.open();
-        serverChannel.configureBlocking(false);
-        serverChannel.connect(new InetSocketAddress(serverAddress, serverPort));
-        log.info("Try to connect to server : " + serverAddress.getHostAddress() + ":" + serverPort);
-        Proxy.getInstance().putNewChannel(serverChannel, this);
-        serverKey = serverChannel.register(clientHandler.getClientKey().selector(), SelectionKey.OP_CONNECT);
-        inputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        outputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.serverPort = serverPort;
+        reactor = clientHandler.getReactor();
+        downstreamDeficit = new DeficitCounter(reactor, this::resumeRead);
+        this.addresses = FailedAddresses.getInstance().sort(addresses, reactor.getLoopTime());
     }
 
-    @Override
-    public void handleKey() {
-        if (serverKey.isConnectable()) {
-            connect();
+    public void connect() {
+        startNextAttempt();
+    }
+
+    /**
+     * Connects to addresses found after the handler was created, when a parent proxy failed.
+     */
+    public void connect(List<InetAddress> addresses) {
+        this.addresses = FailedAddresses.getInstance().sort(addresses, reactor.getLoopTime());
+        nextAddress = 0;
+        startNextAttempt();
+    }
+
+    /**
+     * Starts the attempt to the next address that doesn't fail right away, and schedules the one after.
+     */
+    private void startNextAttempt() {
+        attemptTimer = null;
+        while (nextAddress < addresses.size()) {
+            InetAddress address = addresses.get(nextAddress++);
+            try {
+                attempts.add(new ConnectAttempt(address));
+                if (nextAddress < addresses.size() && ProxyConfig.CONNECT_ATTEMPT_DELAY_MILLIS > 0) {
+                    attemptTimer = reactor.getTimingWheel().schedule(this::startNextAttempt,
+                            ProxyConfig.CONNECT_ATTEMPT_DELAY_MILLIS, reactor.getLoopTime());
+                }
+                return;
+            }
+            catch (IOException e) {
+                log.info(address.getHostAddress() + ":" + serverPort + " : " + e);
+                recordFailure(address, false);
+            }
         }
-        else if (serverKey.isWritable()) {
-            write();
+        if (attempts.isEmpty()) {
+            connectFailed();
         }
-        else if (serverKey.isReadable()) {
-            read();
+    }
+
+    private void recordFailure(InetAddress address, boolean timedOut) {
+        lastAttemptTimedOut = timedOut;
+        ProxyMetrics.getInstance().connectAttemptFailure();
+        FailedAddresses.getInstance().recordFailure(address, reactor.getLoopTime());
+    }
+
+    private void attemptFailed(InetAddress address, boolean timedOut) {
+        recordFailure(address, timedOut);
+        if (nextAddress < addresses.size()) {
+            if (attemptTimer != null) {
+                attemptTimer.cancel();
+            }
+            startNextAttempt();
+        }
+        else if (attempts.isEmpty()) {
+            connectFailed();
         }
     }
 
-    private void connect() {
-        try {
-            serverChannel.finishConnect();
-            serverKey.interestOps(SelectionKey.OP_READ);
-            log.info("Connect finished");
-            clientHandler.setResponseCode(ProtocolParams.CONNECTION_ESTABLISHED);
-            clientHandler.readyToWriteConnecting();
+    private void attemptConnected(ConnectAttempt winner) {
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+            attemptTimer = null;
         }
-        catch (IOException e) {
-            log.error(e.toString());
-            clientHandler.setResponseCode(ProtocolParams.UNAVAILABLE_HOST);
-            clientHandler.readyToWriteConnecting();
+        boolean overtaken = true;
+        for (ConnectAttempt attempt : attempts) {
+            if (attempt == winner) {
+                overtaken = false;
+                continue;
+            }
+            if (overtaken) {
+                FailedAddresses.getInstance().recordFailure(attempt.address, reactor.getLoopTime());
+            }
+            attempt.close();
+        }
+        attempts.clear();
+        winner.timeout.cancel();
+        FailedAddresses.getInstance().recordSuccess(winner.address);
+        serverChannel = winner.channel;
+        serverKey = winner.key;
+        serverEgress = winner.egress;
+        reactor.putNewChannel(serverChannel, this);
+        firstByteWaitStart = System.nanoTime();
+        serverKey.interestOps(inputChain.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        log.debug("Connect finished : " + winner.address.getHostAddress());
+        clientHandler.setServerAddress(winner.address);
+        clientHandler.setResponseCode(ProtocolParams.CONNECTION_ESTABLISHED);
+        clientHandler.readyToWriteConnecting();
+    }
+
+    /**
+     * Takes over a connection accepted for a BIND request or opened through a parent proxy instead of
+     * connecting. The egress address the channel is bound to, if any, is released when it closes.
+     */
+    public void attach(SocketChannel channel, EgressAddress egress) throws IOException {
+        serverChannel = channel;
+        serverEgress = egress;
+        channel.configureBlocking(false);
+        serverKey = channel.register(reactor.getSelector(), inputChain.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        reactor.putNewChannel(serverChannel, this);
+        firstByteWaitStart = System.nanoTime();
+    }
+
+    private void connectFailed() {
+        log.error(clientHandler.getServerName() + " : all " + addresses.size() + " addresses failed");
+        ProxyMetrics.getInstance().connectFailure();
+        clientHandler.setResponseCode(lastAttemptTimedOut ? ProtocolParams.TTL_EXPIRED : ProtocolParams.UNAVAILABLE_HOST);
+        clientHandler.readyToWriteConnecting();
+    }
+
+    @Override
+    public void handleKey() {
+        if (serverKey.isReadable()) {
+            read();
+        }
+        if (serverKey.isValid() && serverKey.isWritable()) {
+            write();
         }
     }
 
     private void write() {
         try {
-            inputBuffer.flip();
-            int len = serverChannel.write(inputBuffer);
-            if (len < 0) {
-                close();
-                return;
+            long len = inputChain.writeTo(serverChannel);
+            clientHandler.markActivity();
+            if (!firstByteReceived && !requestSent && len > 0) {
+                requestSent = true;
+                firstByteWaitStart = System.nanoTime();
             }
-            log.info(clientHandler.getServerName() + " : " + len + " bytes sent to server");
-            if (inputBuffer.remaining() == 0) {
-                inputBuffer.clear();
-                serverKey.interestOps(SelectionKey.OP_READ);
+            if (log.isDebugEnabled()) {
+                log.debug(clientHandler.getServerName() + " : " + len + " bytes sent to server");
             }
-            else {
-                inputBuffer.compact();
+            if (inputChain.isEmpty()) {
+                Handler.removeInterest(serverKey, SelectionKey.OP_WRITE);
+            }
+            if (inputChain.readableBytes() <= ProxyConfig.RELAY_LOW_WATERMARK && !clientHandler.isClosed()
+                    && !clientHandler.isReadPaused(true)) {
+                Handler.addInterest(clientHandler.getClientKey(), SelectionKey.OP_READ);
             }
         }
         catch (IOException e) {
@@ -87,14 +278,31 @@ public class ServerHandler implements Handler {
 
     private void read() {
         try {
-            int len = serverChannel.read(outputBuffer);
+            long allowance = Math.min(clientHandler.readAllowance(false), downstreamDeficit.allowance());
+            if (allowance <= 0) {
+                return;
+            }
+            long len = outputChain.readFrom(serverChannel, allowance);
             if (len < 0) {
                 close();
                 return;
             }
-            log.info(clientHandler.getServerName() + " : " + len + " bytes received from server");
-            clientHandler.getClientKey().interestOps(clientHandler.getClientKey().interestOps() |
-                    SelectionKey.OP_WRITE);
+            downstreamDeficit.used(len, allowance);
+            clientHandler.markActivity();
+            clientHandler.bytesRelayed(len);
+            if (!firstByteReceived && len > 0) {
+                firstByteReceived = true;
+                ProxyMetrics.getInstance().stageFinished(Stage.TTFB, System.nanoTime() - firstByteWaitStart);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(clientHandler.getServerName() + " : " + len + " bytes received from server");
+            }
+            if (len > 0) {
+                Handler.addInterest(clientHandler.getClientKey(), SelectionKey.OP_WRITE);
+            }
+            if (outputChain.readableBytes() >= ProxyConfig.RELAY_HIGH_WATERMARK) {
+                Handler.removeInterest(serverKey, SelectionKey.OP_READ);
+            }
         }
         catch (IOException e) {
             log.error(e.toString());
@@ -102,12 +310,28 @@ public class ServerHandler implements Handler {
         }
     }
 
-    public ByteBuffer getInputBuffer() {
-        return inputBuffer;
+    /**
+     * A deferred relay round: pushes what the last round read to the client, then reads again.
+     */
+    private void resumeRead() {
+        clientHandler.flushToClient();
+        if (!isClosed && serverKey.isValid() && (serverKey.interestOps() & SelectionKey.OP_READ) != 0) {
+            read();
+        }
     }
 
-    public ByteBuffer getOutputBuffer() {
-        return outputBuffer;
+    void flushToServer() {
+        if (!isClosed && serverKey.isValid() && (serverKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            write();
+        }
+    }
+
+    public BufferChain getInputChain() {
+        return inputChain;
+    }
+
+    public BufferChain getOutputChain() {
+        return outputChain;
     }
 
     public SelectionKey getServerKey() {
@@ -115,28 +339,58 @@ public class ServerHandler implements Handler {
     }
 
     public void close() {
-        serverKey.cancel();
-        Proxy.getInstance().removeChannelFromMap(serverChannel);
-        try {
-            if (serverChannel != null) {
+        close(true);
+    }
+
+    /**
+     * Closes the server side; with closeClient the client follows once everything was written to it.
+     */
+    public void close(boolean closeClient) {
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+            attemptTimer = null;
+        }
+        for (ConnectAttempt attempt : attempts) {
+            attempt.close();
+        }
+        attempts.clear();
+        if (serverChannel != null) {
+            if (serverKey != null) {
+                serverKey.cancel();
+            }
+            reactor.removeChannelFromMap(serverChannel);
+            try {
                 serverChannel.shutdownInput();
                 serverChannel.shutdownOutput();
             }
-        } catch (IOException e) {
-            log.error(e.toString());
-        }
-        try {
-            if (serverChannel != null) serverChannel.close();
-        }
-        catch (IOException e) {
-            log.error(e.toString());
+            catch (IOException e) {
+                log.error(e.toString());
+            }
+            try {
+                serverChannel.close();
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+            }
+            EgressPool.getInstance().release(serverEgress);
+            serverEgress = null;
         }
         isClosed = true;
-        log.info(clientHandler.getServerName() + " : " + "server closed");
+        log.debug(clientHandler.getServerName() + " : " + "server closed");
 
-        if (outputBuffer.remaining() == 0 && !clientHandler.isClosed()) {
+        if (closeClient && outputChain.isEmpty() && !clientHandler.isClosed()) {
             clientHandler.close();
         }
+        releaseBuffers();
+    }
+
+    void releaseBuffers() {
+        if (buffersReleased || !isClosed || !clientHandler.isClosed()) {
+            return;
+        }
+        buffersReleased = true;
+        inputChain.release();
+        outputChain.release();
     }
 
     public boolean isClosed() {
@@ -0,0 +1,154 @@
+package proxy.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.Reactor;
+import proxy.config.ProxyConfig;
+import proxy.metrics.ProxyMetrics;
+import proxy.protocol.ProtocolParams;
+import proxy.timer.Timeout;
+import proxy.upstream.ParentProxy;
+import proxy.upstream.UpstreamRules;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connections to the parent proxies of the upstream rules, kept per reactor so that they stay on
+ * the thread of the clients using them. Every reactor holds its share of proxy.upstream.poolSize
+ * connected and authenticated connections to each parent, so a client CONNECT only waits for the
+ * parent's CONNECT reply. Connections are replaced as soon as they are taken, dropped by the parent
+ * or idle for proxy.upstream.maxIdle; after a failed connection the refill waits
+ * proxy.upstream.retryDelay. A request that finds no idle connection opens its own.
+ */
+public class TunnelPool {
+    private static class Slot {
+        private final ParentProxy parent;
+        private final ArrayDeque<ParentConnection> idle = new ArrayDeque<>();
+        private int opening;
+        private long retryAt;
+        private Timeout retry;
+
+        private Slot(ParentProxy parent) {
+            this.parent = parent;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(TunnelPool.class);
+    private final Reactor reactor;
+    private final Map<ParentProxy, Slot> slots = new HashMap<>();
+    private final int size;
+
+    public TunnelPool(Reactor reactor) {
+        this.reactor = reactor;
+        int reactors = Math.max(1, ProxyConfig.REACTOR_THREADS);
+        size = (ProxyConfig.UPSTREAM_POOL_SIZE + reactors - 1) / reactors;
+        for (ParentProxy parent : UpstreamRules.getInstance().getParents()) {
+            slots.put(parent, new Slot(parent));
+        }
+    }
+
+    Reactor getReactor() {
+        return reactor;
+    }
+
+    public void start() {
+        for (Slot slot : slots.values()) {
+            fill(slot);
+        }
+    }
+
+    TunnelRequest open(ClientHandler clientHandler, ParentProxy parent, String host, InetAddress address, int port) {
+        TunnelRequest request = new TunnelRequest(clientHandler, parent, host, address, port);
+        Slot slot = slots.get(parent);
+        ParentConnection connection = slot.idle.poll();
+        ProxyMetrics.getInstance().upstreamTunnel(connection != null);
+        if (connection != null) {
+            connection.take(request);
+            fill(slot);
+        }
+        else {
+            connectFor(request);
+        }
+        return request;
+    }
+
+    private void connectFor(TunnelRequest request) {
+        try {
+            new ParentConnection(this, request.parent, request);
+        }
+        catch (IOException e) {
+            log.info(request.parent + " : " + e);
+            finish(request, ProtocolParams.GENERAL_FAILURE);
+        }
+    }
+
+    void requestFailed(TunnelRequest request, byte code, boolean retryable) {
+        if (request.done) {
+            return;
+        }
+        if (retryable && !request.retried) {
+            log.debug("Pooled connection to " + request.parent + " was closed, retry on a new one");
+            request.retried = true;
+            connectFor(request);
+            return;
+        }
+        finish(request, code);
+    }
+
+    private void finish(TunnelRequest request, byte code) {
+        request.done = true;
+        request.connection = null;
+        ProxyMetrics.getInstance().upstreamFailure();
+        request.clientHandler.tunnelFailed(request, code);
+    }
+
+    void ready(ParentConnection connection) {
+        Slot slot = slots.get(connection.getParent());
+        slot.opening--;
+        slot.idle.add(connection);
+    }
+
+    /**
+     * A pooled connection that failed while connecting or was closed while idle.
+     */
+    void lost(ParentConnection connection, boolean failed) {
+        Slot slot = slots.get(connection.getParent());
+        if (!slot.idle.remove(connection)) {
+            slot.opening--;
+        }
+        if (failed) {
+            slot.retryAt = reactor.getLoopTime() + ProxyConfig.UPSTREAM_RETRY_MILLIS;
+        }
+        fill(slot);
+    }
+
+    private void fill(Slot slot) {
+        if (slot.retry != null) {
+            return;
+        }
+        long now = reactor.getLoopTime();
+        if (slot.retryAt > now) {
+            slot.retry = reactor.getTimingWheel().schedule(() -> {
+                slot.retry = null;
+                fill(slot);
+            }, slot.retryAt - now, now);
+            return;
+        }
+        while (slot.idle.size() + slot.opening < size) {
+            try {
+                new ParentConnection(this, slot.parent, null);
+                slot.opening++;
+            }
+            catch (IOException e) {
+                log.info(slot.parent + " : " + e);
+                slot.retryAt = now + ProxyConfig.UPSTREAM_RETRY_MILLIS;
+                fill(slot);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package proxy.handlers;
+
+import proxy.upstream.ParentProxy;
+
+import java.net.InetAddress;
+
+/**
+ * A CONNECT that goes through a parent proxy. The request moves to a new connection once when a
+ * pooled one turns out to be closed by the parent before it replied. A request the parent refused
+ * with a reply isn't tried anywhere else.
+ */
+class TunnelRequest {
+    final ClientHandler clientHandler;
+    final ParentProxy parent;
+    final String host;
+    final InetAddress address;
+    final int port;
+    ParentConnection connection;
+    boolean retried;
+    boolean refused;
+    boolean done;
+
+    TunnelRequest(ClientHandler clientHandler, ParentProxy parent, String host, InetAddress address, int port) {
+        this.clientHandler = clientHandler;
+        this.parent = parent;
+        this.host = host;
+        this.address = address;
+        this.port = port;
+    }
+
+    void cancel() {
+        done = true;
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+}
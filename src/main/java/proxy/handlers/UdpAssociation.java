@@ -0,0 +1,300 @@
+package proxy.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.Reactor;
+import proxy.buffers.BufferPool;
+import proxy.config.ProxyConfig;
+import proxy.metrics.ProxyMetrics;
+import proxy.protocol.UdpHeader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Relay of one UDP ASSOCIATE (RFC 1928 section 7). Its datagram channel is registered on the reactor
+ * of the controlling connection and closed together with it. Datagrams are received into one pooled
+ * buffer behind room for the largest header, so headers are stripped and prepended in place and the
+ * payload is sent from where it was received. Datagrams from servers are only relayed when the client
+ * has sent to that address before. The association puts itself in the reactor's channel map when
+ * it is constructed, on the reactor thread that dispatches to it.
+ */
+public final class UdpAssociation implements Handler {
+    private record PendingDatagram(ByteBuffer payload, int port) {}
+
+    private static final Logger log = LoggerFactory.getLogger(UdpAssociation.class);
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_DATAGRAMS_PER_EVENT = 64;
+    private final ClientHandler clientHandler;
+    private final Reactor reactor;
+    private final DatagramChannel channel;
+    private final SelectionKey key;
+    private final InetSocketAddress localAddress;
+    private final InetAddress clientAddress;
+    private InetSocketAddress clientUdpAddress;
+    private final UdpHeader header = new UdpHeader();
+    private final UdpHeader lastHeader = new UdpHeader();
+    private InetSocketAddress lastDestination;
+    private final Map<InetSocketAddress, Boolean> destinations = boundedMap();
+    private final Map<String, InetAddress> resolvedHosts = boundedMap();
+    private final Map<String, List<PendingDatagram>> pendingDatagrams = new HashMap<>();
+    private int pendingCount;
+    private ByteBuffer buffer;
+    private long bytesUp;
+    private long bytesDown;
+    private boolean isClosed;
+
+    /**
+     * Opens the relay socket on the address the client connected to. A non-zero requested port fixes
+     * the client's UDP address; otherwise the first datagram from the client's host does.
+     */
+    public UdpAssociation(ClientHandler clientHandler, InetAddress requestedAddress, int requestedPort)
+            throws IOException {
+        this.clientHandler = clientHandler;
+        this.reactor = clientHandler.getReactor();
+        clientAddress = ((InetSocketAddress) clientHandler.getClientChannel().getRemoteAddress()).getAddress();
+        if (requestedPort != 0) {
+            clientUdpAddress = new InetSocketAddress(requestedAddress != null ? requestedAddress : clientAddress,
+                    requestedPort);
+        }
+        InetAddress bindAddress = ((InetSocketAddress) clientHandler.getClientChannel().getLocalAddress()).getAddress();
+        channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(bindAddress, 0));
+            channel.configureBlocking(false);
+            localAddress = (InetSocketAddress) channel.getLocalAddress();
+            buffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+            key = channel.register(reactor.getSelector(), SelectionKey.OP_READ);
+        }
+        catch (IOException e) {
+            BufferPool.getInstance().release(buffer);
+            channel.close();
+            throw e;
+        }
+        reactor.putNewChannel(channel, this);
+        log.debug("UDP association opened on " + localAddress + " for " + clientAddress);
+    }
+
+    private static <K, V> Map<K, V> boundedMap() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > ProxyConfig.UDP_MAX_DESTINATIONS;
+            }
+        };
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    @Override
+    public void handleKey() {
+        if (!key.isReadable()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < MAX_DATAGRAMS_PER_EVENT && !isClosed; ++i) {
+                buffer.clear().position(UdpHeader.MAX_LENGTH);
+                InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+                if (source == null) {
+                    return;
+                }
+                buffer.flip().position(UdpHeader.MAX_LENGTH);
+                clientHandler.markActivity();
+                if (isFromClient(source)) {
+                    relayFromClient();
+                }
+                else if (destinations.get(source) != null) {
+                    relayToClient(source);
+                }
+                else {
+                    log.debug("Datagram from unknown source " + source + " dropped");
+                    ProxyMetrics.getInstance().udpDatagramDropped();
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            clientHandler.close();
+        }
+    }
+
+    private boolean isFromClient(InetSocketAddress source) {
+        if (clientUdpAddress != null) {
+            return clientUdpAddress.equals(source);
+        }
+        if (!clientAddress.equals(source.getAddress())) {
+            return false;
+        }
+        clientUdpAddress = source;
+        return true;
+    }
+
+    private void relayFromClient() throws IOException {
+        if (!header.parse(buffer)) {
+            log.debug("Malformed or fragmented datagram from client dropped");
+            ProxyMetrics.getInstance().udpDatagramDropped();
+            return;
+        }
+        InetSocketAddress destination;
+        if (lastDestination != null && header.sameDestination(lastHeader)) {
+            destination = lastDestination;
+        }
+        else if (header.isHost()) {
+            String host = header.getHost();
+            InetAddress address = resolvedHosts.get(host);
+            if (address == null) {
+                queue(host, header.getPort());
+                return;
+            }
+            destination = new InetSocketAddress(address, header.getPort());
+        }
+        else {
+            destination = new InetSocketAddress(header.getAddress(), header.getPort());
+        }
+        lastHeader.copyFrom(header);
+        lastDestination = destination;
+        send(buffer, destination);
+    }
+
+    /**
+     * Keeps a copy of the payload until the host is resolved; the first datagram for a host starts the lookup.
+     */
+    private void queue(String host, int port) throws IOException {
+        if (pendingCount >= ProxyConfig.UDP_MAX_PENDING_DATAGRAMS) {
+            log.debug("Too many datagrams waiting for DNS, datagram for " + host + " dropped");
+            ProxyMetrics.getInstance().udpDatagramDropped();
+            return;
+        }
+        ByteBuffer payload = BufferPool.getInstance().acquire(Math.max(buffer.remaining(), 1));
+        payload.put(buffer).flip();
+        List<PendingDatagram> pending = pendingDatagrams.get(host);
+        boolean lookup = pending == null;
+        if (lookup) {
+            pending = new ArrayList<>();
+            pendingDatagrams.put(host, pending);
+        }
+        pending.add(new PendingDatagram(payload, port));
+        pendingCount++;
+        if (lookup) {
+            reactor.getDnsHandler().resolve(host, addresses -> resolved(host, addresses));
+        }
+    }
+
+    private void resolved(String host, List<InetAddress> addresses) {
+        List<PendingDatagram> pending = pendingDatagrams.remove(host);
+        if (pending == null) {
+            return;
+        }
+        pendingCount -= pending.size();
+        InetAddress address = isClosed ? null : selectAddress(addresses);
+        if (address != null) {
+            resolvedHosts.put(host, address);
+        }
+        else if (!isClosed) {
+            log.info("DNS server can't find domain " + host + ", " + pending.size() + " datagrams dropped");
+        }
+        for (PendingDatagram datagram : pending) {
+            if (address != null) {
+                send(datagram.payload(), new InetSocketAddress(address, datagram.port()));
+            }
+            else {
+                ProxyMetrics.getInstance().udpDatagramDropped();
+            }
+            BufferPool.getInstance().release(datagram.payload());
+        }
+    }
+
+    /**
+     * The relay socket is bound to one address, so only destinations of the same family are reachable.
+     */
+    private InetAddress selectAddress(List<InetAddress> addresses) {
+        for (InetAddress address : addresses) {
+            if (address.getClass() == localAddress.getAddress().getClass()) {
+                return address;
+            }
+        }
+        return addresses.isEmpty() ? null : addresses.get(0);
+    }
+
+    private void send(ByteBuffer payload, InetSocketAddress destination) {
+        int len = payload.remaining();
+        if (!transmit(payload, destination)) {
+            return;
+        }
+        destinations.put(destination, Boolean.TRUE);
+        bytesUp += len;
+        ProxyMetrics.getInstance().udpDatagramFromClient();
+        ProxyMetrics.getInstance().bytesFromClient(len);
+    }
+
+    private void relayToClient(InetSocketAddress source) {
+        int len = buffer.remaining();
+        UdpHeader.writeBefore(buffer, UdpHeader.MAX_LENGTH, source);
+        if (!transmit(buffer, clientUdpAddress)) {
+            return;
+        }
+        bytesDown += len;
+        ProxyMetrics.getInstance().udpDatagramToClient();
+        ProxyMetrics.getInstance().bytesToClient(len);
+    }
+
+    /**
+     * A datagram that doesn't fit into the socket send buffer is dropped like on any congested hop.
+     */
+    private boolean transmit(ByteBuffer datagram, InetSocketAddress target) {
+        try {
+            if (channel.send(datagram, target) > 0) {
+                return true;
+            }
+        }
+        catch (IOException e) {
+            log.info("Datagram to " + target + " wasn't sent : " + e);
+        }
+        ProxyMetrics.getInstance().udpDatagramDropped();
+        return false;
+    }
+
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        key.cancel();
+        reactor.removeChannelFromMap(channel);
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        BufferPool.getInstance().release(buffer);
+        buffer = null;
+        for (List<PendingDatagram> pending : pendingDatagrams.values()) {
+            for (PendingDatagram datagram : pending) {
+                BufferPool.getInstance().release(datagram.payload());
+            }
+        }
+        pendingDatagrams.clear();
+        pendingCount = 0;
+        log.debug("UDP association on " + localAddress + " closed");
+    }
+}
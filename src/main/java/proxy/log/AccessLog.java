@@ -0,0 +1,234 @@
+package proxy.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Per-connection access log. Reactors only fill a slot of a lock-free ring; formatting, file I/O and
+ * rotation happen on a background writer thread. Records are written one per line as key=value pairs.
+ * When the ring is full records are dropped and counted rather than stalling a reactor.
+ */
+public final class AccessLog {
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final AccessLog instance = new AccessLog(ProxyConfig.ACCESS_LOG_FILE,
+            ProxyConfig.ACCESS_LOG_RING_SIZE, ProxyConfig.ACCESS_LOG_MAX_FILE_BYTES, ProxyConfig.ACCESS_LOG_MAX_FILES);
+
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final AccessLogRing ring;
+    private final File file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final StringBuilder line = new StringBuilder(256);
+    private Thread writerThread;
+    private volatile boolean running;
+    private Writer writer;
+    private long fileBytes;
+
+    private AccessLog(String fileName, int ringSize, long maxFileBytes, int maxFiles) {
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        if (fileName == null || fileName.isEmpty()) {
+            ring = null;
+            file = null;
+            return;
+        }
+        ring = new AccessLogRing(ringSize);
+        file = new File(fileName);
+        running = true;
+        writerThread = new Thread(this::runWriter, "access-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "access-log-shutdown"));
+    }
+
+    public static AccessLog getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    public long nextConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public void logOpen(long connectionId, String client, long time) {
+        AccessRecord record = claim();
+        if (record == null) {
+            return;
+        }
+        record.event = AccessRecord.Event.OPEN;
+        record.time = time;
+        record.connectionId = connectionId;
+        record.client = client;
+        ring.publish(record);
+    }
+
+    public void logClose(long connectionId, String client, String destination, int port, String address,
+                         int replyCode, String state, long bytesUp, long bytesDown, long durationMillis, long time) {
+        AccessRecord record = claim();
+        if (record == null) {
+            return;
+        }
+        record.event = AccessRecord.Event.CLOSE;
+        record.time = time;
+        record.connectionId = connectionId;
+        record.client = client;
+        record.destination = destination;
+        record.port = port;
+        record.address = address;
+        record.replyCode = replyCode;
+        record.state = state;
+        record.bytesUp = bytesUp;
+        record.bytesDown = bytesDown;
+        record.durationMillis = durationMillis;
+        ring.publish(record);
+    }
+
+    private AccessRecord claim() {
+        if (ring == null) {
+            return null;
+        }
+        AccessRecord record = ring.claim();
+        if (record == null) {
+            droppedRecords.incrementAndGet();
+        }
+        return record;
+    }
+
+    private void runWriter() {
+        long reportedDrops = 0;
+        try {
+            openFile();
+            while (running) {
+                if (drain() == 0) {
+                    writer.flush();
+                    long drops = droppedRecords.get();
+                    if (drops != reportedDrops) {
+                        log.warn((drops - reportedDrops) + " access log records dropped, ring is full");
+                        reportedDrops = drops;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            drain();
+            writer.flush();
+        }
+        catch (IOException e) {
+            log.error("Access log writer stopped : " + e);
+        }
+        finally {
+            closeFile();
+        }
+    }
+
+    private int drain() throws IOException {
+        int drained = 0;
+        AccessRecord record;
+        while ((record = ring.poll()) != null) {
+            format(record);
+            ring.release(record);
+            write();
+            ++drained;
+        }
+        return drained;
+    }
+
+    private void format(AccessRecord record) {
+        line.setLength(0);
+        line.append("time=").append(Instant.ofEpochMilli(record.time))
+                .append(" event=").append(record.event == AccessRecord.Event.OPEN ? "open" : "close")
+                .append(" conn=").append(record.connectionId)
+                .append(" client=").append(record.client);
+        if (record.event == AccessRecord.Event.CLOSE) {
+            line.append(" dst=").append(record.destination == null ? "-" : record.destination)
+                    .append(':').append(record.port)
+                    .append(" addr=").append(record.address == null ? "-" : record.address)
+                    .append(" reply=");
+            if (record.replyCode < 0) {
+                line.append('-');
+            }
+            else {
+                line.append(record.replyCode);
+            }
+            line.append(" state=").append(record.state)
+                    .append(" up=").append(record.bytesUp)
+                    .append(" down=").append(record.bytesDown)
+                    .append(" duration_ms=").append(record.durationMillis);
+        }
+        line.append('\n');
+    }
+
+    private void write() throws IOException {
+        if (fileBytes + line.length() > maxFileBytes && fileBytes > 0) {
+            rotate();
+        }
+        writer.append(line);
+        fileBytes += line.length();
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        for (int i = maxFiles - 1; i > 0; --i) {
+            File source = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+            File target = new File(file.getPath() + "." + i);
+            if (source.exists() && (!target.exists() || target.delete()) && !source.renameTo(target)) {
+                log.error("Can't rotate access log " + source + " to " + target);
+            }
+        }
+        if (maxFiles == 1 && !file.delete()) {
+            log.error("Can't truncate access log " + file);
+        }
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.US_ASCII),
+                64 * 1024);
+        fileBytes = file.length();
+    }
+
+    private void closeFile() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        writer = null;
+    }
+
+    private void stop() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(2));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package proxy.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring with many producers (the reactors) and one consumer (the writer thread).
+ * Every slot carries a sequence number: a producer may claim the slot when the sequence equals its
+ * position, the consumer may read it when the sequence is one ahead. A full ring rejects the claim
+ * instead of blocking the producer.
+ */
+final class AccessLogRing {
+    private final AccessRecord[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    AccessLogRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two : " + capacity);
+        }
+        records = new AccessRecord[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; ++i) {
+            records[i] = new AccessRecord();
+            sequences.set(i, i);
+        }
+    }
+
+    AccessRecord claim() {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    AccessRecord record = records[index];
+                    record.sequence = position;
+                    return record;
+                }
+            }
+            else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    void publish(AccessRecord record) {
+        sequences.lazySet((int) (record.sequence & mask), record.sequence + 1);
+    }
+
+    AccessRecord poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        return records[index];
+    }
+
+    void release(AccessRecord record) {
+        record.clear();
+        sequences.lazySet((int) (head & mask), head + records.length);
+        ++head;
+    }
+}
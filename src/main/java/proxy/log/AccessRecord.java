@@ -0,0 +1,33 @@
+package proxy.log;
+
+/**
+ * One slot of the access log ring. Slots are allocated once and reused, producers fill them in place.
+ */
+public final class AccessRecord {
+    public enum Event {
+        OPEN,
+        CLOSE
+    }
+
+    long sequence;
+    Event event;
+    long time;
+    long connectionId;
+    String client;
+    String destination;
+    int port;
+    String address;
+    int replyCode;
+    String state;
+    long bytesUp;
+    long bytesDown;
+    long durationMillis;
+
+    void clear() {
+        event = null;
+        client = null;
+        destination = null;
+        address = null;
+        state = null;
+    }
+}
@@ -0,0 +1,101 @@
+package proxy.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.handlers.Handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One scrape: reads the request head, answers with the metrics text and closes.
+ */
+class MetricsConnection implements Handler {
+    private static final Logger log = LoggerFactory.getLogger(MetricsConnection.class);
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+    private ByteBuffer response;
+
+    MetricsConnection(SocketChannel channel, Selector selector) throws IOException {
+        this.channel = channel;
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void handleKey() {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(request) < 0) {
+            close();
+            return;
+        }
+        String head = new String(request.array(), 0, request.position(), StandardCharsets.US_ASCII);
+        if (!head.contains("\r\n\r\n") && !head.contains("\n\n")) {
+            if (!request.hasRemaining()) {
+                respond("413 Payload Too Large", "");
+            }
+            return;
+        }
+        String[] requestLine = head.substring(0, head.indexOf('\n')).trim().split(" ");
+        if (requestLine.length < 2 || !requestLine[0].equals("GET")) {
+            respond("405 Method Not Allowed", "");
+        }
+        else if (!requestLine[1].equals("/metrics") && !requestLine[1].startsWith("/metrics?")) {
+            respond("404 Not Found", "");
+        }
+        else {
+            StringBuilder body = new StringBuilder(4096);
+            ProxyMetrics.getInstance().writePrometheus(body);
+            respond("200 OK", body.toString());
+        }
+    }
+
+    private void respond(String status, String body) throws IOException {
+        byte[] content = body.getBytes(StandardCharsets.US_ASCII);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        response = ByteBuffer.allocate(headBytes.length + content.length);
+        response.put(headBytes).put(content).flip();
+        key.interestOps(SelectionKey.OP_WRITE);
+        write();
+    }
+
+    private void write() throws IOException {
+        channel.write(response);
+        if (!response.hasRemaining()) {
+            close();
+        }
+    }
+
+    private void close() {
+        key.cancel();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
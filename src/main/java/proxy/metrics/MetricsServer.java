@@ -0,0 +1,58 @@
+package proxy.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.handlers.Handler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Minimal HTTP listener for Prometheus scrapes. It runs on the boss selector next to the proxy's
+ * accept channel: handlers are attached to their keys, and scrapes never touch the reactors. The
+ * server attaches itself while it is constructed, before the boss loop selects.
+ */
+public final class MetricsServer implements Handler {
+    private static final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    public MetricsServer(Selector selector, String host, int port) throws IOException {
+        this.selector = selector;
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(host, port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+        }
+        catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        log.info("Metrics endpoint started. Host : " + host + ". Port : " + port);
+    }
+
+    @Override
+    public void handleKey() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    new MetricsConnection(channel, selector);
+                }
+                catch (IOException e) {
+                    log.error(e.toString());
+                    channel.close();
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package proxy.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.ClientState;
+import proxy.admission.AdmissionControl;
+import proxy.admission.Rejection;
+import proxy.buffers.BufferPool;
+import proxy.dns.DnsCache;
+import proxy.egress.EgressAddress;
+import proxy.egress.EgressPool;
+import proxy.log.AccessLog;
+import proxy.shaping.ShapingScope;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and gauges. Reactors only touch striped LongAdders, so updates from
+ * different threads don't contend; values are summed when JMX or the scrape endpoint reads them.
+ */
+public final class ProxyMetrics implements ProxyMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(ProxyMetrics.class);
+    private static final int REPLY_CODES = 9;
+    private static final ClientState[] STATES = ClientState.values();
+    private static final Stage[] STAGES = Stage.values();
+    private static final ShapingScope[] SHAPING_SCOPES = ShapingScope.values();
+    private static final Rejection[] REJECTIONS = Rejection.values();
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+    private static final ProxyMetrics instance = new ProxyMetrics();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder[] rejectedConnections = newAdders(REJECTIONS.length);
+    private final LongAdder[] activeConnections = newAdders(STATES.length);
+    private final LongAdder[] closedConnections = newAdders(STATES.length);
+    private final LongAdder bytesFromClient = new LongAdder();
+    private final LongAdder bytesToClient = new LongAdder();
+    private final LongAdder dnsQueries = new LongAdder();
+    private final LongAdder dnsCacheHits = new LongAdder();
+    private final LongAdder dnsRetries = new LongAdder();
+    private final LongAdder dnsFailures = new LongAdder();
+    private final LongAdder dnsRejections = new LongAdder();
+    private final LongAdder[] replies = newAdders(REPLY_CODES);
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder connectAttemptFailures = new LongAdder();
+    private final LongAdder udpDatagramsFromClient = new LongAdder();
+    private final LongAdder udpDatagramsToClient = new LongAdder();
+    private final LongAdder udpDatagramsDropped = new LongAdder();
+    private final LongAdder pooledTunnels = new LongAdder();
+    private final LongAdder newTunnels = new LongAdder();
+    private final LongAdder upstreamFailures = new LongAdder();
+    private final LongAdder[] readPauses = newAdders(SHAPING_SCOPES.length);
+    private final LongAdder readPausedMillis = new LongAdder();
+    private final LongAdder loopIterations = new LongAdder();
+    private final LongAdder loopBusyNanos = new LongAdder();
+    private final LatencyHistogram[] stageLatencies = new LatencyHistogram[STAGES.length];
+
+    private ProxyMetrics() {
+        for (int i = 0; i < stageLatencies.length; ++i) {
+            stageLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static ProxyMetrics getInstance() {
+        return instance;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; ++i) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("proxy:type=Metrics"));
+        }
+        catch (Exception e) {
+            log.error("Metrics MBean wasn't registered : " + e);
+        }
+    }
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    public void connectionRejected(Rejection rejection) {
+        rejectedConnections[rejection.ordinal()].increment();
+    }
+
+    public void stateChanged(ClientState from, ClientState to) {
+        if (from != null) {
+            activeConnections[from.ordinal()].decrement();
+        }
+        activeConnections[to.ordinal()].increment();
+    }
+
+    public void connectionClosed(ClientState state) {
+        activeConnections[state.ordinal()].decrement();
+        closedConnections[state.ordinal()].increment();
+    }
+
+    public void bytesFromClient(long len) {
+        bytesFromClient.add(len);
+    }
+
+    public void bytesToClient(long len) {
+        bytesToClient.add(len);
+    }
+
+    public void dnsQuery() {
+        dnsQueries.increment();
+    }
+
+    public void dnsCacheHit() {
+        dnsCacheHits.increment();
+    }
+
+    public void dnsRetry() {
+        dnsRetries.increment();
+    }
+
+    public void dnsFailure() {
+        dnsFailures.increment();
+    }
+
+    public void dnsRejected() {
+        dnsRejections.increment();
+    }
+
+    public void reply(byte code) {
+        if (code >= 0 && code < REPLY_CODES) {
+            replies[code].increment();
+        }
+    }
+
+    public void connectFailure() {
+        connectFailures.increment();
+    }
+
+    public void connectAttemptFailure() {
+        connectAttemptFailures.increment();
+    }
+
+    public void udpDatagramFromClient() {
+        udpDatagramsFromClient.increment();
+    }
+
+    public void udpDatagramToClient() {
+        udpDatagramsToClient.increment();
+    }
+
+    public void udpDatagramDropped() {
+        udpDatagramsDropped.increment();
+    }
+
+    public void upstreamTunnel(boolean pooled) {
+        (pooled ? pooledTunnels : newTunnels).increment();
+    }
+
+    public void upstreamFailure() {
+        upstreamFailures.increment();
+    }
+
+    public void readsPaused(ShapingScope scope, long millis) {
+        readPauses[scope.ordinal()].increment();
+        readPausedMillis.add(millis);
+    }
+
+    public void loopIteration(long busyNanos) {
+        loopIterations.increment();
+        loopBusyNanos.add(busyNanos);
+    }
+
+    public void stageFinished(Stage stage, long nanos) {
+        stageLatencies[stage.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public LatencyHistogram getStageLatency(Stage stage) {
+        return stageLatencies[stage.ordinal()];
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRejectedConnectionsByReason() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Rejection rejection : REJECTIONS) {
+            values.put(rejection.label(), rejectedConnections[rejection.ordinal()].sum());
+        }
+        return values;
+    }
+
+    @Override
+    public int getAdmittedConnections() {
+        return AdmissionControl.getInstance().getConnections();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        long active = 0;
+        for (LongAdder adder : activeConnections) {
+            active += adder.sum();
+        }
+        return active;
+    }
+
+    @Override
+    public Map<String, Long> getActiveConnectionsByState() {
+        return byState(activeConnections);
+    }
+
+    @Override
+    public Map<String, Long> getClosedConnectionsByState() {
+        return byState(closedConnections);
+    }
+
+    @Override
+    public long getBytesFromClient() {
+        return bytesFromClient.sum();
+    }
+
+    @Override
+    public long getBytesToClient() {
+        return bytesToClient.sum();
+    }
+
+    @Override
+    public long getDnsQueries() {
+        return dnsQueries.sum();
+    }
+
+    @Override
+    public long getDnsCacheHits() {
+        return dnsCacheHits.sum();
+    }
+
+    @Override
+    public long getDnsRetries() {
+        return dnsRetries.sum();
+    }
+
+    @Override
+    public long getDnsFailures() {
+        return dnsFailures.sum();
+    }
+
+    @Override
+    public long getDnsRejections() {
+        return dnsRejections.sum();
+    }
+
+    @Override
+    public int getDnsCacheSize() {
+        return DnsCache.getInstance().size();
+    }
+
+    @Override
+    public Map<String, Long> getRepliesByCode() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < REPLY_CODES; ++i) {
+            values.put(String.valueOf(i), replies[i].sum());
+        }
+        return values;
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public long getConnectAttemptFailures() {
+        return connectAttemptFailures.sum();
+    }
+
+    @Override
+    public long getUdpDatagramsFromClient() {
+        return udpDatagramsFromClient.sum();
+    }
+
+    @Override
+    public long getUdpDatagramsToClient() {
+        return udpDatagramsToClient.sum();
+    }
+
+    @Override
+    public long getUdpDatagramsDropped() {
+        return udpDatagramsDropped.sum();
+    }
+
+    @Override
+    public long getUpstreamTunnelsPooled() {
+        return pooledTunnels.sum();
+    }
+
+    @Override
+    public long getUpstreamTunnelsNew() {
+        return newTunnels.sum();
+    }
+
+    @Override
+    public long getUpstreamFailures() {
+        return upstreamFailures.sum();
+    }
+
+    @Override
+    public Map<String, Long> getShapingPausesByScope() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (ShapingScope scope : SHAPING_SCOPES) {
+            values.put(scope.label(), readPauses[scope.ordinal()].sum());
+        }
+        return values;
+    }
+
+    @Override
+    public long getShapingPausedMillis() {
+        return readPausedMillis.sum();
+    }
+
+    @Override
+    public Map<String, Long> getEgressPortsInUse() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (EgressAddress address : EgressPool.getInstance().getAddresses()) {
+            values.put(address.getAddress().getHostAddress(), (long) address.getPortsInUse());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getEgressBindFailures() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (EgressAddress address : EgressPool.getInstance().getAddresses()) {
+            values.put(address.getAddress().getHostAddress(), address.getBindFailures());
+        }
+        return values;
+    }
+
+    @Override
+    public long getLoopIterations() {
+        return loopIterations.sum();
+    }
+
+    @Override
+    public long getLoopBusyNanos() {
+        return loopBusyNanos.sum();
+    }
+
+    @Override
+    public long getBufferPoolReservedBytes() {
+        return BufferPool.getInstance().getReservedBytes();
+    }
+
+    @Override
+    public long getBufferPoolBorrowedBytes() {
+        return BufferPool.getInstance().getBorrowedBytes();
+    }
+
+    @Override
+    public long getAccessLogDroppedRecords() {
+        return AccessLog.getInstance().getDroppedRecords();
+    }
+
+    @Override
+    public Map<String, Long> getStageLatencyMicros() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = stageLatencies[stage.ordinal()];
+            values.put(stage.label() + ".count", histogram.getCount());
+            for (double quantile : QUANTILES) {
+                values.put(stage.label() + ".p" + quantileLabel(quantile), histogram.getValueAtQuantile(quantile));
+            }
+        }
+        return values;
+    }
+
+    private static String quantileLabel(double quantile) {
+        String digits = String.valueOf(quantile).substring(2);
+        return digits.length() == 1 ? digits + "0" : digits;
+    }
+
+    private static Map<String, Long> byState(LongAdder[] adders) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (ClientState state : STATES) {
+            values.put(state.name(), adders[state.ordinal()].sum());
+        }
+        return values;
+    }
+
+    /**
+     * Appends all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(StringBuilder out) {
+        counter(out, "proxy_connections_accepted_total", "Accepted client connections", getAcceptedConnections());
+        header(out, "proxy_connections_rejected_total", "Client connections and lookups refused by admission control",
+                "counter");
+        for (Rejection rejection : REJECTIONS) {
+            sample(out, "proxy_connections_rejected_total", "reason", rejection.label(),
+                    rejectedConnections[rejection.ordinal()].sum());
+        }
+        gauge(out, "proxy_connections_admitted", "Client connections counted against the connection limits",
+                getAdmittedConnections());
+        header(out, "proxy_connections_active", "Open client connections by state", "gauge");
+        for (ClientState state : STATES) {
+            sample(out, "proxy_connections_active", "state", state.name(), activeConnections[state.ordinal()].sum());
+        }
+        header(out, "proxy_connections_closed_total", "Closed client connections by state at close", "counter");
+        for (ClientState state : STATES) {
+            sample(out, "proxy_connections_closed_total", "state", state.name(),
+                    closedConnections[state.ordinal()].sum());
+        }
+        header(out, "proxy_relay_bytes_total", "Bytes relayed between clients and servers", "counter");
+        sample(out, "proxy_relay_bytes_total", "direction", "upstream", getBytesFromClient());
+        sample(out, "proxy_relay_bytes_total", "direction", "downstream", getBytesToClient());
+        counter(out, "proxy_dns_queries_total", "DNS queries started", getDnsQueries());
+        counter(out, "proxy_dns_cache_hits_total", "Host names answered from the DNS cache", getDnsCacheHits());
+        counter(out, "proxy_dns_retries_total", "DNS queries resent after a timeout", getDnsRetries());
+        counter(out, "proxy_dns_failures_total", "DNS queries failed after all attempts", getDnsFailures());
+        counter(out, "proxy_dns_rejected_total", "DNS lookups refused with proxy.admission.dnsBacklog in flight",
+                getDnsRejections());
+        gauge(out, "proxy_dns_cache_entries", "Entries in the DNS cache", getDnsCacheSize());
+        header(out, "proxy_replies_total", "SOCKS replies sent by reply code", "counter");
+        for (int i = 0; i < REPLY_CODES; ++i) {
+            sample(out, "proxy_replies_total", "code", String.valueOf(i), replies[i].sum());
+        }
+        counter(out, "proxy_connect_failures_total", "Failed connects to destination servers", getConnectFailures());
+        counter(out, "proxy_connect_attempt_failures_total", "Failed or timed out attempts to single server addresses",
+                getConnectAttemptFailures());
+        header(out, "proxy_udp_datagrams_total", "Datagrams relayed for UDP associations", "counter");
+        sample(out, "proxy_udp_datagrams_total", "direction", "upstream", getUdpDatagramsFromClient());
+        sample(out, "proxy_udp_datagrams_total", "direction", "downstream", getUdpDatagramsToClient());
+        counter(out, "proxy_udp_datagrams_dropped_total", "Datagrams dropped by UDP associations",
+                getUdpDatagramsDropped());
+        header(out, "proxy_upstream_tunnels_total", "CONNECTs through parent proxies by where the connection came from",
+                "counter");
+        sample(out, "proxy_upstream_tunnels_total", "source", "pool", getUpstreamTunnelsPooled());
+        sample(out, "proxy_upstream_tunnels_total", "source", "new", getUpstreamTunnelsNew());
+        counter(out, "proxy_upstream_failures_total", "CONNECTs through parent proxies that failed",
+                getUpstreamFailures());
+        header(out, "proxy_shaping_pauses_total", "Relay reads paused by bandwidth limits by limiting scope",
+                "counter");
+        for (ShapingScope scope : SHAPING_SCOPES) {
+            sample(out, "proxy_shaping_pauses_total", "scope", scope.label(), readPauses[scope.ordinal()].sum());
+        }
+        header(out, "proxy_shaping_paused_seconds_total", "Time relay reads were paused by bandwidth limits",
+                "counter");
+        out.append("proxy_shaping_paused_seconds_total ").append(getShapingPausedMillis() / 1000.0).append('\n');
+        header(out, "proxy_egress_ports_in_use", "Outbound sockets bound to each egress address", "gauge");
+        for (EgressAddress address : EgressPool.getInstance().getAddresses()) {
+            sample(out, "proxy_egress_ports_in_use", "address", address.getAddress().getHostAddress(),
+                    address.getPortsInUse());
+        }
+        header(out, "proxy_egress_bind_failures_total", "Failed binds of outbound sockets to each egress address",
+                "counter");
+        for (EgressAddress address : EgressPool.getInstance().getAddresses()) {
+            sample(out, "proxy_egress_bind_failures_total", "address", address.getAddress().getHostAddress(),
+                    address.getBindFailures());
+        }
+        counter(out, "proxy_reactor_loop_iterations_total", "Selector loop iterations of all reactors",
+                getLoopIterations());
+        header(out, "proxy_reactor_loop_busy_seconds_total", "Time reactors spent handling events", "counter");
+        out.append("proxy_reactor_loop_busy_seconds_total ")
+                .append(getLoopBusyNanos() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+        gauge(out, "proxy_buffer_pool_reserved_bytes", "Direct memory reserved by the buffer pool",
+                getBufferPoolReservedBytes());
+        gauge(out, "proxy_buffer_pool_borrowed_bytes", "Pooled buffers currently in use", getBufferPoolBorrowedBytes());
+        header(out, "proxy_stage_latency_seconds", "Connection setup time by stage and upstream time to first byte",
+                "summary");
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = stageLatencies[stage.ordinal()];
+            for (double quantile : QUANTILES) {
+                out.append("proxy_stage_latency_seconds{stage=\"").append(stage.label()).append("\",quantile=\"")
+                        .append(quantile).append("\"} ").append(histogram.getValueAtQuantile(quantile) / 1e6)
+                        .append('\n');
+            }
+            out.append("proxy_stage_latency_seconds_sum{stage=\"").append(stage.label()).append("\"} ")
+                    .append(histogram.getSumMicros() / 1e6).append('\n');
+            out.append("proxy_stage_latency_seconds_count{stage=\"").append(stage.label()).append("\"} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+        counter(out, "proxy_access_log_dropped_total", "Access log records dropped on a full ring",
+                getAccessLogDroppedRecords());
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, long value) {
+        out.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ")
+                .append(value).append('\n');
+    }
+}
@@ -0,0 +1,71 @@
+package proxy.metrics;
+
+import java.util.Map;
+
+public interface ProxyMetricsMXBean {
+    long getAcceptedConnections();
+
+    Map<String, Long> getRejectedConnectionsByReason();
+
+    int getAdmittedConnections();
+
+    long getActiveConnections();
+
+    Map<String, Long> getActiveConnectionsByState();
+
+    Map<String, Long> getClosedConnectionsByState();
+
+    long getBytesFromClient();
+
+    long getBytesToClient();
+
+    long getDnsQueries();
+
+    long getDnsCacheHits();
+
+    long getDnsRetries();
+
+    long getDnsFailures();
+
+    long getDnsRejections();
+
+    int getDnsCacheSize();
+
+    Map<String, Long> getRepliesByCode();
+
+    long getConnectFailures();
+
+    long getConnectAttemptFailures();
+
+    long getUdpDatagramsFromClient();
+
+    long getUdpDatagramsToClient();
+
+    long getUdpDatagramsDropped();
+
+    long getUpstreamTunnelsPooled();
+
+    long getUpstreamTunnelsNew();
+
+    long getUpstreamFailures();
+
+    Map<String, Long> getShapingPausesByScope();
+
+    Map<String, Long> getEgressPortsInUse();
+
+    Map<String, Long> getEgressBindFailures();
+
+    long getShapingPausedMillis();
+
+    long getLoopIterations();
+
+    long getLoopBusyNanos();
+
+    long getBufferPoolReservedBytes();
+
+    long getBufferPoolBorrowedBytes();
+
+    long getAccessLogDroppedRecords();
+
+    Map<String, Long> getStageLatencyMicros();
+}
@@ -0,0 +1,39 @@
+package proxy.metrics;
+
+import proxy.ClientState;
+
+/**
+ * Timed parts of a connection. ACCEPT is the hand-off from the boss to a reactor, the next five are
+ * the time spent in one ClientState, SETUP spans accept to CONNECTED, and TTFB is the upstream wait
+ * from the first byte sent (or connect, for servers that speak first) to the first byte received.
+ */
+public enum Stage {
+    ACCEPT,
+    GREETING,
+    REQUEST,
+    DNS,
+    CONNECT,
+    REPLY,
+    SETUP,
+    TTFB;
+
+    /**
+     * Stage that ends with the given ClientState transition, null when leaving CONNECTED.
+     */
+    public static Stage ofTransition(ClientState from, ClientState to) {
+        if (from == null) {
+            return ACCEPT;
+        }
+        return switch (from) {
+            case GREETING -> GREETING;
+            case CONNECTING -> to == ClientState.CONNECTED ? REPLY : REQUEST;
+            case WAIT_DNS -> DNS;
+            case WAIT_SERVER -> CONNECT;
+            case CONNECTED -> null;
+        };
+    }
+
+    public String label() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,150 @@
+package proxy.protocol;
+
+import proxy.exceptions.Socks5ProtocolException;
+import proxy.exceptions.UnsupportedAddressType;
+import proxy.exceptions.UnsupportedSocksVersionException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-at-a-time parser of the SOCKS5 greeting followed by the request. It keeps its position between
+ * calls, so messages may be split across reads or arrive together in one read.
+ */
+public class HandshakeParser {
+    public enum Result {
+        NEED_MORE,
+        GREETING_DONE,
+        REQUEST_DONE
+    }
+
+    private enum Step {
+        GREETING_VERSION,
+        GREETING_METHODS_NUMBER,
+        GREETING_METHODS,
+        REQUEST_VERSION,
+        REQUEST_COMMAND,
+        REQUEST_RESERVED,
+        REQUEST_ADDRESS_TYPE,
+        REQUEST_ADDRESS_LENGTH,
+        REQUEST_ADDRESS,
+        REQUEST_PORT,
+        DONE
+    }
+
+    public static final int MAX_ADDRESS_LENGTH = 255;
+    private Step step = Step.GREETING_VERSION;
+    private int remaining;
+    private boolean noAuthOffered;
+    private byte command;
+    private byte addressType;
+    private final byte[] address = new byte[MAX_ADDRESS_LENGTH];
+    private int addressLength;
+    private int port;
+
+    public Result parse(ByteBuffer buffer) throws Socks5ProtocolException {
+        while (step != Step.DONE && buffer.hasRemaining()) {
+            byte b = buffer.get();
+            switch (step) {
+                case GREETING_VERSION -> {
+                    checkVersion(b);
+                    step = Step.GREETING_METHODS_NUMBER;
+                }
+                case GREETING_METHODS_NUMBER -> {
+                    remaining = b & 0xFF;
+                    step = Step.GREETING_METHODS;
+                    if (remaining == 0) {
+                        step = Step.REQUEST_VERSION;
+                        return Result.GREETING_DONE;
+                    }
+                }
+                case GREETING_METHODS -> {
+                    if (b == ProtocolParams.NO_AUTH) {
+                        noAuthOffered = true;
+                    }
+                    if (--remaining == 0) {
+                        step = Step.REQUEST_VERSION;
+                        return Result.GREETING_DONE;
+                    }
+                }
+                case REQUEST_VERSION -> {
+                    checkVersion(b);
+                    step = Step.REQUEST_COMMAND;
+                }
+                case REQUEST_COMMAND -> {
+                    command = b;
+                    step = Step.REQUEST_RESERVED;
+                }
+                case REQUEST_RESERVED -> step = Step.REQUEST_ADDRESS_TYPE;
+                case REQUEST_ADDRESS_TYPE -> {
+                    addressType = b;
+                    addressLength = 0;
+                    switch (b) {
+                        case ProtocolParams.ADDR_TYPE_IPV4 -> {
+                            remaining = 4;
+                            step = Step.REQUEST_ADDRESS;
+                        }
+                        case ProtocolParams.ADDR_TYPE_IPV6 -> {
+                            remaining = 16;
+                            step = Step.REQUEST_ADDRESS;
+                        }
+                        case ProtocolParams.ADDR_TYPE_HOST -> step = Step.REQUEST_ADDRESS_LENGTH;
+                        default -> throw new UnsupportedAddressType("Unsupported address type " + b);
+                    }
+                }
+                case REQUEST_ADDRESS_LENGTH -> {
+                    remaining = b & 0xFF;
+                    if (remaining == 0) {
+                        throw new UnsupportedAddressType("Empty host name");
+                    }
+                    step = Step.REQUEST_ADDRESS;
+                }
+                case REQUEST_ADDRESS -> {
+                    address[addressLength++] = b;
+                    if (--remaining == 0) {
+                        remaining = 2;
+                        port = 0;
+                        step = Step.REQUEST_PORT;
+                    }
+                }
+                case REQUEST_PORT -> {
+                    port = (port << 8) | (b & 0xFF);
+                    if (--remaining == 0) {
+                        step = Step.DONE;
+                        return Result.REQUEST_DONE;
+                    }
+                }
+            }
+        }
+        return step == Step.DONE ? Result.REQUEST_DONE : Result.NEED_MORE;
+    }
+
+    private static void checkVersion(byte version) throws UnsupportedSocksVersionException {
+        if (version != ProtocolParams.SUPPORTED_VERSION) {
+            throw new UnsupportedSocksVersionException("Unsupported SOCKS version " + version);
+        }
+    }
+
+    public boolean isNoAuthOffered() {
+        return noAuthOffered;
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public byte getAddressType() {
+        return addressType;
+    }
+
+    public byte[] getAddress() {
+        return address;
+    }
+
+    public int getAddressLength() {
+        return addressLength;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
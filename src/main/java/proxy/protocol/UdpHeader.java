@@ -0,0 +1,107 @@
+package proxy.protocol;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Header of a relayed UDP datagram (RFC 1928 section 7). It is parsed and written in place, the
+ * payload never moves. An instance keeps the raw bytes of the last parsed header, so a relay can
+ * tell whether a datagram goes to the same destination as the previous one without decoding it.
+ */
+public final class UdpHeader {
+    public static final int MAX_LENGTH = 4 + 1 + HandshakeParser.MAX_ADDRESS_LENGTH + 2;
+    private final byte[] raw = new byte[MAX_LENGTH];
+    private int length;
+    private byte addressType;
+    private int addressLength;
+    private int port;
+
+    /**
+     * Reads the header at the buffer position and leaves the position at the payload. Returns false,
+     * with the position unchanged, for truncated headers, fragments and unknown address types.
+     */
+    public boolean parse(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (limit - start < 5 || buffer.get(start + 2) != 0) {
+            return false;
+        }
+        byte type = buffer.get(start + 3);
+        int addressStart = start + 4;
+        int addressLength;
+        switch (type) {
+            case ProtocolParams.ADDR_TYPE_IPV4 -> addressLength = 4;
+            case ProtocolParams.ADDR_TYPE_IPV6 -> addressLength = 16;
+            case ProtocolParams.ADDR_TYPE_HOST -> {
+                addressLength = buffer.get(addressStart) & 0xFF;
+                addressStart++;
+                if (addressLength == 0) {
+                    return false;
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        int headerLength = addressStart + addressLength + 2 - start;
+        if (limit - start < headerLength) {
+            return false;
+        }
+        buffer.get(start, raw, 0, headerLength);
+        length = headerLength;
+        addressType = type;
+        this.addressLength = addressLength;
+        port = buffer.getShort(addressStart + addressLength) & 0xFFFF;
+        buffer.position(start + headerLength);
+        return true;
+    }
+
+    public boolean sameDestination(UdpHeader other) {
+        return Arrays.equals(raw, 3, length, other.raw, 3, other.length);
+    }
+
+    public void copyFrom(UdpHeader other) {
+        System.arraycopy(other.raw, 0, raw, 0, other.length);
+        length = other.length;
+        addressType = other.addressType;
+        addressLength = other.addressLength;
+        port = other.port;
+    }
+
+    public boolean isHost() {
+        return addressType == ProtocolParams.ADDR_TYPE_HOST;
+    }
+
+    public String getHost() {
+        return new String(raw, 5, addressLength, StandardCharsets.US_ASCII);
+    }
+
+    public InetAddress getAddress() throws UnknownHostException {
+        return InetAddress.getByAddress(Arrays.copyOfRange(raw, 4, 4 + addressLength));
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Writes the header for a datagram from the source right before the payload starting at
+     * payloadStart and moves the position to the start of the header.
+     */
+    public static void writeBefore(ByteBuffer buffer, int payloadStart, InetSocketAddress source) {
+        InetAddress address = source.getAddress();
+        boolean ipv6 = address instanceof Inet6Address;
+        int start = payloadStart - (ipv6 ? 22 : 10);
+        buffer.position(start);
+        buffer.putShort((short) 0).put((byte) 0)
+                .put(ipv6 ? ProtocolParams.ADDR_TYPE_IPV6 : ProtocolParams.ADDR_TYPE_IPV4)
+                .put(address.getAddress())
+                .putShort((short) source.getPort());
+        buffer.position(start);
+    }
+}
@@ -0,0 +1,60 @@
+package proxy.shaping;
+
+import proxy.metrics.ProxyMetrics;
+
+import java.net.InetAddress;
+
+/**
+ * The buckets one relayed connection draws from, in both directions. Times are System.nanoTime() values.
+ */
+public final class ShapedConnection {
+    private final TokenBucket[] buckets;
+    final InetAddress client;
+    final String destination;
+
+    ShapedConnection(TokenBucket[] buckets, InetAddress client, String destination) {
+        this.buckets = buckets;
+        this.client = client;
+        this.destination = destination;
+    }
+
+    TokenBucket[] getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Bytes the next read may take: the smallest balance of all buckets, 0 or less when one is empty.
+     */
+    public long allowance(long now) {
+        long allowance = Long.MAX_VALUE;
+        for (TokenBucket bucket : buckets) {
+            allowance = Math.min(allowance, bucket.available(now));
+        }
+        return allowance;
+    }
+
+    public void consume(long bytes, long now) {
+        for (TokenBucket bucket : buckets) {
+            bucket.consume(bytes, now);
+        }
+    }
+
+    /**
+     * Counts a pause of reads against the bucket that needs the longest to refill and returns its length
+     * in milliseconds, at least 1.
+     */
+    public long pause(long now) {
+        TokenBucket limiting = buckets[0];
+        long pauseMillis = 0;
+        for (TokenBucket bucket : buckets) {
+            long millis = bucket.millisUntilRefilled(now);
+            if (millis > pauseMillis) {
+                pauseMillis = millis;
+                limiting = bucket;
+            }
+        }
+        pauseMillis = Math.max(1, pauseMillis);
+        ProxyMetrics.getInstance().readsPaused(limiting.getScope(), pauseMillis);
+        return pauseMillis;
+    }
+}
@@ -0,0 +1,17 @@
+package proxy.shaping;
+
+public enum ShapingScope {
+    GLOBAL("global"),
+    CLIENT("client"),
+    DESTINATION("destination");
+
+    private final String label;
+
+    ShapingScope(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+}
@@ -0,0 +1,63 @@
+package proxy.shaping;
+
+import proxy.config.ProxyConfig;
+
+/**
+ * Rate limit in bytes per second with a burst of proxy.limit.burst worth of bytes. Tokens are
+ * refilled from the elapsed time when the bucket is used. Connections on different reactors may
+ * consume the same tokens at once, so the balance can go negative; the debt just delays the next grant.
+ */
+public final class TokenBucket {
+    private final ShapingScope scope;
+    private final double bytesPerNano;
+    private final double burst;
+    private final double resumeTokens;
+    private double tokens;
+    private long lastRefill;
+    int references;
+
+    TokenBucket(ShapingScope scope, long bytesPerSecond, long now) {
+        this.scope = scope;
+        bytesPerNano = bytesPerSecond / 1e9;
+        burst = Math.max(bytesPerSecond * ProxyConfig.LIMIT_BURST_MILLIS / 1000.0, ProxyConfig.RELAY_SEGMENT_SIZE);
+        resumeTokens = Math.min(burst, ProxyConfig.RELAY_SEGMENT_SIZE);
+        tokens = burst;
+        lastRefill = now;
+    }
+
+    public ShapingScope getScope() {
+        return scope;
+    }
+
+    /**
+     * Tokens that may be taken now. Once the balance drops below a relay segment this is 0 until it
+     * is refilled, so a limited connection pauses instead of spinning on tiny reads.
+     */
+    public synchronized long available(long now) {
+        refill(now);
+        return tokens >= resumeTokens ? (long) tokens : 0;
+    }
+
+    public synchronized void consume(long bytes, long now) {
+        refill(now);
+        tokens -= bytes;
+    }
+
+    /**
+     * Milliseconds until the bucket holds a relay segment worth of tokens again.
+     */
+    public synchronized long millisUntilRefilled(long now) {
+        refill(now);
+        if (tokens >= resumeTokens) {
+            return 0;
+        }
+        return (long) Math.ceil((resumeTokens - tokens) / bytesPerNano / 1e6);
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerNano);
+            lastRefill = now;
+        }
+    }
+}
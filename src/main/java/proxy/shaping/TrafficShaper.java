@@ -0,0 +1,77 @@
+package proxy.shaping;
+
+import proxy.config.ProxyConfig;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hierarchical bandwidth limits: one bucket for the whole proxy, one per client IP and one per
+ * destination host, each set with its proxy.limit.* property in bytes per second, 0 meaning no
+ * limit. Client and destination buckets live as long as connections use them.
+ */
+public final class TrafficShaper {
+    private static final TrafficShaper instance = new TrafficShaper();
+    private final TokenBucket globalBucket = ProxyConfig.LIMIT_GLOBAL_BYTES_PER_SECOND > 0
+            ? new TokenBucket(ShapingScope.GLOBAL, ProxyConfig.LIMIT_GLOBAL_BYTES_PER_SECOND, System.nanoTime())
+            : null;
+    private final Map<InetAddress, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> destinationBuckets = new ConcurrentHashMap<>();
+
+    private TrafficShaper() {}
+
+    public static TrafficShaper getInstance() {
+        return instance;
+    }
+
+    /**
+     * The buckets of a connection from the client to the destination, null when no limit is set.
+     */
+    public ShapedConnection open(InetAddress client, String destination) {
+        List<TokenBucket> buckets = new ArrayList<>(3);
+        if (globalBucket != null) {
+            buckets.add(globalBucket);
+        }
+        if (ProxyConfig.LIMIT_CLIENT_BYTES_PER_SECOND > 0 && client != null) {
+            buckets.add(acquire(clientBuckets, client, ShapingScope.CLIENT, ProxyConfig.LIMIT_CLIENT_BYTES_PER_SECOND));
+        }
+        if (ProxyConfig.LIMIT_DESTINATION_BYTES_PER_SECOND > 0 && destination != null) {
+            buckets.add(acquire(destinationBuckets, destination, ShapingScope.DESTINATION,
+                    ProxyConfig.LIMIT_DESTINATION_BYTES_PER_SECOND));
+        }
+        if (buckets.isEmpty()) {
+            return null;
+        }
+        return new ShapedConnection(buckets.toArray(new TokenBucket[0]), client, destination);
+    }
+
+    public void close(ShapedConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        for (TokenBucket bucket : connection.getBuckets()) {
+            switch (bucket.getScope()) {
+                case CLIENT -> release(clientBuckets, connection.client);
+                case DESTINATION -> release(destinationBuckets, connection.destination);
+                default -> {}
+            }
+        }
+    }
+
+    private static <K> TokenBucket acquire(Map<K, TokenBucket> buckets, K key, ShapingScope scope, long bytesPerSecond) {
+        return buckets.compute(key, (k, bucket) -> {
+            if (bucket == null) {
+                bucket = new TokenBucket(scope, bytesPerSecond, System.nanoTime());
+            }
+            bucket.references++;
+            return bucket;
+        });
+    }
+
+    private static <K> void release(Map<K, TokenBucket> buckets, K key) {
+        buckets.computeIfPresent(key, (k, bucket) -> --bucket.references == 0 ? null : bucket);
+    }
+}
@@ -0,0 +1,27 @@
+package proxy.timer;
+
+public class Timeout {
+    final Runnable task;
+    final TimingWheel wheel;
+    long remainingRounds;
+    int bucket = -1;
+    boolean cancelled;
+    Timeout prev;
+    Timeout next;
+
+    Timeout(TimingWheel wheel, Runnable task) {
+        this.wheel = wheel;
+        this.task = task;
+    }
+
+    public boolean isActive() {
+        return bucket >= 0;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        if (isActive()) {
+            wheel.remove(this);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package proxy.timer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel driven by the reactor loop. Scheduling and cancelling are O(1);
+ * timers further away than one revolution wait for the required number of rounds in their bucket.
+ * Not thread-safe: a wheel belongs to one reactor.
+ */
+public class TimingWheel {
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startTime;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMillis, int wheelSize, long now) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two : " + wheelSize);
+        }
+        this.tickMillis = tickMillis;
+        buckets = new Timeout[wheelSize];
+        mask = wheelSize - 1;
+        startTime = now;
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis, long now) {
+        Timeout timeout = new Timeout(this, task);
+        long targetTick = Math.max(currentTick + 1, (now - startTime + delayMillis + tickMillis - 1) / tickMillis);
+        timeout.remainingRounds = (targetTick - currentTick - 1) / buckets.length;
+        add(timeout, (int) (targetTick & mask));
+        return timeout;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Milliseconds until the next tick, 0 if no timer is scheduled.
+     */
+    public long getNextTimeout(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        return Math.max(1, startTime + (currentTick + 1) * tickMillis - now);
+    }
+
+    public void advance(long now) {
+        long targetTick = (now - startTime) / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        while (currentTick < targetTick) {
+            ++currentTick;
+            expireBucket((int) (currentTick & mask));
+            if (size == 0) {
+                currentTick = targetTick;
+            }
+        }
+    }
+
+    private void expireBucket(int bucket) {
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                remove(timeout);
+                expired.add(timeout);
+            }
+            else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+        for (int i = 0; i < expired.size(); ++i) {
+            Timeout expiredTimeout = expired.get(i);
+            if (!expiredTimeout.cancelled) {
+                expiredTimeout.task.run();
+            }
+        }
+        expired.clear();
+    }
+
+    private void add(Timeout timeout, int bucket) {
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (buckets[bucket] != null) {
+            buckets[bucket].prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        ++size;
+    }
+
+    void remove(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        --size;
+    }
+}
@@ -0,0 +1,150 @@
+package proxy.upstream;
+
+import proxy.protocol.ProtocolParams;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Messages of the client side of SOCKS5 (RFC 1928, RFC 1929) and HTTP CONNECT. Messages are put
+ * into and parsed from buffers in write mode, so the bytes received so far are [0, position).
+ */
+public final class ParentProtocol {
+    public static final int METHOD_REPLY_LENGTH = 2;
+    public static final int AUTH_REPLY_LENGTH = 2;
+    public static final int MAX_REPLY_LENGTH = 4096;
+    private static final byte USERNAME_PASSWORD = 0x02;
+    private static final byte AUTH_VERSION = 0x01;
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private ParentProtocol() {}
+
+    public static void putGreeting(ByteBuffer out, ParentProxy parent) {
+        out.put(ProtocolParams.SUPPORTED_VERSION);
+        if (parent.hasCredentials()) {
+            out.put((byte) 2).put(ProtocolParams.NO_AUTH).put(USERNAME_PASSWORD);
+        }
+        else {
+            out.put((byte) 1).put(ProtocolParams.NO_AUTH);
+        }
+    }
+
+    /**
+     * Checks the method the parent selected and tells whether username/password authentication follows.
+     */
+    public static boolean needsAuthentication(ByteBuffer in, ParentProxy parent) throws IOException {
+        if (in.get(0) != ProtocolParams.SUPPORTED_VERSION) {
+            throw new IOException("parent proxy doesn't speak SOCKS5");
+        }
+        byte method = in.get(1);
+        if (method == ProtocolParams.NO_AUTH) {
+            return false;
+        }
+        if (method == USERNAME_PASSWORD && parent.hasCredentials()) {
+            return true;
+        }
+        throw new IOException("no authentication method accepted by parent proxy");
+    }
+
+    public static void putAuthentication(ByteBuffer out, ParentProxy parent) {
+        byte[] username = parent.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] password = parent.getPassword().getBytes(StandardCharsets.UTF_8);
+        out.put(AUTH_VERSION).put((byte) username.length).put(username).put((byte) password.length).put(password);
+    }
+
+    public static void checkAuthentication(ByteBuffer in) throws IOException {
+        if (in.get(1) != 0) {
+            throw new IOException("authentication to parent proxy failed");
+        }
+    }
+
+    /**
+     * The CONNECT request for a destination; an address is sent as is, otherwise the host name.
+     */
+    public static void putConnect(ByteBuffer out, ParentProxy parent, String host, InetAddress address, int port) {
+        if (parent.getType() == ParentType.HTTP) {
+            String authority = (address instanceof Inet6Address ? "[" + host + "]" : host) + ":" + port;
+            StringBuilder request = new StringBuilder("CONNECT ").append(authority).append(" HTTP/1.1\r\nHost: ")
+                    .append(authority).append("\r\n");
+            if (parent.hasCredentials()) {
+                String credentials = parent.getUsername() + ":" + parent.getPassword();
+                request.append("Proxy-Authorization: Basic ")
+                        .append(Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))
+                        .append("\r\n");
+            }
+            out.put(request.append("\r\n").toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        out.put(ProtocolParams.SUPPORTED_VERSION).put(ProtocolParams.SUPPORTED_COMMAND_CODE).put((byte) 0x00);
+        if (address == null) {
+            byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+            out.put(ProtocolParams.ADDR_TYPE_HOST).put((byte) name.length).put(name);
+        }
+        else {
+            out.put(address instanceof Inet6Address ? ProtocolParams.ADDR_TYPE_IPV6 : ProtocolParams.ADDR_TYPE_IPV4)
+                    .put(address.getAddress());
+        }
+        out.putShort((short) port);
+    }
+
+    /**
+     * Length of the CONNECT reply when it was received completely, otherwise 0.
+     */
+    public static int replyLength(ByteBuffer in, ParentProxy parent) throws IOException {
+        int received = in.position();
+        if (parent.getType() == ParentType.HTTP) {
+            for (int i = 0; i + HEADER_END.length <= received; ++i) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    return i + HEADER_END.length;
+                }
+            }
+            return 0;
+        }
+        if (received < 5) {
+            return 0;
+        }
+        int length = switch (in.get(3)) {
+            case ProtocolParams.ADDR_TYPE_IPV4 -> 4 + 4 + 2;
+            case ProtocolParams.ADDR_TYPE_IPV6 -> 4 + 16 + 2;
+            case ProtocolParams.ADDR_TYPE_HOST -> 4 + 1 + (in.get(4) & 0xFF) + 2;
+            default -> throw new IOException("unknown address type in parent proxy reply");
+        };
+        return received >= length ? length : 0;
+    }
+
+    /**
+     * The SOCKS reply code for a complete CONNECT reply; HTTP status codes are mapped to the nearest one.
+     */
+    public static byte replyCode(ByteBuffer in, ParentProxy parent) {
+        if (parent.getType() == ParentType.SOCKS5) {
+            return in.get(0) == ProtocolParams.SUPPORTED_VERSION ? in.get(1) : ProtocolParams.GENERAL_FAILURE;
+        }
+        int space = 0;
+        while (space < in.position() && in.get(space) != ' ') {
+            ++space;
+        }
+        if (space + 4 > in.position()) {
+            return ProtocolParams.GENERAL_FAILURE;
+        }
+        int status = 0;
+        for (int i = space + 1; i < space + 4; ++i) {
+            int digit = in.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return ProtocolParams.GENERAL_FAILURE;
+            }
+            status = status * 10 + digit;
+        }
+        if (status >= 200 && status < 300) {
+            return ProtocolParams.CONNECTION_ESTABLISHED;
+        }
+        return switch (status) {
+            case 403, 407 -> ProtocolParams.NOT_ALLOWED;
+            case 504 -> ProtocolParams.TTL_EXPIRED;
+            default -> ProtocolParams.UNAVAILABLE_HOST;
+        };
+    }
+}
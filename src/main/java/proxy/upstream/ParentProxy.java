@@ -0,0 +1,84 @@
+package proxy.upstream;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A parent proxy written as socks5://[user:password@]host:port or http://[user:password@]host:port.
+ * The host is resolved once, when the rules are loaded.
+ */
+public final class ParentProxy {
+    private final ParentType type;
+    private final InetSocketAddress address;
+    private final String username;
+    private final String password;
+    private final String name;
+
+    private ParentProxy(ParentType type, InetSocketAddress address, String username, String password, String name) {
+        this.type = type;
+        this.address = address;
+        this.username = username;
+        this.password = password;
+        this.name = name;
+    }
+
+    static ParentProxy parse(String value) {
+        URI uri = URI.create(value);
+        ParentType type = switch (String.valueOf(uri.getScheme())) {
+            case "socks5" -> ParentType.SOCKS5;
+            case "http" -> ParentType.HTTP;
+            default -> throw new IllegalArgumentException("Unsupported parent proxy " + value);
+        };
+        if (uri.getHost() == null || uri.getPort() < 0) {
+            throw new IllegalArgumentException("Parent proxy needs host and port : " + value);
+        }
+        String username = null;
+        String password = null;
+        if (uri.getRawUserInfo() != null) {
+            String userInfo = uri.getRawUserInfo();
+            int colon = userInfo.indexOf(':');
+            username = decode(colon < 0 ? userInfo : userInfo.substring(0, colon));
+            password = colon < 0 ? "" : decode(userInfo.substring(colon + 1));
+            if (username.length() > 255 || password.length() > 255) {
+                throw new IllegalArgumentException("Parent proxy credentials are too long : " + uri.getHost());
+            }
+        }
+        InetSocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort());
+        if (address.isUnresolved()) {
+            throw new IllegalArgumentException("Parent proxy host doesn't resolve : " + uri.getHost());
+        }
+        String name = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        return new ParentProxy(type, address, username, password, name);
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    public ParentType getType() {
+        return type;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean hasCredentials() {
+        return username != null;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
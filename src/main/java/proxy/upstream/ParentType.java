@@ -0,0 +1,6 @@
+package proxy.upstream;
+
+public enum ParentType {
+    SOCKS5,
+    HTTP
+}
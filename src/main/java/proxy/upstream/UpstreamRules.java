@@ -0,0 +1,125 @@
+package proxy.upstream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Routes CONNECT requests by destination, set with proxy.upstream.rules as comma-separated
+ * pattern=target pairs, for example "*.corp.example=socks5://10.0.0.1:1080,*=direct". A pattern is
+ * a host name or IP address as the client sent it, *.domain for the domain and its subdomains, or *
+ * for everything; the target is a parent proxy or direct. The first matching rule wins and
+ * destinations no rule matches are connected directly. A CONNECT whose parent fails is answered
+ * with the failure; with proxy.upstream.failover set it moves on to the later matching rules instead,
+ * going direct only when it reaches a matching direct rule.
+ */
+public final class UpstreamRules {
+    /**
+     * The parent proxies of the rules matching a destination, in rule order, and whether a matching
+     * direct rule follows them.
+     */
+    public record Route(List<ParentProxy> parents, boolean direct) {}
+
+    private record Rule(String pattern, ParentProxy parent) {
+        boolean matches(String host) {
+            if (pattern.equals("*")) {
+                return true;
+            }
+            if (pattern.startsWith("*.")) {
+                String domain = pattern.substring(2);
+                return host.equals(domain) || host.endsWith(pattern.substring(1));
+            }
+            return host.equals(pattern);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamRules.class);
+    private static final UpstreamRules instance = new UpstreamRules();
+    private volatile List<Rule> rules = List.of();
+    private volatile List<ParentProxy> parents = List.of();
+
+    private UpstreamRules() {}
+
+    public static UpstreamRules getInstance() {
+        return instance;
+    }
+
+    public void start() {
+        if (ProxyConfig.UPSTREAM_RULES.isBlank()) {
+            return;
+        }
+        load(ProxyConfig.UPSTREAM_RULES);
+        log.info("Upstream rules : " + ProxyConfig.UPSTREAM_RULES.replaceAll("//[^@,]*@", "//"));
+    }
+
+    void load(String value) {
+        List<Rule> parsed = new ArrayList<>();
+        Map<String, ParentProxy> distinctParents = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Upstream rule needs pattern=target : " + entry);
+            }
+            String pattern = entry.substring(0, equals).trim().toLowerCase(Locale.ROOT);
+            String target = entry.substring(equals + 1).trim();
+            ParentProxy parent = null;
+            if (!target.equals("direct")) {
+                parent = distinctParents.computeIfAbsent(target, ParentProxy::parse);
+            }
+            parsed.add(new Rule(pattern, parent));
+        }
+        rules = List.copyOf(parsed);
+        parents = List.copyOf(distinctParents.values());
+    }
+
+    /**
+     * The parent proxy for a destination, or null when it is connected directly.
+     */
+    public ParentProxy select(String host) {
+        List<Rule> current = rules;
+        if (current.isEmpty()) {
+            return null;
+        }
+        String name = host.toLowerCase(Locale.ROOT);
+        for (Rule rule : current) {
+            if (rule.matches(name)) {
+                return rule.parent();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The rules matching a destination up to the first one that connects it directly or the end of the
+     * rules.
+     */
+    public Route route(String host) {
+        List<ParentProxy> matched = new ArrayList<>();
+        String name = host.toLowerCase(Locale.ROOT);
+        for (Rule rule : rules) {
+            if (!rule.matches(name)) {
+                continue;
+            }
+            if (rule.parent() == null) {
+                return new Route(matched, true);
+            }
+            if (!matched.contains(rule.parent())) {
+                matched.add(rule.parent());
+            }
+        }
+        return new Route(matched, false);
+    }
+
+    public List<ParentProxy> getParents() {
+        return parents;
+    }
+}
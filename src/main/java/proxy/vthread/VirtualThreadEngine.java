@@ -0,0 +1,119 @@
+package proxy.vthread;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.admission.AdmissionControl;
+import proxy.admission.Rejection;
+import proxy.config.ProxyConfig;
+import proxy.egress.EgressPool;
+import proxy.upstream.UpstreamRules;
+import proxy.dns.BlockingResolver;
+import proxy.handlers.BindListenerPool;
+import proxy.handlers.Handler;
+import proxy.metrics.MetricsServer;
+import proxy.metrics.ProxyMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Alternative to the NIO reactors, selected with -Dproxy.engine=virtual. The calling thread accepts
+ * connections and every connection gets its own virtual thread running a VirtualThreadSession.
+ * The Prometheus endpoint keeps its selector-based server on a small thread of its own.
+ */
+public class VirtualThreadEngine {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadEngine.class);
+    private final ThreadFactory sessionThreads = Thread.ofVirtual().name("session-", 0).factory();
+
+    public void start(String host, int proxyPort) {
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(host, proxyPort), ProxyConfig.ACCEPT_BACKLOG);
+            BindListenerPool.getInstance().start(host);
+            EgressPool.getInstance().start();
+            UpstreamRules.getInstance().start();
+            VirtualTunnelPool.getInstance().start();
+            if (ProxyConfig.METRICS_PORT >= 0) {
+                startMetricsServer();
+            }
+            if (ProxyConfig.METRICS_JMX) {
+                ProxyMetrics.getInstance().registerMBean();
+            }
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+            System.exit(1);
+            return;
+        }
+
+        log.info("Proxy server started. Host : " + host + ". Port : " + proxyPort
+                + ". Engine : virtual threads. DNS Server : " + BlockingResolver.getInstance().getServer());
+        while (true) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                long acceptTime = System.nanoTime();
+                Rejection rejection = AdmissionControl.getInstance().admit(clientSocket.getInetAddress());
+                if (rejection != null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Connection from " + clientSocket.getInetAddress().getHostAddress() + " rejected : "
+                                + rejection.label());
+                    }
+                    reset(clientSocket);
+                    continue;
+                }
+                ProxyMetrics.getInstance().connectionAccepted();
+                sessionThreads.newThread(new VirtualThreadSession(clientSocket, acceptTime)).start();
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+            }
+        }
+    }
+
+    private void startMetricsServer() throws IOException {
+        Selector selector = Selector.open();
+        new MetricsServer(selector, ProxyConfig.METRICS_HOST, ProxyConfig.METRICS_PORT);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    selector.select();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (key.isValid() && key.attachment() instanceof Handler handler) {
+                            handler.handleKey();
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.error(e.toString());
+            }
+        }, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void reset(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
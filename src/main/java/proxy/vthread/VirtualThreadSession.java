@@ -0,0 +1,722 @@
+package proxy.vthread;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.ClientState;
+import proxy.admission.AdmissionControl;
+import proxy.config.ProxyConfig;
+import proxy.dns.BlockingResolver;
+import proxy.dns.FailedAddresses;
+import proxy.egress.EgressAddress;
+import proxy.egress.EgressPool;
+import proxy.exceptions.Socks5ProtocolException;
+import proxy.handlers.BindListenerPool;
+import proxy.exceptions.TooLongHandshakeMessage;
+import proxy.exceptions.UnsupportedAddressType;
+import proxy.log.AccessLog;
+import proxy.metrics.ProxyMetrics;
+import proxy.metrics.Stage;
+import proxy.protocol.HandshakeParser;
+import proxy.protocol.ProtocolParams;
+import proxy.shaping.ShapedConnection;
+import proxy.shaping.TrafficShaper;
+import proxy.upstream.ParentProxy;
+import proxy.upstream.UpstreamRules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One client connection of the virtual-thread engine. The handshake, DNS lookup and connect run
+ * blocking on the session's thread, then the thread relays client to server while a second virtual
+ * thread relays server to client. State changes, metrics and the access log match ClientHandler.
+ */
+class VirtualThreadSession implements Runnable {
+    private record ConnectResult(InetAddress address, Socket socket, IOException error) {}
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadSession.class);
+    private static final int HANDSHAKE_BUFFER_SIZE = 4096;
+    private final Socket clientSocket;
+    private final long acceptTime;
+    private final long connectionId;
+    private final String clientAddress;
+    private final long openTime;
+    private final HandshakeParser parser = new HandshakeParser();
+    private final ByteBuffer handshakeBuffer = ByteBuffer.allocate(HANDSHAKE_BUFFER_SIZE);
+    private Socket serverSocket;
+    private EgressAddress serverEgress;
+    private VirtualUdpRelay udpRelay;
+    private ClientState state;
+    private long stateTime;
+    private byte responseCode = -1;
+    private String serverName;
+    private List<InetAddress> serverAddresses;
+    private InetAddress serverAddress;
+    private int serverPort;
+    private volatile long lastActivity;
+    private volatile long requestSentTime;
+    private long connectedTime;
+    private volatile boolean closed;
+    private long bytesUp;
+    private long bytesDown;
+    private ShapedConnection shaping;
+
+    VirtualThreadSession(Socket clientSocket, long acceptTime) {
+        this.clientSocket = clientSocket;
+        this.acceptTime = acceptTime;
+        connectionId = AccessLog.getInstance().nextConnectionId();
+        clientAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+        openTime = System.currentTimeMillis();
+        AccessLog.getInstance().logOpen(connectionId, clientAddress, openTime);
+        setState(ClientState.GREETING);
+    }
+
+    @Override
+    public void run() {
+        try {
+            clientSocket.setTcpNoDelay(true);
+            if (handshake()) {
+                if (udpRelay != null) {
+                    holdUdpAssociation();
+                }
+                else {
+                    relay();
+                }
+            }
+        }
+        catch (SocketTimeoutException e) {
+            log.info("Handshake timeout in state " + state);
+        }
+        catch (Socks5ProtocolException | IOException e) {
+            if (!closed) {
+                log.error(e.toString());
+            }
+        }
+        finally {
+            close();
+            logClosed();
+        }
+    }
+
+    private void setState(ClientState state) {
+        ProxyMetrics.getInstance().stateChanged(this.state, state);
+        long now = System.nanoTime();
+        if (this.state == null) {
+            stateTime = acceptTime;
+        }
+        Stage stage = Stage.ofTransition(this.state, state);
+        if (stage != null) {
+            ProxyMetrics.getInstance().stageFinished(stage, now - stateTime);
+        }
+        if (state == ClientState.CONNECTED) {
+            ProxyMetrics.getInstance().stageFinished(Stage.SETUP, now - acceptTime);
+        }
+        stateTime = now;
+        this.state = state;
+    }
+
+    /**
+     * Runs the SOCKS5 exchange up to the CONNECT reply, returns true when the relay can start.
+     */
+    private boolean handshake() throws IOException, Socks5ProtocolException {
+        InputStream in = clientSocket.getInputStream();
+        OutputStream out = clientSocket.getOutputStream();
+        clientSocket.setSoTimeout((int) ProxyConfig.GREETING_TIMEOUT_MILLIS);
+        HandshakeParser.Result result;
+        try {
+            while ((result = parser.parse(handshakeBuffer.flip())) == HandshakeParser.Result.NEED_MORE
+                    || result == HandshakeParser.Result.GREETING_DONE) {
+                if (result == HandshakeParser.Result.GREETING_DONE) {
+                    log.debug("Greeting received");
+                    if (!parser.isNoAuthOffered()) {
+                        log.error("No authentication method wasn't suggested");
+                        out.write(new byte[] { ProtocolParams.SUPPORTED_VERSION, ProtocolParams.ERROR_CODE });
+                        return false;
+                    }
+                    out.write(new byte[] { ProtocolParams.SUPPORTED_VERSION, ProtocolParams.NO_AUTH });
+                    setState(ClientState.CONNECTING);
+                    clientSocket.setSoTimeout((int) ProxyConfig.CONNECTING_TIMEOUT_MILLIS);
+                    handshakeBuffer.compact();
+                    continue;
+                }
+                handshakeBuffer.compact();
+                if (!handshakeBuffer.hasRemaining()) {
+                    throw new TooLongHandshakeMessage("Handshake message doesn't fit into " + HANDSHAKE_BUFFER_SIZE
+                            + " bytes");
+                }
+                int len = in.read(handshakeBuffer.array(), handshakeBuffer.position(), handshakeBuffer.remaining());
+                if (len < 0) {
+                    log.info("Client closed connection during handshake");
+                    return false;
+                }
+                handshakeBuffer.position(handshakeBuffer.position() + len);
+            }
+        }
+        catch (UnsupportedAddressType e) {
+            log.error(e.toString());
+            return reply(ProtocolParams.UNSUPPORTED_ADDRESS_TYPE);
+        }
+        return handleRequest();
+    }
+
+    private boolean handleRequest() throws IOException {
+        serverPort = parser.getPort();
+        if (parser.getCommand() == ProtocolParams.UDP_ASSOCIATE_COMMAND_CODE) {
+            return startUdpAssociation();
+        }
+        if (parser.getCommand() == ProtocolParams.BIND_COMMAND_CODE) {
+            return bind();
+        }
+        if (parser.getCommand() != ProtocolParams.SUPPORTED_COMMAND_CODE) {
+            log.error("Unsupported command code was received");
+            return reply(ProtocolParams.UNSUPPORTED_COMMAND_CODE);
+        }
+        switch (parser.getAddressType()) {
+            case ProtocolParams.ADDR_TYPE_IPV4, ProtocolParams.ADDR_TYPE_IPV6 -> {
+                int length = parser.getAddressType() == ProtocolParams.ADDR_TYPE_IPV4 ? 4 : 16;
+                InetAddress address = InetAddress.getByAddress(Arrays.copyOf(parser.getAddress(), length));
+                serverAddresses = List.of(address);
+                serverName = address.getHostAddress();
+                log.debug("Server has IP address : " + serverName + ":" + serverPort);
+                ParentProxy parent = UpstreamRules.getInstance().select(serverName);
+                if (parent != null) {
+                    return tunnel(parent, address);
+                }
+            }
+            case ProtocolParams.ADDR_TYPE_HOST -> {
+                serverName = new String(parser.getAddress(), 0, parser.getAddressLength(),
+                        StandardCharsets.US_ASCII);
+                log.debug("Server name : " + serverName + ":" + serverPort);
+                ParentProxy parent = UpstreamRules.getInstance().select(serverName);
+                if (parent != null) {
+                    return tunnel(parent, null);
+                }
+                if (!resolveServerName()) {
+                    return reply(ProtocolParams.UNAVAILABLE_HOST);
+                }
+            }
+            default -> {
+                log.error("Unsupported address type " + parser.getAddressType());
+                return reply(ProtocolParams.UNSUPPORTED_ADDRESS_TYPE);
+            }
+        }
+        return connectDirectly();
+    }
+
+    private boolean resolveServerName() {
+        setState(ClientState.WAIT_DNS);
+        serverAddresses = BlockingResolver.getInstance().resolve(serverName);
+        if (serverAddresses.isEmpty()) {
+            log.info("DNS server can't find domain " + serverName);
+            return false;
+        }
+        log.debug("Host addresses : " + serverAddresses);
+        return true;
+    }
+
+    private boolean connectDirectly() throws IOException {
+        setState(ClientState.WAIT_SERVER);
+        ConnectResult result;
+        try {
+            result = connect();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (result == null) {
+            log.info(serverName + " : timeout in state " + state);
+            return reply(ProtocolParams.TTL_EXPIRED);
+        }
+        if (result.error() != null) {
+            log.error(serverName + " : all " + serverAddresses.size() + " addresses failed");
+            ProxyMetrics.getInstance().connectFailure();
+            return reply(result.error() instanceof SocketTimeoutException ? ProtocolParams.TTL_EXPIRED
+                    : ProtocolParams.UNAVAILABLE_HOST);
+        }
+        serverSocket = result.socket();
+        serverAddress = result.address();
+        serverSocket.setTcpNoDelay(true);
+        return reply(ProtocolParams.CONNECTION_ESTABLISHED);
+    }
+
+    /**
+     * Connects through a parent proxy as ClientHandler does; the parent resolves host names itself. A
+     * failed tunnel is answered with the failure, or with proxy.upstream.failover set and unless the
+     * parent refused the request, tried on the next parent of the destination's route and directly
+     * when the route ends with a direct rule.
+     */
+    private boolean tunnel(ParentProxy parent, InetAddress address) throws IOException {
+        setState(ClientState.WAIT_SERVER);
+        while (true) {
+            VirtualTunnelPool.Tunnel tunnel = VirtualTunnelPool.getInstance().open(parent, serverName, address,
+                    serverPort);
+            if (tunnel.socket() != null) {
+                serverSocket = tunnel.socket();
+                serverEgress = tunnel.egress();
+                serverSocket.setTcpNoDelay(true);
+                return reply(ProtocolParams.CONNECTION_ESTABLISHED);
+            }
+            if (tunnel.refused()) {
+                return reply(tunnel.responseCode());
+            }
+            if (!ProxyConfig.UPSTREAM_FAILOVER) {
+                log.info(serverName + " : " + parent + " failed");
+                return reply(tunnel.responseCode());
+            }
+            UpstreamRules.Route route = UpstreamRules.getInstance().route(serverName);
+            int next = route.parents().indexOf(parent) + 1;
+            if (next < route.parents().size()) {
+                log.info(serverName + " : " + parent + " failed, trying " + route.parents().get(next));
+                parent = route.parents().get(next);
+                continue;
+            }
+            if (!route.direct()) {
+                log.info(serverName + " : " + parent + " failed");
+                return reply(tunnel.responseCode());
+            }
+            log.info(serverName + " : " + parent + " failed, connecting directly");
+            if (address == null && !resolveServerName()) {
+                return reply(ProtocolParams.UNAVAILABLE_HOST);
+            }
+            return connectDirectly();
+        }
+    }
+
+    /**
+     * Sends the first BIND reply, then waits on a pooled listener for a connection from the host the
+     * request named. A host name is resolved first and a request without a concrete address is
+     * refused. The second reply and the relay follow as for CONNECT.
+     */
+    private boolean bind() throws IOException {
+        List<InetAddress> expectedAddresses;
+        if (parser.getAddressType() == ProtocolParams.ADDR_TYPE_HOST) {
+            serverName = new String(parser.getAddress(), 0, parser.getAddressLength(), StandardCharsets.US_ASCII);
+            setState(ClientState.WAIT_DNS);
+            expectedAddresses = BlockingResolver.getInstance().resolve(serverName);
+            if (expectedAddresses.isEmpty()) {
+                log.info("DNS server can't find domain " + serverName);
+                return reply(ProtocolParams.UNAVAILABLE_HOST);
+            }
+        }
+        else {
+            int length = parser.getAddressType() == ProtocolParams.ADDR_TYPE_IPV4 ? 4 : 16;
+            InetAddress address = InetAddress.getByAddress(Arrays.copyOf(parser.getAddress(), length));
+            serverName = address.getHostAddress();
+            if (address.isAnyLocalAddress()) {
+                log.info(clientSocket.getInetAddress().getHostAddress() + " : BIND without a peer address refused");
+                return reply(ProtocolParams.NOT_ALLOWED);
+            }
+            expectedAddresses = List.of(address);
+        }
+        ServerSocketChannel listener;
+        try {
+            listener = BindListenerPool.getInstance().acquire();
+        }
+        catch (IOException e) {
+            log.error("BIND listener wasn't opened : " + e);
+            return reply(ProtocolParams.GENERAL_FAILURE);
+        }
+        try {
+            listener.configureBlocking(true);
+            InetAddress listenAddress = listener.socket().getInetAddress();
+            if (listenAddress.isAnyLocalAddress()) {
+                listenAddress = clientSocket.getLocalAddress();
+            }
+            writeReply(ProtocolParams.CONNECTION_ESTABLISHED, listenAddress, listener.socket().getLocalPort());
+            setState(ClientState.WAIT_SERVER);
+            long deadline = System.currentTimeMillis() + ProxyConfig.BIND_TIMEOUT_MILLIS;
+            while (true) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    log.info(serverName + " : timeout in state " + state);
+                    return reply(ProtocolParams.TTL_EXPIRED);
+                }
+                listener.socket().setSoTimeout((int) wait);
+                Socket socket;
+                try {
+                    socket = listener.socket().accept();
+                }
+                catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (!expectedAddresses.contains(socket.getInetAddress())) {
+                    log.info("BIND connection from unexpected host " + socket.getInetAddress().getHostAddress()
+                            + " closed");
+                    closeSocket(socket);
+                    continue;
+                }
+                serverSocket = socket;
+                break;
+            }
+        }
+        finally {
+            listener.socket().setSoTimeout(0);
+            listener.configureBlocking(false);
+            BindListenerPool.getInstance().release(listener);
+        }
+        serverAddress = serverSocket.getInetAddress();
+        serverPort = serverSocket.getPort();
+        serverAddresses = List.of(serverAddress);
+        serverSocket.setTcpNoDelay(true);
+        log.debug("BIND connection from " + serverSocket.getRemoteSocketAddress());
+        return reply(ProtocolParams.CONNECTION_ESTABLISHED);
+    }
+
+    private boolean startUdpAssociation() throws IOException {
+        serverName = "udp";
+        InetAddress requestedAddress = null;
+        if (parser.getAddressType() != ProtocolParams.ADDR_TYPE_HOST) {
+            int length = parser.getAddressType() == ProtocolParams.ADDR_TYPE_IPV4 ? 4 : 16;
+            InetAddress address = InetAddress.getByAddress(Arrays.copyOf(parser.getAddress(), length));
+            if (!address.isAnyLocalAddress()) {
+                requestedAddress = address;
+            }
+        }
+        try {
+            udpRelay = new VirtualUdpRelay(clientSocket.getLocalAddress(), clientSocket.getInetAddress(),
+                    requestedAddress, serverPort);
+        }
+        catch (IOException e) {
+            log.error("UDP association wasn't opened : " + e);
+            return reply(ProtocolParams.GENERAL_FAILURE);
+        }
+        return reply(ProtocolParams.CONNECTION_ESTABLISHED);
+    }
+
+    /**
+     * Races connection attempts as ServerHandler does: a new attempt starts every
+     * proxy.connect.attemptDelay or when the previous one fails or times out, each on its own virtual
+     * thread. Failed and overtaken addresses are remembered so the next connections try them last.
+     * Returns the first connected attempt, the last failed one when every address failed, or null
+     * when the connect timeout expired first.
+     */
+    private ConnectResult connect() throws InterruptedException {
+        List<InetAddress> addresses = FailedAddresses.getInstance().sort(serverAddresses, System.currentTimeMillis());
+        BlockingQueue<ConnectResult> results = new LinkedBlockingQueue<>();
+        List<Socket> sockets = new ArrayList<>(addresses.size());
+        Map<Socket, EgressAddress> egresses = new HashMap<>();
+        List<InetAddress> pending = new ArrayList<>(addresses.size());
+        long deadline = System.currentTimeMillis() + ProxyConfig.WAIT_SERVER_TIMEOUT_MILLIS;
+        int nextAddress = 0;
+        ConnectResult result = null;
+        try {
+            while (true) {
+                if (nextAddress < addresses.size()) {
+                    InetAddress address = addresses.get(nextAddress++);
+                    Socket socket = new Socket();
+                    sockets.add(socket);
+                    pending.add(address);
+                    log.debug("Try to connect to server : " + address.getHostAddress() + ":" + serverPort);
+                    try {
+                        EgressAddress egress = EgressPool.getInstance().bind(address, socket::bind);
+                        if (egress != null) {
+                            egresses.put(socket, egress);
+                        }
+                    }
+                    catch (IOException e) {
+                        results.add(new ConnectResult(address, socket, e));
+                        continue;
+                    }
+                    Thread.ofVirtual().start(() -> {
+                        try {
+                            socket.connect(new InetSocketAddress(address, serverPort),
+                                    (int) ProxyConfig.CONNECT_ATTEMPT_TIMEOUT_MILLIS);
+                            results.add(new ConnectResult(address, socket, null));
+                        }
+                        catch (IOException e) {
+                            results.add(new ConnectResult(address, socket, e));
+                        }
+                    });
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (nextAddress < addresses.size() && ProxyConfig.CONNECT_ATTEMPT_DELAY_MILLIS > 0) {
+                    wait = Math.min(wait, ProxyConfig.CONNECT_ATTEMPT_DELAY_MILLIS);
+                }
+                ConnectResult attempt = wait > 0 ? results.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (attempt == null) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        return null;
+                    }
+                    continue;
+                }
+                int index = pending.indexOf(attempt.address());
+                if (attempt.error() == null) {
+                    for (InetAddress overtaken : pending.subList(0, index)) {
+                        FailedAddresses.getInstance().recordFailure(overtaken, System.currentTimeMillis());
+                    }
+                    FailedAddresses.getInstance().recordSuccess(attempt.address());
+                    result = attempt;
+                    return result;
+                }
+                log.info(attempt.address().getHostAddress() + ":" + serverPort + " : " + attempt.error());
+                ProxyMetrics.getInstance().connectAttemptFailure();
+                FailedAddresses.getInstance().recordFailure(attempt.address(), System.currentTimeMillis());
+                pending.remove(index);
+                if (pending.isEmpty() && nextAddress == addresses.size()) {
+                    return attempt;
+                }
+            }
+        }
+        finally {
+            for (Socket socket : sockets) {
+                if (result == null || socket != result.socket()) {
+                    closeSocket(socket);
+                    EgressPool.getInstance().release(egresses.get(socket));
+                }
+                else {
+                    serverEgress = egresses.get(socket);
+                }
+            }
+        }
+    }
+
+    private boolean reply(byte responseCode) throws IOException {
+        this.responseCode = responseCode;
+        setState(ClientState.CONNECTING);
+        ProxyMetrics.getInstance().reply(responseCode);
+        InetAddress boundAddress = serverAddress;
+        int boundPort = serverPort;
+        if (udpRelay != null && responseCode == ProtocolParams.CONNECTION_ESTABLISHED) {
+            boundAddress = udpRelay.getLocalAddress().getAddress();
+            boundPort = udpRelay.getLocalAddress().getPort();
+        }
+        writeReply(responseCode, boundAddress, boundPort);
+        log.debug("Response sent : " + responseCode);
+        return responseCode == ProtocolParams.CONNECTION_ESTABLISHED;
+    }
+
+    private void writeReply(byte code, InetAddress address, int port) throws IOException {
+        ByteBuffer reply = ByteBuffer.allocate(22);
+        reply.put(ProtocolParams.SUPPORTED_VERSION).put(code).put((byte) 0x00);
+        if (address instanceof Inet6Address) {
+            reply.put(ProtocolParams.ADDR_TYPE_IPV6).put(address.getAddress());
+        }
+        else {
+            reply.put(ProtocolParams.ADDR_TYPE_IPV4);
+            if (address != null) {
+                reply.put(address.getAddress(), 0, 4);
+            }
+            else {
+                reply.putInt(0);
+            }
+        }
+        reply.putShort((short) port);
+        clientSocket.getOutputStream().write(reply.array(), 0, reply.position());
+    }
+
+    private void relay() throws IOException {
+        setState(ClientState.CONNECTED);
+        connectedTime = System.nanoTime();
+        lastActivity = System.currentTimeMillis();
+        clientSocket.setSoTimeout((int) ProxyConfig.IDLE_TIMEOUT_MILLIS);
+        serverSocket.setSoTimeout((int) ProxyConfig.IDLE_TIMEOUT_MILLIS);
+        shaping = TrafficShaper.getInstance().open(clientSocket.getInetAddress(), serverName);
+        int earlyData = handshakeBuffer.remaining();
+        if (earlyData > 0) {
+            log.debug(serverName + " : " + earlyData + " bytes of early data");
+            serverSocket.getOutputStream().write(handshakeBuffer.array(), handshakeBuffer.position(), earlyData);
+            requestSentTime = System.nanoTime();
+            bytesUp += earlyData;
+            ProxyMetrics.getInstance().bytesFromClient(earlyData);
+        }
+        Thread downstream = Thread.ofVirtual().name("relay-down-" + connectionId).start(() -> {
+            bytesDown = pump(serverSocket, clientSocket, false);
+        });
+        bytesUp += pump(clientSocket, serverSocket, true);
+        try {
+            downstream.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Relays datagrams on a second virtual thread while this one waits for the end of the TCP
+     * connection, which ends the association. Data the client sends over TCP is discarded.
+     */
+    private void holdUdpAssociation() throws IOException {
+        setState(ClientState.CONNECTED);
+        lastActivity = System.currentTimeMillis();
+        clientSocket.setSoTimeout((int) ProxyConfig.IDLE_TIMEOUT_MILLIS);
+        Thread relayThread = Thread.ofVirtual().name("udp-relay-" + connectionId).start(udpRelay);
+        InputStream in = clientSocket.getInputStream();
+        byte[] discarded = new byte[512];
+        try {
+            while (true) {
+                try {
+                    if (in.read(discarded) < 0) {
+                        log.debug(serverName + " : client closed the association");
+                        return;
+                    }
+                    lastActivity = System.currentTimeMillis();
+                }
+                catch (SocketTimeoutException e) {
+                    long idleTime = System.currentTimeMillis() - Math.max(lastActivity, udpRelay.getLastActivity());
+                    if (idleTime >= ProxyConfig.IDLE_TIMEOUT_MILLIS) {
+                        log.info(serverName + " : idle timeout");
+                        return;
+                    }
+                }
+            }
+        }
+        finally {
+            udpRelay.close();
+            try {
+                relayThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bytesUp += udpRelay.getBytesUp();
+            bytesDown += udpRelay.getBytesDown();
+        }
+    }
+
+    /**
+     * Copies one direction until end of stream. The client's end of stream half-closes the server
+     * socket, the server's closes the session like ClientHandler does, and so do errors and the idle
+     * timeout, which also ends the opposite direction. Bandwidth limits park the thread until the
+     * buckets refill. Returns the bytes copied.
+     */
+    private long pump(Socket from, Socket to, boolean upstream) {
+        byte[] buffer = new byte[ProxyConfig.RELAY_SEGMENT_SIZE];
+        long total = 0;
+        boolean firstByte = true;
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            while (true) {
+                int len;
+                try {
+                    len = in.read(buffer, 0, shapedReadSize(buffer.length));
+                }
+                catch (SocketTimeoutException e) {
+                    long idleTime = System.currentTimeMillis() - lastActivity;
+                    if (idleTime < ProxyConfig.IDLE_TIMEOUT_MILLIS) {
+                        continue;
+                    }
+                    log.info(serverName + " : idle timeout");
+                    close();
+                    return total;
+                }
+                if (len < 0) {
+                    if (upstream) {
+                        to.shutdownOutput();
+                    }
+                    else {
+                        close();
+                    }
+                    return total;
+                }
+                if (firstByte) {
+                    firstByte = false;
+                    if (upstream) {
+                        requestSentTime = System.nanoTime();
+                    }
+                    else {
+                        long waitStart = requestSentTime != 0 ? requestSentTime : connectedTime;
+                        ProxyMetrics.getInstance().stageFinished(Stage.TTFB, System.nanoTime() - waitStart);
+                    }
+                }
+                out.write(buffer, 0, len);
+                if (shaping != null) {
+                    shaping.consume(len, System.nanoTime());
+                }
+                total += len;
+                lastActivity = System.currentTimeMillis();
+                if (upstream) {
+                    ProxyMetrics.getInstance().bytesFromClient(len);
+                }
+                else {
+                    ProxyMetrics.getInstance().bytesToClient(len);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug(serverName + " : " + len + " bytes " + (upstream ? "sent to server" : "sent to client"));
+                }
+            }
+        }
+        catch (IOException e) {
+            if (!closed) {
+                log.error(e.toString());
+            }
+            close();
+            return total;
+        }
+    }
+
+    private int shapedReadSize(int size) throws IOException {
+        if (shaping == null) {
+            return size;
+        }
+        long allowance;
+        while ((allowance = shaping.allowance(System.nanoTime())) <= 0) {
+            try {
+                Thread.sleep(shaping.pause(System.nanoTime()));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return (int) Math.min(size, allowance);
+    }
+
+    private synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeSocket(clientSocket);
+        if (udpRelay != null) {
+            udpRelay.close();
+        }
+        if (serverSocket != null) {
+            closeSocket(serverSocket);
+        }
+    }
+
+    private void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+
+    private void logClosed() {
+        log.debug(serverName + " : " + "client closed");
+        TrafficShaper.getInstance().close(shaping);
+        AdmissionControl.getInstance().release(clientSocket.getInetAddress());
+        EgressPool.getInstance().release(serverEgress);
+        ProxyMetrics.getInstance().connectionClosed(state);
+        long now = System.currentTimeMillis();
+        InetAddress loggedAddress = serverAddress;
+        if (loggedAddress == null && serverAddresses != null && !serverAddresses.isEmpty()) {
+            loggedAddress = serverAddresses.get(0);
+        }
+        AccessLog.getInstance().logClose(connectionId, clientAddress, serverName, serverPort,
+                loggedAddress == null ? null : loggedAddress.getHostAddress(), responseCode, state.name(), bytesUp,
+                bytesDown, now - openTime, now);
+    }
+}
@@ -0,0 +1,230 @@
+package proxy.vthread;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+import proxy.egress.EgressAddress;
+import proxy.egress.EgressPool;
+import proxy.metrics.ProxyMetrics;
+import proxy.protocol.ProtocolParams;
+import proxy.upstream.ParentProtocol;
+import proxy.upstream.ParentProxy;
+import proxy.upstream.ParentType;
+import proxy.upstream.UpstreamRules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking counterpart of TunnelPool for the virtual-thread engine. Every parent proxy has one pool
+ * of proxy.upstream.poolSize connected and authenticated sockets shared by all sessions, topped up
+ * by its own virtual thread. Sessions take the most recently added socket while the oldest ones
+ * expire after proxy.upstream.maxIdle. Replies are read a byte at a time, so nothing the parent
+ * sends after the reply is consumed here. Sockets are bound through the EgressPool, and an opened
+ * tunnel hands its egress address to the session.
+ */
+final class VirtualTunnelPool {
+    /**
+     * An opened tunnel, or the reply code of a failed one; refused when the parent itself answered with it.
+     */
+    record Tunnel(Socket socket, EgressAddress egress, byte responseCode, boolean refused) {}
+
+    private record IdleSocket(Socket socket, long since) {}
+
+    private static final class Slot {
+        private final ParentProxy parent;
+        private final LinkedBlockingDeque<IdleSocket> idle = new LinkedBlockingDeque<>();
+        private final Semaphore taken = new Semaphore(0);
+
+        private Slot(ParentProxy parent) {
+            this.parent = parent;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualTunnelPool.class);
+    private static final VirtualTunnelPool instance = new VirtualTunnelPool();
+    private final Map<ParentProxy, Slot> slots = new HashMap<>();
+    private final Map<Socket, EgressAddress> egresses = new ConcurrentHashMap<>();
+
+    private VirtualTunnelPool() {}
+
+    static VirtualTunnelPool getInstance() {
+        return instance;
+    }
+
+    void start() {
+        for (ParentProxy parent : UpstreamRules.getInstance().getParents()) {
+            Slot slot = new Slot(parent);
+            slots.put(parent, slot);
+            Thread.ofVirtual().name("upstream-" + parent).start(() -> fill(slot));
+        }
+    }
+
+    private void fill(Slot slot) {
+        while (true) {
+            try {
+                expire(slot);
+                if (slot.idle.size() < ProxyConfig.UPSTREAM_POOL_SIZE) {
+                    try {
+                        slot.idle.addLast(new IdleSocket(handshake(slot.parent), System.currentTimeMillis()));
+                    }
+                    catch (IOException e) {
+                        log.info(slot.parent + " : " + e);
+                        Thread.sleep(ProxyConfig.UPSTREAM_RETRY_MILLIS);
+                    }
+                }
+                else if (slot.taken.tryAcquire(ProxyConfig.UPSTREAM_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                    slot.taken.drainPermits();
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void expire(Slot slot) {
+        long oldest = System.currentTimeMillis() - ProxyConfig.UPSTREAM_MAX_IDLE_MILLIS;
+        IdleSocket first;
+        while ((first = slot.idle.peekFirst()) != null && first.since() < oldest) {
+            if (slot.idle.remove(first)) {
+                close(first.socket());
+            }
+        }
+    }
+
+    /**
+     * Connects through the parent with a pooled socket if there is one; a pooled socket the parent
+     * closed before replying is replaced by a new connection once. The reply is awaited for at most
+     * proxy.connect.attemptTimeout.
+     */
+    Tunnel open(ParentProxy parent, String host, InetAddress address, int port) {
+        Slot slot = slots.get(parent);
+        IdleSocket pooled = slot.idle.pollLast();
+        ProxyMetrics.getInstance().upstreamTunnel(pooled != null);
+        if (pooled != null) {
+            slot.taken.release();
+            try {
+                return request(pooled.socket(), parent, host, address, port);
+            }
+            catch (SocketTimeoutException e) {
+                log.info(parent + " : no reply to CONNECT " + host + ":" + port);
+                close(pooled.socket());
+                ProxyMetrics.getInstance().upstreamFailure();
+                return new Tunnel(null, null, ProtocolParams.TTL_EXPIRED, false);
+            }
+            catch (IOException e) {
+                log.debug("Pooled connection to " + parent + " failed, retry on a new one : " + e);
+                close(pooled.socket());
+            }
+        }
+        Socket socket = null;
+        try {
+            socket = handshake(parent);
+            return request(socket, parent, host, address, port);
+        }
+        catch (IOException e) {
+            log.info(parent + " : " + e);
+            if (socket != null) {
+                close(socket);
+            }
+            ProxyMetrics.getInstance().upstreamFailure();
+            return new Tunnel(null, null, e instanceof SocketTimeoutException ? ProtocolParams.TTL_EXPIRED
+                    : ProtocolParams.GENERAL_FAILURE, false);
+        }
+    }
+
+    private Socket handshake(ParentProxy parent) throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (!parent.getAddress().isUnresolved()) {
+                EgressAddress egress = EgressPool.getInstance().bind(parent.getAddress().getAddress(), socket::bind);
+                if (egress != null) {
+                    egresses.put(socket, egress);
+                }
+            }
+            socket.connect(parent.getAddress(), (int) ProxyConfig.CONNECT_ATTEMPT_TIMEOUT_MILLIS);
+            socket.setSoTimeout((int) ProxyConfig.CONNECT_ATTEMPT_TIMEOUT_MILLIS);
+            if (parent.getType() == ParentType.SOCKS5) {
+                ByteBuffer buffer = ByteBuffer.allocate(ParentProtocol.MAX_REPLY_LENGTH);
+                ParentProtocol.putGreeting(buffer, parent);
+                write(socket, buffer);
+                read(socket, buffer, ParentProtocol.METHOD_REPLY_LENGTH);
+                if (ParentProtocol.needsAuthentication(buffer, parent)) {
+                    buffer.clear();
+                    ParentProtocol.putAuthentication(buffer, parent);
+                    write(socket, buffer);
+                    read(socket, buffer, ParentProtocol.AUTH_REPLY_LENGTH);
+                    ParentProtocol.checkAuthentication(buffer);
+                }
+            }
+        }
+        catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Sends the CONNECT; a refused request closes the socket and returns only the reply code.
+     */
+    private Tunnel request(Socket socket, ParentProxy parent, String host, InetAddress address, int port)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ParentProtocol.MAX_REPLY_LENGTH);
+        ParentProtocol.putConnect(buffer, parent, host, address, port);
+        write(socket, buffer);
+        InputStream input = socket.getInputStream();
+        while (ParentProtocol.replyLength(buffer, parent) == 0) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("too long reply from parent proxy");
+            }
+            int next = input.read();
+            if (next < 0) {
+                throw new IOException("connection closed by parent proxy");
+            }
+            buffer.put((byte) next);
+        }
+        byte code = ParentProtocol.replyCode(buffer, parent);
+        if (code != ProtocolParams.CONNECTION_ESTABLISHED) {
+            log.info(parent + " : CONNECT to " + host + ":" + port + " refused with code " + code);
+            close(socket);
+            ProxyMetrics.getInstance().upstreamFailure();
+            return new Tunnel(null, null, code, true);
+        }
+        return new Tunnel(socket, egresses.remove(socket), code, false);
+    }
+
+    private static void write(Socket socket, ByteBuffer buffer) throws IOException {
+        socket.getOutputStream().write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    private static void read(Socket socket, ByteBuffer buffer, int length) throws IOException {
+        int read = socket.getInputStream().readNBytes(buffer.array(), 0, length);
+        if (read < length) {
+            throw new IOException("connection closed by parent proxy");
+        }
+        buffer.position(length);
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+        EgressPool.getInstance().release(egresses.remove(socket));
+    }
+}
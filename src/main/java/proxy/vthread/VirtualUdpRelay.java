@@ -0,0 +1,206 @@
+package proxy.vthread;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proxy.config.ProxyConfig;
+import proxy.dns.BlockingResolver;
+import proxy.metrics.ProxyMetrics;
+import proxy.protocol.UdpHeader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UDP ASSOCIATE relay of the virtual-thread engine, the blocking counterpart of UdpAssociation with the
+ * same in-place header handling and source filtering. It runs on a virtual thread of its own until the
+ * session closes the channel; host names are resolved inline with BlockingResolver.
+ */
+class VirtualUdpRelay implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(VirtualUdpRelay.class);
+    private static final int BUFFER_SIZE = 65536;
+    private final DatagramChannel channel;
+    private final InetSocketAddress localAddress;
+    private final InetAddress clientAddress;
+    private InetSocketAddress clientUdpAddress;
+    private final UdpHeader header = new UdpHeader();
+    private final UdpHeader lastHeader = new UdpHeader();
+    private InetSocketAddress lastDestination;
+    private final Map<InetSocketAddress, Boolean> destinations = boundedMap();
+    private final Map<String, InetAddress> resolvedHosts = boundedMap();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long bytesUp;
+    private volatile long bytesDown;
+
+    VirtualUdpRelay(InetAddress bindAddress, InetAddress clientAddress, InetAddress requestedAddress,
+                    int requestedPort) throws IOException {
+        this.clientAddress = clientAddress;
+        if (requestedPort != 0) {
+            clientUdpAddress = new InetSocketAddress(requestedAddress != null ? requestedAddress : clientAddress,
+                    requestedPort);
+        }
+        channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(bindAddress, 0));
+            localAddress = (InetSocketAddress) channel.getLocalAddress();
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static <K, V> Map<K, V> boundedMap() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > ProxyConfig.UDP_MAX_DESTINATIONS;
+            }
+        };
+    }
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getBytesUp() {
+        return bytesUp;
+    }
+
+    long getBytesDown() {
+        return bytesDown;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                buffer.clear().position(UdpHeader.MAX_LENGTH);
+                InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip().position(UdpHeader.MAX_LENGTH);
+                lastActivity = System.currentTimeMillis();
+                if (isFromClient(source)) {
+                    relayFromClient();
+                }
+                else if (destinations.get(source) != null) {
+                    relayToClient(source);
+                }
+                else {
+                    log.debug("Datagram from unknown source " + source + " dropped");
+                    ProxyMetrics.getInstance().udpDatagramDropped();
+                }
+            }
+        }
+        catch (ClosedChannelException e) {
+            log.debug("UDP association on " + localAddress + " closed");
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+
+    private boolean isFromClient(InetSocketAddress source) {
+        if (clientUdpAddress != null) {
+            return clientUdpAddress.equals(source);
+        }
+        if (!clientAddress.equals(source.getAddress())) {
+            return false;
+        }
+        clientUdpAddress = source;
+        return true;
+    }
+
+    private void relayFromClient() throws IOException {
+        if (!header.parse(buffer)) {
+            log.debug("Malformed or fragmented datagram from client dropped");
+            ProxyMetrics.getInstance().udpDatagramDropped();
+            return;
+        }
+        InetSocketAddress destination;
+        if (lastDestination != null && header.sameDestination(lastHeader)) {
+            destination = lastDestination;
+        }
+        else if (header.isHost()) {
+            String host = header.getHost();
+            InetAddress address = resolvedHosts.get(host);
+            if (address == null) {
+                address = selectAddress(BlockingResolver.getInstance().resolve(host));
+                if (address == null) {
+                    log.info("DNS server can't find domain " + host + ", datagram dropped");
+                    ProxyMetrics.getInstance().udpDatagramDropped();
+                    return;
+                }
+                resolvedHosts.put(host, address);
+            }
+            destination = new InetSocketAddress(address, header.getPort());
+        }
+        else {
+            destination = new InetSocketAddress(header.getAddress(), header.getPort());
+        }
+        lastHeader.copyFrom(header);
+        lastDestination = destination;
+        int len = buffer.remaining();
+        if (!transmit(buffer, destination)) {
+            return;
+        }
+        destinations.put(destination, Boolean.TRUE);
+        bytesUp += len;
+        ProxyMetrics.getInstance().udpDatagramFromClient();
+        ProxyMetrics.getInstance().bytesFromClient(len);
+    }
+
+    private InetAddress selectAddress(List<InetAddress> addresses) {
+        for (InetAddress address : addresses) {
+            if (address.getClass() == localAddress.getAddress().getClass()) {
+                return address;
+            }
+        }
+        return addresses.isEmpty() ? null : addresses.get(0);
+    }
+
+    private void relayToClient(InetSocketAddress source) throws IOException {
+        int len = buffer.remaining();
+        UdpHeader.writeBefore(buffer, UdpHeader.MAX_LENGTH, source);
+        if (!transmit(buffer, clientUdpAddress)) {
+            return;
+        }
+        bytesDown += len;
+        ProxyMetrics.getInstance().udpDatagramToClient();
+        ProxyMetrics.getInstance().bytesToClient(len);
+    }
+
+    private boolean transmit(ByteBuffer datagram, InetSocketAddress target) throws ClosedChannelException {
+        try {
+            channel.send(datagram, target);
+            return true;
+        }
+        catch (ClosedChannelException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            log.info("Datagram to " + target + " wasn't sent : " + e);
+            ProxyMetrics.getInstance().udpDatagramDropped();
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
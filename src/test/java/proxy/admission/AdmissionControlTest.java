@@ -0,0 +1,34 @@
+package proxy.admission;
+
+import org.junit.jupiter.api.Test;
+import proxy.config.ProxyConfig;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AdmissionControlTest {
+    @Test
+    void refusesConnectionsWhileDnsBacklogIsFull() throws Exception {
+        AdmissionControl admission = AdmissionControl.getInstance();
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        int connections = admission.getConnections();
+        for (int i = 0; i < ProxyConfig.ADMISSION_DNS_BACKLOG; ++i) {
+            admission.dnsLookupStarted();
+        }
+        try {
+            assertEquals(Rejection.DNS, admission.admit(client));
+            assertEquals(connections, admission.getConnections());
+        }
+        finally {
+            admission.dnsLookupFinished();
+        }
+        assertNull(admission.admit(client));
+        admission.release(client);
+        assertEquals(connections, admission.getConnections());
+        for (int i = 1; i < ProxyConfig.ADMISSION_DNS_BACKLOG; ++i) {
+            admission.dnsLookupFinished();
+        }
+    }
+}
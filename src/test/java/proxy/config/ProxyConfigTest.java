@@ -0,0 +1,38 @@
+package proxy.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ProxyConfigTest {
+    private static void assertParsed(String value, String host, int port) {
+        InetSocketAddress address = ProxyConfig.hostAndPort(value, 53);
+        assertEquals(host, address.getHostString());
+        assertEquals(port, address.getPort());
+    }
+
+    @Test
+    void parsesIpv4AndHostNames() {
+        assertParsed("127.0.0.1", "127.0.0.1", 53);
+        assertParsed("127.0.0.1:5353", "127.0.0.1", 5353);
+        assertParsed("localhost:54", "localhost", 54);
+    }
+
+    @Test
+    void parsesIpv6Literals() {
+        assertParsed("::1", "0:0:0:0:0:0:0:1", 53);
+        assertParsed("2001:db8::53", "2001:db8:0:0:0:0:0:53", 53);
+        assertParsed("[::1]", "0:0:0:0:0:0:0:1", 53);
+        assertParsed("[2001:db8::53]:5353", "2001:db8:0:0:0:0:0:53", 5353);
+    }
+
+    @Test
+    void rejectsMalformedBrackets() {
+        assertThrows(IllegalArgumentException.class, () -> ProxyConfig.hostAndPort("[::1", 53));
+        assertThrows(IllegalArgumentException.class, () -> ProxyConfig.hostAndPort("[::1]53", 53));
+        assertThrows(NumberFormatException.class, () -> ProxyConfig.hostAndPort("[::1]:x", 53));
+    }
+}
@@ -0,0 +1,46 @@
+package proxy.egress;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EgressPoolTest {
+    private static List<String> parse(String value) throws Exception {
+        return EgressPool.parseAddresses(value).stream().map(InetAddress::getHostAddress).toList();
+    }
+
+    @Test
+    void parsesSingleAddresses() throws Exception {
+        assertEquals(List.of("192.0.2.1", "0:0:0:0:0:0:0:1"), parse(" 192.0.2.1, ,::1 "));
+    }
+
+    @Test
+    void expandsIpv4RangeAcrossOctets() throws Exception {
+        assertEquals(List.of("192.0.2.254", "192.0.2.255", "192.0.3.0", "192.0.3.1"),
+                parse("192.0.2.254-192.0.3.1"));
+        assertEquals(List.of("10.0.0.1"), parse("10.0.0.1 - 10.0.0.1"));
+    }
+
+    @Test
+    void expandsIpv6Range() throws Exception {
+        assertEquals(List.of("2001:db8:0:0:0:0:0:ffff", "2001:db8:0:0:0:0:1:0"),
+                parse("2001:db8::ffff-2001:db8::1:0"));
+    }
+
+    @Test
+    void rejectsBadRanges() {
+        assertThrows(IllegalArgumentException.class, () -> parse("192.0.2.10-192.0.2.1"));
+        assertThrows(IllegalArgumentException.class, () -> parse("192.0.2.1-::1"));
+        assertThrows(IllegalArgumentException.class, () -> parse("192.0.2.1-example.org"));
+        assertThrows(IllegalArgumentException.class, () -> parse("10.0.0.0-10.0.255.255"));
+    }
+
+    @Test
+    void rangeMayHoldTheLimit() throws Exception {
+        assertEquals(EgressPool.MAX_RANGE_SIZE, parse("10.0.0.0-10.0.3.255").size());
+    }
+}
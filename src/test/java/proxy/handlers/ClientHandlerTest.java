@@ -0,0 +1,164 @@
+package proxy.handlers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import proxy.Reactor;
+import proxy.admission.AdmissionControl;
+import proxy.protocol.ProtocolParams;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Runs a ClientHandler on a real reactor. The test JVM has proxy.timeout.connect set to 300 ms.
+ */
+class ClientHandlerTest {
+    private final List<SocketChannel> fillers = new ArrayList<>();
+    private ServerSocketChannel blackhole;
+    private ServerSocketChannel listener;
+    private Reactor reactor;
+
+    @BeforeAll
+    static void startBindListeners() throws IOException {
+        BindListenerPool.getInstance().start("127.0.0.1");
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        reactor = new Reactor(0, "127.0.0.1", 0);
+        Thread thread = new Thread(reactor, "test-reactor");
+        thread.setDaemon(true);
+        thread.start();
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        blackhole = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0), 1);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (SocketChannel filler : fillers) {
+            filler.close();
+        }
+        blackhole.close();
+        listener.close();
+    }
+
+    /**
+     * Fills the accept queue of a listener that never accepts, so that further connects hang.
+     */
+    private InetSocketAddress unresponsiveServer() throws Exception {
+        InetSocketAddress address = (InetSocketAddress) blackhole.getLocalAddress();
+        while (true) {
+            SocketChannel filler = SocketChannel.open();
+            filler.configureBlocking(false);
+            fillers.add(filler);
+            if (!filler.connect(address)) {
+                Thread.sleep(200);
+                if (!filler.finishConnect()) {
+                    return address;
+                }
+            }
+        }
+    }
+
+    private Socket connectClient() throws IOException {
+        Socket client = new Socket();
+        client.connect(listener.getLocalAddress());
+        client.setSoTimeout(3000);
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        InetSocketAddress remoteAddress = (InetSocketAddress) accepted.getRemoteAddress();
+        assertNull(AdmissionControl.getInstance().admit(remoteAddress.getAddress()));
+        reactor.addClient(accepted, remoteAddress);
+        reactor.wakeup();
+        return client;
+    }
+
+    private static byte[] request(byte command, InetSocketAddress server) {
+        ByteBuffer request = ByteBuffer.allocate(10);
+        request.put(new byte[] { 0x05, command, 0x00, 0x01 }).put(server.getAddress().getAddress())
+                .putShort((short) server.getPort());
+        return request.array();
+    }
+
+    private static void greet(OutputStream out, DataInputStream in) throws IOException {
+        out.write(new byte[] { 0x05, 0x01, 0x00 });
+        byte[] method = new byte[2];
+        in.readFully(method);
+        assertArrayEquals(new byte[] { 0x05, 0x00 }, method);
+    }
+
+    @Test
+    void connectTimeoutIsAnsweredWithTtlExpired() throws Exception {
+        InetSocketAddress server = unresponsiveServer();
+        try (Socket client = connectClient()) {
+            OutputStream out = client.getOutputStream();
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            greet(out, in);
+            out.write(request(ProtocolParams.SUPPORTED_COMMAND_CODE, server));
+            byte[] reply = new byte[10];
+            in.readFully(reply);
+            assertEquals(ProtocolParams.SUPPORTED_VERSION, reply[0]);
+            assertEquals(ProtocolParams.TTL_EXPIRED, reply[1]);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void bindWithoutPeerAddressIsRefused() throws Exception {
+        try (Socket client = connectClient()) {
+            OutputStream out = client.getOutputStream();
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            greet(out, in);
+            out.write(request(ProtocolParams.BIND_COMMAND_CODE, new InetSocketAddress("0.0.0.0", 0)));
+            byte[] reply = new byte[10];
+            in.readFully(reply);
+            assertEquals(ProtocolParams.NOT_ALLOWED, reply[1]);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void bindAcceptsOnlyTheNamedPeer() throws Exception {
+        try (Socket client = connectClient()) {
+            OutputStream out = client.getOutputStream();
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            greet(out, in);
+            out.write(request(ProtocolParams.BIND_COMMAND_CODE, new InetSocketAddress("127.0.0.2", 0)));
+            byte[] reply = new byte[10];
+            in.readFully(reply);
+            assertEquals(ProtocolParams.CONNECTION_ESTABLISHED, reply[1]);
+            int port = ((reply[8] & 0xFF) << 8) | (reply[9] & 0xFF);
+
+            try (Socket intruder = new Socket()) {
+                intruder.bind(new InetSocketAddress("127.0.0.1", 0));
+                intruder.connect(new InetSocketAddress("127.0.0.1", port));
+                intruder.setSoTimeout(3000);
+                assertEquals(-1, intruder.getInputStream().read());
+            }
+            try (Socket peer = new Socket()) {
+                peer.bind(new InetSocketAddress("127.0.0.2", 0));
+                peer.connect(new InetSocketAddress("127.0.0.1", port));
+                in.readFully(reply);
+                assertEquals(ProtocolParams.CONNECTION_ESTABLISHED, reply[1]);
+                assertArrayEquals(new byte[] { 127, 0, 0, 2 }, Arrays.copyOfRange(reply, 4, 8));
+                peer.getOutputStream().write(42);
+                assertEquals(42, in.read());
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package proxy.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+    private static final int LAST_BUCKET = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+
+    @Test
+    void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 32; ++value) {
+            assertEquals(value, LatencyHistogram.bucketOf(value));
+            assertEquals(value, LatencyHistogram.upperBoundOf(value));
+        }
+    }
+
+    @Test
+    void bucketsDoubleInWidthAtPowersOfTwo() {
+        assertEquals(32, LatencyHistogram.bucketOf(32));
+        assertEquals(32, LatencyHistogram.bucketOf(33));
+        assertEquals(33, LatencyHistogram.bucketOf(34));
+        assertEquals(33, LatencyHistogram.upperBoundOf(32));
+        assertEquals(63, LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(63)));
+        assertEquals(67, LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(64)));
+    }
+
+    @Test
+    void boundsAreTightAroundEveryBucketEdge() {
+        for (int bucket = 1; bucket < LAST_BUCKET; ++bucket) {
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            long lower = LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(upper + 1));
+        }
+    }
+
+    @Test
+    void upperBoundIsWithinOneSixteenthOfTheValue() {
+        for (long value = 1; value < 1L << 37; value = value * 3 / 2 + 1) {
+            long upper = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value));
+            assertTrue(upper >= value);
+            assertTrue(upper - value <= value / 16, "value " + value + " reported as " + upper);
+        }
+    }
+
+    @Test
+    void hugeValuesLandInTheLastBucket() {
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketOf((1L << 37) - 1));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketOf(1L << 37));
+        assertEquals((1L << 37) - 1, LatencyHistogram.upperBoundOf(LAST_BUCKET));
+    }
+
+    @Test
+    void quantileReportsBucketUpperBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.5));
+        for (int i = 0; i < 99; ++i) {
+            histogram.record(10);
+        }
+        histogram.record(1000);
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(10, histogram.getValueAtQuantile(0.5));
+        assertEquals(1023, histogram.getValueAtQuantile(1.0));
+        assertEquals(0, histogram.getValueAtQuantile(0.0));
+    }
+}
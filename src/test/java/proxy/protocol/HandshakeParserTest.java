@@ -0,0 +1,134 @@
+package proxy.protocol;
+
+import org.junit.jupiter.api.Test;
+import proxy.exceptions.Socks5ProtocolException;
+import proxy.exceptions.UnsupportedAddressType;
+import proxy.exceptions.UnsupportedSocksVersionException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HandshakeParserTest {
+    private static final byte[] GREETING = { 0x05, 0x02, 0x02, 0x00 };
+    private static final byte[] HOST_REQUEST;
+
+    static {
+        byte[] host = "example.org".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer request = ByteBuffer.allocate(7 + host.length);
+        request.put(new byte[] { 0x05, ProtocolParams.SUPPORTED_COMMAND_CODE, 0x00, ProtocolParams.ADDR_TYPE_HOST, (byte) host.length })
+                .put(host).putShort((short) 443);
+        HOST_REQUEST = request.array();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void assertHostRequest(HandshakeParser parser) {
+        assertTrue(parser.isNoAuthOffered());
+        assertEquals(ProtocolParams.SUPPORTED_COMMAND_CODE, parser.getCommand());
+        assertEquals(ProtocolParams.ADDR_TYPE_HOST, parser.getAddressType());
+        assertEquals("example.org", new String(parser.getAddress(), 0, parser.getAddressLength(),
+                StandardCharsets.US_ASCII));
+        assertEquals(443, parser.getPort());
+    }
+
+    @Test
+    void parsesMessagesInSeparateReads() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        assertEquals(HandshakeParser.Result.GREETING_DONE, parser.parse(ByteBuffer.wrap(GREETING)));
+        assertEquals(HandshakeParser.Result.REQUEST_DONE, parser.parse(ByteBuffer.wrap(HOST_REQUEST)));
+        assertHostRequest(parser);
+    }
+
+    @Test
+    void parsesInputSplitAtEveryByte() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        byte[] input = concat(GREETING, HOST_REQUEST);
+        for (int i = 0; i < input.length; i++) {
+            HandshakeParser.Result result = parser.parse(ByteBuffer.wrap(input, i, 1));
+            if (i == GREETING.length - 1) {
+                assertEquals(HandshakeParser.Result.GREETING_DONE, result);
+            } else if (i == input.length - 1) {
+                assertEquals(HandshakeParser.Result.REQUEST_DONE, result);
+            } else {
+                assertEquals(HandshakeParser.Result.NEED_MORE, result);
+            }
+        }
+        assertHostRequest(parser);
+    }
+
+    @Test
+    void stopsAfterGreetingWhenRequestIsPipelined() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        ByteBuffer buffer = ByteBuffer.wrap(concat(GREETING, HOST_REQUEST));
+        assertEquals(HandshakeParser.Result.GREETING_DONE, parser.parse(buffer));
+        assertEquals(HOST_REQUEST.length, buffer.remaining());
+        assertEquals(HandshakeParser.Result.REQUEST_DONE, parser.parse(buffer));
+        assertHostRequest(parser);
+    }
+
+    @Test
+    void leavesEarlyDataAfterTheRequest() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        byte[] payload = "GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.wrap(concat(concat(GREETING, HOST_REQUEST), payload));
+        parser.parse(buffer);
+        assertEquals(HandshakeParser.Result.REQUEST_DONE, parser.parse(buffer));
+        assertEquals(payload.length, buffer.remaining());
+        assertEquals(HandshakeParser.Result.REQUEST_DONE, parser.parse(buffer));
+        assertEquals(payload.length, buffer.remaining());
+    }
+
+    @Test
+    void parsesIpv4Request() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        parser.parse(ByteBuffer.wrap(new byte[] { 0x05, 0x01, 0x02 }));
+        assertFalse(parser.isNoAuthOffered());
+        byte[] request = { 0x05, ProtocolParams.BIND_COMMAND_CODE, 0x00, ProtocolParams.ADDR_TYPE_IPV4, 10, 0, 0, 1, 0x1F, (byte) 0x90 };
+        assertEquals(HandshakeParser.Result.REQUEST_DONE, parser.parse(ByteBuffer.wrap(request)));
+        assertEquals(ProtocolParams.BIND_COMMAND_CODE, parser.getCommand());
+        assertEquals(4, parser.getAddressLength());
+        assertArrayEquals(new byte[] { 10, 0, 0, 1 }, Arrays.copyOf(parser.getAddress(), 4));
+        assertEquals(8080, parser.getPort());
+    }
+
+    @Test
+    void greetingWithoutMethodsIsDone() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        assertEquals(HandshakeParser.Result.GREETING_DONE, parser.parse(ByteBuffer.wrap(new byte[] { 0x05, 0x00 })));
+        assertFalse(parser.isNoAuthOffered());
+    }
+
+    @Test
+    void rejectsWrongVersion() {
+        HandshakeParser parser = new HandshakeParser();
+        assertThrows(UnsupportedSocksVersionException.class,
+                () -> parser.parse(ByteBuffer.wrap(new byte[] { 0x04, 0x01, 0x00 })));
+    }
+
+    @Test
+    void rejectsUnknownAddressType() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        parser.parse(ByteBuffer.wrap(GREETING));
+        assertThrows(UnsupportedAddressType.class,
+                () -> parser.parse(ByteBuffer.wrap(new byte[] { 0x05, 0x01, 0x00, 0x02 })));
+    }
+
+    @Test
+    void rejectsEmptyHostName() throws Socks5ProtocolException {
+        HandshakeParser parser = new HandshakeParser();
+        parser.parse(ByteBuffer.wrap(GREETING));
+        assertThrows(UnsupportedAddressType.class,
+                () -> parser.parse(ByteBuffer.wrap(new byte[] { 0x05, 0x01, 0x00, 0x03, 0x00 })));
+    }
+}
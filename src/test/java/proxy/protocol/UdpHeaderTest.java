@@ -0,0 +1,117 @@
+package proxy.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UdpHeaderTest {
+    private static final byte[] PAYLOAD = "payload".getBytes(StandardCharsets.US_ASCII);
+
+    private static ByteBuffer datagram(InetSocketAddress source) {
+        ByteBuffer buffer = ByteBuffer.allocate(UdpHeader.MAX_LENGTH + PAYLOAD.length);
+        buffer.position(UdpHeader.MAX_LENGTH);
+        buffer.put(PAYLOAD).flip();
+        UdpHeader.writeBefore(buffer, UdpHeader.MAX_LENGTH, source);
+        return buffer;
+    }
+
+    private static ByteBuffer hostDatagram(String host, int port) {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(7 + name.length + PAYLOAD.length);
+        buffer.put(new byte[] { 0, 0, 0, ProtocolParams.ADDR_TYPE_HOST, (byte) name.length }).put(name)
+                .putShort((short) port).put(PAYLOAD).flip();
+        return buffer;
+    }
+
+    private static void assertPayload(ByteBuffer buffer) {
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        assertEquals("payload", new String(payload, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void ipv4RoundTrip() throws Exception {
+        InetSocketAddress source = new InetSocketAddress(InetAddress.getByName("192.0.2.7"), 5353);
+        ByteBuffer buffer = datagram(source);
+        assertEquals(UdpHeader.MAX_LENGTH - 10, buffer.position());
+        UdpHeader header = new UdpHeader();
+        assertTrue(header.parse(buffer));
+        assertFalse(header.isHost());
+        assertEquals(source.getAddress(), header.getAddress());
+        assertEquals(5353, header.getPort());
+        assertPayload(buffer);
+    }
+
+    @Test
+    void ipv6RoundTrip() throws Exception {
+        InetSocketAddress source = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 443);
+        ByteBuffer buffer = datagram(source);
+        assertEquals(UdpHeader.MAX_LENGTH - 22, buffer.position());
+        UdpHeader header = new UdpHeader();
+        assertTrue(header.parse(buffer));
+        assertEquals(source.getAddress(), header.getAddress());
+        assertEquals(443, header.getPort());
+        assertPayload(buffer);
+    }
+
+    @Test
+    void parsesHostName() {
+        UdpHeader header = new UdpHeader();
+        ByteBuffer buffer = hostDatagram("example.org", 53);
+        assertTrue(header.parse(buffer));
+        assertTrue(header.isHost());
+        assertEquals("example.org", header.getHost());
+        assertEquals(53, header.getPort());
+        assertPayload(buffer);
+    }
+
+    @Test
+    void comparesDestinations() {
+        UdpHeader first = new UdpHeader();
+        UdpHeader second = new UdpHeader();
+        first.parse(hostDatagram("example.org", 53));
+        second.parse(hostDatagram("example.org", 53));
+        assertTrue(first.sameDestination(second));
+        second.parse(hostDatagram("example.org", 54));
+        assertFalse(first.sameDestination(second));
+        second.parse(hostDatagram("example.com", 53));
+        assertFalse(first.sameDestination(second));
+        first.copyFrom(second);
+        assertTrue(first.sameDestination(second));
+        assertEquals("example.com", first.getHost());
+    }
+
+    @Test
+    void rejectsFragments() {
+        ByteBuffer buffer = hostDatagram("example.org", 53);
+        buffer.put(2, (byte) 1);
+        assertFalse(new UdpHeader().parse(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void rejectsTruncatedHeaders() {
+        ByteBuffer buffer = hostDatagram("example.org", 53);
+        for (int limit = 0; limit < 7 + "example.org".length(); ++limit) {
+            buffer.limit(limit);
+            assertFalse(new UdpHeader().parse(buffer), "limit " + limit);
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    void rejectsUnknownAddressTypeAndEmptyHost() {
+        ByteBuffer unknown = hostDatagram("example.org", 53);
+        unknown.put(3, (byte) 2);
+        assertFalse(new UdpHeader().parse(unknown));
+        ByteBuffer empty = hostDatagram("", 53);
+        assertFalse(new UdpHeader().parse(empty));
+    }
+}
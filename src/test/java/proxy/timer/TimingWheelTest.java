@@ -0,0 +1,104 @@
+package proxy.timer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    private static final long TICK = 10;
+
+    @Test
+    void firesOnTheTickOfTheDeadline() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Long> fired = new ArrayList<>();
+        long[] now = new long[1];
+        wheel.schedule(() -> fired.add(now[0]), 35, 0);
+        for (now[0] = 0; now[0] <= 100; now[0] += 5) {
+            wheel.advance(now[0]);
+        }
+        assertEquals(List.of(40L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void neverFiresEarly() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        boolean[] fired = new boolean[1];
+        wheel.schedule(() -> fired[0] = true, 1, 7);
+        wheel.advance(7);
+        assertFalse(fired[0]);
+        wheel.advance(10);
+        assertTrue(fired[0]);
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotFire() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        boolean[] fired = new boolean[1];
+        Timeout timeout = wheel.schedule(() -> fired[0] = true, 20, 0);
+        assertTrue(timeout.isActive());
+        timeout.cancel();
+        assertFalse(timeout.isActive());
+        assertEquals(0, wheel.size());
+        wheel.advance(100);
+        assertFalse(fired[0]);
+        timeout.cancel();
+    }
+
+    @Test
+    void timeoutsBeyondOneRevolutionWaitForTheirRound() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Long> fired = new ArrayList<>();
+        long[] now = new long[1];
+        wheel.schedule(() -> fired.add(now[0]), 250, 0);
+        wheel.schedule(() -> fired.add(now[0]), 90, 0);
+        for (now[0] = 0; now[0] <= 300; now[0] += TICK) {
+            wheel.advance(now[0]);
+        }
+        assertEquals(List.of(90L, 250L), fired);
+    }
+
+    @Test
+    void catchesUpAfterALongPause() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Integer> fired = new ArrayList<>();
+        wheel.schedule(() -> fired.add(1), 30, 0);
+        wheel.schedule(() -> fired.add(2), 500, 0);
+        wheel.advance(1000);
+        assertEquals(List.of(1, 2), fired);
+    }
+
+    @Test
+    void taskCanScheduleAnotherTimeout() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<Long> fired = new ArrayList<>();
+        long[] now = new long[1];
+        wheel.schedule(() -> {
+            fired.add(now[0]);
+            wheel.schedule(() -> fired.add(now[0]), 20, now[0]);
+        }, 20, 0);
+        for (now[0] = 0; now[0] <= 100; now[0] += TICK) {
+            wheel.advance(now[0]);
+        }
+        assertEquals(List.of(20L, 40L), fired);
+    }
+
+    @Test
+    void nextTimeoutIsTheNextTick() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        assertEquals(0, wheel.getNextTimeout(3));
+        wheel.schedule(() -> {}, 50, 0);
+        assertEquals(7, wheel.getNextTimeout(3));
+    }
+
+    @Test
+    void rejectsWheelSizeNotPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel(TICK, 6, 0));
+    }
+}
@@ -0,0 +1,101 @@
+package proxy.upstream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import proxy.Reactor;
+import proxy.admission.AdmissionControl;
+import proxy.protocol.ProtocolParams;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamRulesTest {
+    private final UpstreamRules rules = UpstreamRules.getInstance();
+
+    @AfterEach
+    void tearDown() {
+        rules.load("");
+    }
+
+    private static String names(List<ParentProxy> parents) {
+        return String.join(",", parents.stream().map(ParentProxy::toString).toList());
+    }
+
+    @Test
+    void routeEndsAtTheFirstMatchingDirectRule() {
+        rules.load("*.corp=socks5://127.0.0.1:1080,a.corp=http://127.0.0.1:3128,*=direct,"
+                + "*=socks5://127.0.0.1:1081");
+        UpstreamRules.Route route = rules.route("A.corp");
+        assertEquals("socks5://127.0.0.1:1080,http://127.0.0.1:3128", names(route.parents()));
+        assertTrue(route.direct());
+    }
+
+    @Test
+    void routeWithoutDirectRuleDoesNotGoDirect() {
+        rules.load("*.corp=socks5://127.0.0.1:1080,corp=socks5://127.0.0.1:1080");
+        UpstreamRules.Route route = rules.route("x.corp");
+        assertEquals("socks5://127.0.0.1:1080", names(route.parents()));
+        assertFalse(route.direct());
+        assertEquals(route.parents().get(0), rules.select("corp"));
+        assertNull(rules.select("example.com"));
+    }
+
+    @Test
+    void deadParentFailsTheConnectWithoutGoingDirect() throws Exception {
+        int deadPort;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            deadPort = closed.getLocalPort();
+        }
+        String parent = "socks5://127.0.0.1:" + deadPort;
+        rules.load("*.corp=" + parent + ",127.0.0.1=" + parent + ",*=direct");
+        Reactor reactor = new Reactor(0, "127.0.0.1", 0);
+        Thread thread = new Thread(reactor, "test-reactor");
+        thread.setDaemon(true);
+        thread.start();
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             ServerSocketChannel destination = ServerSocketChannel.open()
+                     .bind(new InetSocketAddress("127.0.0.1", 0));
+             Socket client = new Socket()) {
+            client.connect(listener.getLocalAddress());
+            client.setSoTimeout(3000);
+            SocketChannel accepted = listener.accept();
+            accepted.configureBlocking(false);
+            InetSocketAddress remoteAddress = (InetSocketAddress) accepted.getRemoteAddress();
+            assertNull(AdmissionControl.getInstance().admit(remoteAddress.getAddress()));
+            reactor.addClient(accepted, remoteAddress);
+            reactor.wakeup();
+
+            OutputStream out = client.getOutputStream();
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            out.write(new byte[] { 0x05, 0x01, 0x00 });
+            byte[] method = new byte[2];
+            in.readFully(method);
+            assertArrayEquals(new byte[] { 0x05, 0x00 }, method);
+            InetSocketAddress server = (InetSocketAddress) destination.getLocalAddress();
+            ByteBuffer request = ByteBuffer.allocate(10);
+            request.put(new byte[] { 0x05, ProtocolParams.SUPPORTED_COMMAND_CODE, 0x00, 0x01 })
+                    .put(server.getAddress().getAddress()).putShort((short) server.getPort());
+            out.write(request.array());
+            byte[] reply = new byte[10];
+            in.readFully(reply);
+            assertEquals(ProtocolParams.GENERAL_FAILURE, reply[1]);
+            assertEquals(-1, in.read());
+            destination.configureBlocking(false);
+            assertNull(destination.accept());
+        }
+    }
+}